@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how many MMS requests of a subscription may talk to the MMSC at the same time.
+ *
+ * The limit is capped by the carrier configured maximum. In adaptive mode it follows an
+ * additive-increase/multiplicative-decrease scheme: the limit grows by one after a full
+ * window of successful transactions and is halved when the MMSC signals overload, either
+ * through an HTTP error such as 503 or through latency above the target.
+ *
+ * This class is not thread safe; callers must synchronize.
+ */
+public class AdaptiveConcurrencyController {
+    // A burst of failures caused by the same overload should only halve the limit once
+    private static final long DECREASE_COOLDOWN_MILLIS = 10 * 1000L;
+    // Weight of a new sample in the smoothed latency, as 1 / LATENCY_SMOOTHING_FACTOR
+    private static final int LATENCY_SMOOTHING_FACTOR = 8;
+
+    private int mMaxLimit;
+    private boolean mAdaptive;
+    private long mLatencyTargetMillis;
+
+    private int mLimit;
+    private int mSuccessesSinceIncrease;
+    private long mSmoothedLatencyMillis;
+    private long mLastDecreaseTimeMillis = -DECREASE_COOLDOWN_MILLIS;
+
+    // Counters reported in dumpsys
+    private long mIncreaseCount;
+    private long mDecreaseCount;
+
+    public AdaptiveConcurrencyController(int maxLimit, boolean adaptive,
+            long latencyTargetMillis) {
+        configure(maxLimit, adaptive, latencyTargetMillis);
+    }
+
+    /**
+     * Apply a new configuration. The limit is reset to the maximum.
+     *
+     * @param maxLimit the maximum number of concurrent requests, at least 1
+     * @param adaptive whether to adjust the limit to the observed MMSC behaviour
+     * @param latencyTargetMillis transactions slower than this are treated as congestion
+     */
+    public void configure(int maxLimit, boolean adaptive, long latencyTargetMillis) {
+        mMaxLimit = Math.max(1, maxLimit);
+        mAdaptive = adaptive;
+        mLatencyTargetMillis = latencyTargetMillis;
+        mLimit = mMaxLimit;
+        mSuccessesSinceIncrease = 0;
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    public int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * Feed the outcome of an HTTP transaction with the MMSC.
+     *
+     * @param statusCode the HTTP status code, or 0 if no response was received
+     * @param latencyMillis how long the transaction took
+     * @param nowMillis the current elapsed realtime
+     * @return true if the limit changed
+     */
+    public boolean onTransactionCompleted(int statusCode, long latencyMillis, long nowMillis) {
+        if (!mAdaptive) {
+            return false;
+        }
+        final boolean success = statusCode >= 200 && statusCode < 300;
+        if (success) {
+            mSmoothedLatencyMillis = mSmoothedLatencyMillis == 0 ? latencyMillis
+                    : mSmoothedLatencyMillis
+                            + (latencyMillis - mSmoothedLatencyMillis) / LATENCY_SMOOTHING_FACTOR;
+        }
+        if (isOverloaded(statusCode) || (success && mLatencyTargetMillis > 0
+                && mSmoothedLatencyMillis > mLatencyTargetMillis)) {
+            mSuccessesSinceIncrease = 0;
+            if (nowMillis - mLastDecreaseTimeMillis < DECREASE_COOLDOWN_MILLIS) {
+                return false;
+            }
+            mLastDecreaseTimeMillis = nowMillis;
+            final int newLimit = Math.max(1, mLimit / 2);
+            if (newLimit == mLimit) {
+                return false;
+            }
+            mLimit = newLimit;
+            mDecreaseCount++;
+            return true;
+        }
+        if (!success) {
+            return false;
+        }
+        if (++mSuccessesSinceIncrease < mLimit || mLimit >= mMaxLimit) {
+            return false;
+        }
+        mSuccessesSinceIncrease = 0;
+        mLimit++;
+        mIncreaseCount++;
+        return true;
+    }
+
+    private static boolean isOverloaded(int statusCode) {
+        switch (statusCode) {
+            case 0:   // Timeout or connection failure
+            case 429: // Too Many Requests
+            case 502: // Bad Gateway
+            case 503: // Service Unavailable
+            case 504: // Gateway Timeout
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("limit=" + mLimit
+                + " max=" + mMaxLimit
+                + " adaptive=" + mAdaptive
+                + " smoothedLatencyMs=" + mSmoothedLatencyMillis
+                + " increases=" + mIncreaseCount
+                + " decreases=" + mDecreaseCount);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Build;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of the scratch buffers used to move PDUs between content providers and the MMSC.
+ *
+ * Buffers come in a few size classes and each class keeps at most a few idle buffers, so the
+ * pool never holds more than a few hundred KB. Requests larger than the largest class are not
+ * pooled. Callers must release every buffer they acquire, and must not use it afterwards.
+ *
+ * On debuggable builds the pool reports buffers that are garbage collected without having been
+ * released, together with where they were acquired.
+ *
+ * This class is thread safe.
+ */
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024};
+    // Idle buffers kept per size class
+    private static final int MAX_IDLE_BUFFERS_PER_CLASS = 4;
+
+    private static final BufferPool sInstance = new BufferPool(Build.IS_DEBUGGABLE);
+
+    // Idle buffers by size class, guarded by this
+    private final List<ArrayDeque<byte[]>> mIdleBuffers = new ArrayList<>();
+    private final boolean mTrackLeaks;
+    // Buffers handed out and not released yet, only when tracking leaks. Guarded by this.
+    private final List<AcquiredBuffer> mAcquiredBuffers = new ArrayList<>();
+    private final ReferenceQueue<byte[]> mCollectedBuffers = new ReferenceQueue<>();
+
+    // Counters reported in dumpsys, guarded by this
+    private long mAcquireCount;
+    private long mAllocationCount;
+    private long mLeakCount;
+
+    public static BufferPool getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public BufferPool(boolean trackLeaks) {
+        mTrackLeaks = trackLeaks;
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            mIdleBuffers.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Get a buffer of at least the given size. The buffer may be larger and its content is
+     * undefined.
+     *
+     * @param minSize the minimum size of the buffer
+     * @return the buffer, to be passed to {@link #release} when no longer used
+     */
+    public byte[] acquire(int minSize) {
+        final int sizeClass = getSizeClass(minSize);
+        byte[] buffer = null;
+        synchronized (this) {
+            mAcquireCount++;
+            if (sizeClass >= 0) {
+                buffer = mIdleBuffers.get(sizeClass).poll();
+            }
+            if (buffer == null) {
+                mAllocationCount++;
+            }
+        }
+        if (buffer == null) {
+            buffer = new byte[sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : minSize];
+        }
+        if (mTrackLeaks) {
+            trackAcquired(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer obtained from {@link #acquire}.
+     *
+     * @param buffer the buffer, may be null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int sizeClass = getSizeClass(buffer.length);
+        synchronized (this) {
+            if (mTrackLeaks) {
+                trackReleasedLocked(buffer);
+            }
+            if (sizeClass < 0 || SIZE_CLASSES[sizeClass] != buffer.length) {
+                return;
+            }
+            final ArrayDeque<byte[]> idleBuffers = mIdleBuffers.get(sizeClass);
+            if (idleBuffers.size() < MAX_IDLE_BUFFERS_PER_CLASS) {
+                idleBuffers.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Drop all idle buffers, e.g. when the system is low on memory.
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<byte[]> idleBuffers : mIdleBuffers) {
+            idleBuffers.clear();
+        }
+    }
+
+    @VisibleForTesting
+    public synchronized int getIdleBufferCount() {
+        int count = 0;
+        for (ArrayDeque<byte[]> idleBuffers : mIdleBuffers) {
+            count += idleBuffers.size();
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    public synchronized long getLeakCount() {
+        reportCollectedBuffersLocked();
+        return mLeakCount;
+    }
+
+    /**
+     * @return the index of the smallest size class holding minSize bytes, or -1 if none does
+     */
+    private static int getSizeClass(int minSize) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (minSize <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void trackAcquired(byte[] buffer) {
+        reportCollectedBuffersLocked();
+        mAcquiredBuffers.add(new AcquiredBuffer(buffer, mCollectedBuffers));
+    }
+
+    private void trackReleasedLocked(byte[] buffer) {
+        for (int i = 0; i < mAcquiredBuffers.size(); i++) {
+            if (mAcquiredBuffers.get(i).get() == buffer) {
+                mAcquiredBuffers.remove(i).clear();
+                return;
+            }
+        }
+        LogUtil.w("BufferPool: released a buffer that was not acquired",
+                new IllegalStateException());
+    }
+
+    private void reportCollectedBuffersLocked() {
+        Reference<? extends byte[]> reference;
+        while ((reference = mCollectedBuffers.poll()) != null) {
+            // Released buffers are cleared, so they are never enqueued
+            if (mAcquiredBuffers.remove(reference)) {
+                mLeakCount++;
+                LogUtil.e("BufferPool: buffer was never released",
+                        ((AcquiredBuffer) reference).mAcquiredAt);
+            }
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        reportCollectedBuffersLocked();
+        pw.println("acquired=" + mAcquireCount
+                + " allocated=" + mAllocationCount
+                + " idle=" + getIdleBufferCount()
+                + (mTrackLeaks ? " outstanding=" + mAcquiredBuffers.size()
+                        + " leaked=" + mLeakCount : ""));
+    }
+
+    private static class AcquiredBuffer extends WeakReference<byte[]> {
+        final Throwable mAcquiredAt = new Throwable("Buffer acquired here");
+
+        AcquiredBuffer(byte[] buffer, ReferenceQueue<byte[]> queue) {
+            super(buffer, queue);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps track of the HTTP connections an {@link MmsHttpClient} leaves open for reuse, to report
+ * how often requests reuse one.
+ *
+ * The connections themselves are pooled by the {@link android.net.Network} the client opens
+ * them on, which evicts them once idle for its keep-alive duration. The pool cannot be
+ * inspected, so this mirrors it: a request is counted as reusing a connection when one to the
+ * same origin was released recently enough to still be in the pool.
+ *
+ * This class is thread safe.
+ */
+public class ConnectionReuseTracker {
+    // Idle time after which the pool of the Network evicts a connection, the platform default
+    private static final long KEEP_ALIVE_DURATION_MILLIS = 5 * 60 * 1000L;
+    // Idle connections the pool of the Network keeps per origin at most
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private final long mKeepAliveDurationMillis;
+    // Release times of the idle connections by origin, most recent last. Guarded by this.
+    private final ArrayMap<String, ArrayDeque<Long>> mIdleConnections = new ArrayMap<>();
+
+    // Counters reported in dumpsys, guarded by this
+    private long mRequestCount;
+    private long mReusedCount;
+    private long mKeptAliveCount;
+    private long mClosedCount;
+
+    public ConnectionReuseTracker() {
+        this(KEEP_ALIVE_DURATION_MILLIS);
+    }
+
+    @VisibleForTesting
+    public ConnectionReuseTracker(long keepAliveDurationMillis) {
+        mKeepAliveDurationMillis = keepAliveDurationMillis;
+    }
+
+    /**
+     * Called when a request opens its connection.
+     *
+     * @param origin the scheme, host, port and proxy of the request
+     * @return whether the request likely reuses an idle connection
+     */
+    public synchronized boolean onConnectionOpened(String origin) {
+        mRequestCount++;
+        final ArrayDeque<Long> idle = mIdleConnections.get(origin);
+        if (idle == null) {
+            return false;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        // The pool hands out the most recently used connection
+        while (!idle.isEmpty()) {
+            if (now - idle.pollLast() < mKeepAliveDurationMillis) {
+                mReusedCount++;
+                return true;
+            }
+        }
+        mIdleConnections.remove(origin);
+        return false;
+    }
+
+    /**
+     * Called when a request is done with its connection.
+     *
+     * @param keptAlive whether the connection was left open for reuse rather than closed
+     */
+    public synchronized void onConnectionReleased(String origin, boolean keptAlive) {
+        if (!keptAlive) {
+            mClosedCount++;
+            return;
+        }
+        mKeptAliveCount++;
+        ArrayDeque<Long> idle = mIdleConnections.get(origin);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            mIdleConnections.put(origin, idle);
+        }
+        idle.addLast(SystemClock.elapsedRealtime());
+        if (idle.size() > MAX_IDLE_CONNECTIONS) {
+            idle.pollFirst();
+        }
+    }
+
+    /**
+     * Forget the idle connections, once they can no longer be reused.
+     */
+    public synchronized void clear() {
+        mIdleConnections.clear();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("requests=" + mRequestCount
+                + " reused=" + mReusedCount
+                + " reusePercent=" + (mRequestCount > 0 ? mReusedCount * 100 / mRequestCount : 0)
+                + " keptAlive=" + mKeptAliveCount
+                + " closed=" + mClosedCount);
+    }
+}
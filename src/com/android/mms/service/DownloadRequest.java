@@ -28,15 +28,19 @@ import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Telephony;
+import android.system.ErrnoException;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.CarrierMessagingServiceWrapper;
 import android.telephony.SmsManager;
 import android.text.TextUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.mms.JournaledRequest;
 import com.android.mms.service.exception.MmsHttpException;
 import com.android.mms.service.metrics.MmsStats;
 
@@ -48,17 +52,40 @@ import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Request to download an MMS
  */
 public class DownloadRequest extends MmsRequest {
     private static final String LOCATION_SELECTION =
             Telephony.Mms.MESSAGE_TYPE + "=? AND " + Telephony.Mms.CONTENT_LOCATION + " =?";
+    // Directory of the cache holding the responses being downloaded
+    private static final String PARTIAL_RESPONSE_DIR = "mms_downloads";
+    // Config override set by the app to receive the response in a SharedMemoryResponse rather
+    // than in its content uri
+    static final String KEY_MMS_SHARED_MEMORY_RESPONSE_BOOL = "mms_shared_memory_response_bool";
 
     private final String mLocationUrl;
     private final PendingIntent mDownloadedIntent;
     private final Uri mContentUri;
 
+    // Duplicate requests for the same location, served from the response of this request. Kept
+    // once the result is delivered, so that the service can forget them with this request.
+    private final List<DownloadRequest> mCoalescedRequests = new ArrayList<>();
+    // Set once the result is being delivered, no more duplicates can be attached then
+    private boolean mCoalescingClosed;
+    // The response received so far, kept on disk across attempts so that an interrupted
+    // download is resumed rather than started over. Created by the first attempt that does not
+    // stream to the content uri, null if the cache is unavailable.
+    private PartialResponse mPartialResponse;
+    // Set once an attempt streaming to the content uri failed
+    private boolean mStreamingInterrupted;
+
     public DownloadRequest(RequestManager manager, int subId, String locationUrl,
             Uri contentUri, PendingIntent downloadedIntent, String creator,
             Bundle configOverrides, Context context, long messageId, MmsStats mmsStats) {
@@ -79,7 +106,40 @@ public class DownloadRequest extends MmsRequest {
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready. "
                     + MmsService.formatCrossStackMessageId(mMessageId));
         }
-        return mmsHttpClient.execute(
+        // The first attempt streams the response straight to the content uri when it can. An
+        // interrupted stream cannot be resumed there, so the next attempts keep the response on
+        // disk instead.
+        if (!mStreamingInterrupted && canStreamResponse()) {
+            final ParcelFileDescriptor pduFd = openContentUriForStreaming();
+            if (pduFd != null) {
+                try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd)) {
+                    mmsHttpClient.executeGet(
+                            mLocationUrl,
+                            apn.isProxySet(),
+                            apn.getProxyAddress(),
+                            apn.getProxyPort(),
+                            mMmsConfig,
+                            mSubId,
+                            requestId,
+                            getHttpCancellationSignal(),
+                            out,
+                            getMaxResponseSize());
+                } catch (MmsHttpException e) {
+                    mStreamingInterrupted = true;
+                    throw e;
+                } catch (IOException e) {
+                    mStreamingInterrupted = true;
+                    throw new MmsHttpException(0/*statusCode*/, "Failed to write PDU", e);
+                }
+                // The response is already in the content uri, there is nothing to transfer
+                return null;
+            }
+        }
+        final PartialResponse partialResponse = getPartialResponse();
+        if (partialResponse != null) {
+            return doResumableHttp(mmsHttpClient, apn, partialResponse);
+        }
+        final byte[] response = mmsHttpClient.execute(
                 mLocationUrl,
                 null/*pud*/,
                 MmsHttpClient.METHOD_GET,
@@ -88,7 +148,136 @@ public class DownloadRequest extends MmsRequest {
                 apn.getProxyPort(),
                 mMmsConfig,
                 mSubId,
-                requestId);
+                requestId,
+                getHttpCancellationSignal());
+        if (response != null) {
+            chargePduMemory(response.length);
+        }
+        return response;
+    }
+
+    /**
+     * Download the response into the partial response, resuming what previous attempts
+     * received, then write it to the content uri or return it.
+     */
+    private byte[] doResumableHttp(MmsHttpClient mmsHttpClient, ApnSettings apn,
+            PartialResponse partialResponse) throws MmsHttpException {
+        final String requestId = getRequestId();
+        if (!partialResponse.isComplete()) {
+            mmsHttpClient.executeGet(
+                    mLocationUrl,
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId,
+                    getHttpCancellationSignal(),
+                    partialResponse,
+                    getMaxResponseSize());
+        }
+        if (canStreamResponse()) {
+            final ParcelFileDescriptor pduFd = openContentUriForStreaming();
+            if (pduFd != null) {
+                try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd)) {
+                    partialResponse.writeTo(out);
+                } catch (IOException e) {
+                    throw new MmsHttpException(0/*statusCode*/, "Failed to write PDU", e);
+                }
+                // The response is already in the content uri, there is nothing to transfer
+                return null;
+            }
+        }
+        // Held in memory until the result is processed
+        chargePduMemory(partialResponse.getLength());
+        try {
+            return partialResponse.read(
+                    (int) Math.min(Integer.MAX_VALUE, getMaxResponseSize()));
+        } catch (IOException e) {
+            throw new MmsHttpException(0/*statusCode*/, "Failed to read response", e);
+        }
+    }
+
+    /**
+     * @return the partial response of this request, or null if it cannot be kept on disk, in
+     * which case each attempt downloads the whole response
+     */
+    private PartialResponse getPartialResponse() {
+        if (mPartialResponse == null) {
+            try {
+                final File dir = getPartialResponseDir(mContext);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                mPartialResponse = new PartialResponse(
+                        File.createTempFile("download", ".part", dir));
+            } catch (IOException | RuntimeException e) {
+                LogUtil.w(getRequestId(), "Cannot keep partial response", e);
+                return null;
+            }
+        }
+        return mPartialResponse;
+    }
+
+    private static File getPartialResponseDir(Context context) {
+        return new File(context.getCacheDir(), PARTIAL_RESPONSE_DIR);
+    }
+
+    /**
+     * Delete the partial responses left by a previous instance of the service, which can no
+     * longer be resumed.
+     *
+     * @param context the context
+     * @param olderThanMillis only files last modified before this wall clock time are deleted
+     */
+    public static void deleteStalePartialResponses(Context context, long olderThanMillis) {
+        final File[] files = getPartialResponseDir(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.lastModified() < olderThanMillis) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * The response can be written straight to the content uri when the service does not need
+     * it: the message is not auto persisted, and no duplicate request waits for the response.
+     * Duplicates arriving later are executed on their own.
+     */
+    @VisibleForTesting
+    boolean canStreamResponse() {
+        if (mContentUri == null || mRequestManager.getAutoPersistingPref()
+                || isSharedMemoryResponseRequested()) {
+            return false;
+        }
+        synchronized (mCoalescedRequests) {
+            if (!mCoalescedRequests.isEmpty()) {
+                return false;
+            }
+            mCoalescingClosed = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return the content uri opened for writing from the start, or null if it cannot be
+     * opened, in which case the response is buffered and the transfer fails as usual
+     */
+    private ParcelFileDescriptor openContentUriForStreaming() {
+        try {
+            return mContext.getContentResolver().openFileDescriptor(mContentUri, "wt");
+        } catch (IOException | RuntimeException e) {
+            LogUtil.w(getRequestId(), "Cannot open content uri, not streaming", e);
+            return null;
+        }
+    }
+
+    private long getMaxResponseSize() {
+        final int maxSize = mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+        return maxSize > 0 ? maxSize : Long.MAX_VALUE;
     }
 
     @Override
@@ -96,11 +285,94 @@ public class DownloadRequest extends MmsRequest {
         return mDownloadedIntent;
     }
 
+    public String getLocationUrl() {
+        return mLocationUrl;
+    }
+
+    @Override
+    protected JournaledRequest toJournaledRequest() {
+        final JournaledRequest.Builder builder =
+                newJournaledRequestBuilder(RequestJournal.TYPE_DOWNLOAD);
+        if (mLocationUrl != null) {
+            builder.setLocationUrl(mLocationUrl);
+        }
+        if (mContentUri != null) {
+            builder.setContentUri(mContentUri.toString());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Attach a duplicate request for the same location to this one. The duplicate is not
+     * executed; it receives the response of this request once it completes.
+     *
+     * @param request the duplicate request
+     * @return false if this request is already delivering its result, in which case the
+     * duplicate has to be executed on its own
+     */
+    public boolean coalesce(DownloadRequest request) {
+        synchronized (mCoalescedRequests) {
+            if (mCoalescingClosed) {
+                return false;
+            }
+            mCoalescedRequests.add(request);
+            return true;
+        }
+    }
+
+    /**
+     * Detach a duplicate request attached with {@link #coalesce}, e.g. because it is cancelled.
+     *
+     * @param request the duplicate request
+     * @return false if the request is not attached, or if it is already getting the result of
+     * this request
+     */
+    public boolean removeCoalesced(DownloadRequest request) {
+        synchronized (mCoalescedRequests) {
+            return !mCoalescingClosed && mCoalescedRequests.remove(request);
+        }
+    }
+
+    /**
+     * @return the duplicate requests attached to this one
+     */
+    public List<DownloadRequest> getCoalescedRequests() {
+        synchronized (mCoalescedRequests) {
+            return new ArrayList<>(mCoalescedRequests);
+        }
+    }
+
+    @Override
+    protected void onResultProcessed(Context context, int result, byte[] response,
+            int httpStatusCode, Uri messageUri) {
+        if (mPartialResponse != null) {
+            mPartialResponse.discard();
+        }
+        final List<DownloadRequest> coalescedRequests;
+        synchronized (mCoalescedRequests) {
+            mCoalescingClosed = true;
+            coalescedRequests = new ArrayList<>(mCoalescedRequests);
+        }
+        for (DownloadRequest request : coalescedRequests) {
+            LogUtil.i(request.getRequestId(), "Delivering coalesced download result of "
+                    + getRequestId() + ", " + MmsService.formatCrossStackMessageId(
+                    request.mMessageId));
+            // The message has already been persisted, only hand over the response
+            request.deliverResult(context, result, response, httpStatusCode,
+                    /* handledByCarrierApp= */ false, /* retryId= */ 0, messageUri);
+        }
+    }
+
     @Override
     protected int getQueueType() {
         return MmsService.QUEUE_INDEX_DOWNLOAD;
     }
 
+    @Override
+    protected int getPriority() {
+        return PRIORITY_BACKGROUND;
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
@@ -252,9 +524,29 @@ public class DownloadRequest extends MmsRequest {
      */
     @Override
     protected boolean transferResponse(Intent fillIn, final byte[] response) {
+        if (isSharedMemoryResponseRequested() && response.length > 0) {
+            try {
+                // The app that created the intent, in whichever user or profile it runs; the
+                // callers of the service are all the system
+                final int ownerUid = mDownloadedIntent.getCreatorUid();
+                final Bundle extra = new Bundle();
+                extra.putBinder(SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE,
+                        SharedMemoryResponse.create(response, ownerUid));
+                fillIn.putExtra(SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE, extra);
+                return true;
+            } catch (ErrnoException e) {
+                // The content uri still works
+                LogUtil.w(getRequestId(), "Cannot share response memory, writing to uri", e);
+            }
+        }
         return mRequestManager.writePduToContentUri(mContentUri, response);
     }
 
+    private boolean isSharedMemoryResponseRequested() {
+        return mCreator != null
+                && mMmsConfig.getBoolean(KEY_MMS_SHARED_MEMORY_RESPONSE_BOOL, false);
+    }
+
     @Override
     protected boolean prepareForHttpRequest() {
         return true;
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SmsManager;
+import android.text.TextUtils;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The headers common to every MMS HTTP request of a subscription, parsed once from the MMS
+ * config.
+ *
+ * A template is built from the values of the config it depends on and the locale, and is
+ * reused as long as the requests of the subscription come with the same values. Macros in the
+ * extra headers of mms_config.xml's httpParams are located when the template is built, and only
+ * their values are looked up for each request, since they can change at any time.
+ *
+ * Templates are immutable. The cache of templates is thread safe.
+ */
+public class HttpHeaderTemplate {
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
+    private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_CONNECTION = "Connection";
+
+    // The "Accept" header value
+    private static final String HEADER_VALUE_ACCEPT =
+            "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
+    private static final String HEADER_CONNECTION_CLOSE = "close";
+
+    // Used for configs that specify a UA_PROF_URL, but not a name
+    private static final String UA_PROF_TAG_NAME_DEFAULT = "x-wap-profile";
+
+    private static final Pattern MACRO_P = Pattern.compile("##(\\S+)##");
+
+    // The latest template of each subscription
+    private static final ConcurrentHashMap<Integer, HttpHeaderTemplate> sTemplates =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Looks up the value of a macro of the extra headers.
+     */
+    public interface MacroResolver {
+        /**
+         * @return the value of the macro, or null if it has none
+         */
+        String getMacroValue(String macro);
+    }
+
+    /**
+     * A header whose value is made of literal text and macros.
+     */
+    private static class Header {
+        final String mName;
+        // Literal text at even indices, macro names at odd ones
+        final String[] mParts;
+
+        Header(String name, String[] parts) {
+            mName = name;
+            mParts = parts;
+        }
+
+        String getValue(MacroResolver resolver) {
+            if (mParts.length == 1) {
+                return mParts[0];
+            }
+            final StringBuilder value = new StringBuilder();
+            for (int i = 0; i < mParts.length; i++) {
+                if (i % 2 == 0) {
+                    value.append(mParts[i]);
+                } else {
+                    final String macroValue = resolver.getMacroValue(mParts[i]);
+                    if (macroValue != null) {
+                        value.append(macroValue);
+                    }
+                }
+            }
+            return value.toString();
+        }
+    }
+
+    // What the template was built from
+    private final List<Object> mKey;
+    private final List<Header> mHeaders;
+
+    private HttpHeaderTemplate(List<Object> key, List<Header> headers) {
+        mKey = key;
+        mHeaders = Collections.unmodifiableList(headers);
+    }
+
+    /**
+     * Get the template of a subscription for the given config and locale, building it if the
+     * latest one was built from other values.
+     */
+    public static HttpHeaderTemplate get(int subId, Bundle mmsConfig, Locale locale) {
+        final List<Object> key = getKey(mmsConfig, locale);
+        HttpHeaderTemplate template = sTemplates.get(subId);
+        if (template == null || !template.mKey.equals(key)) {
+            template = build(key, mmsConfig, locale);
+            sTemplates.put(subId, template);
+        }
+        return template;
+    }
+
+    /**
+     * Forget the template of a subscription, when its carrier config changes.
+     */
+    public static void invalidate(int subId) {
+        sTemplates.remove(subId);
+    }
+
+    private static List<Object> getKey(Bundle mmsConfig, Locale locale) {
+        return Arrays.asList(
+                locale,
+                mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT),
+                mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME),
+                mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL),
+                mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false),
+                mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS));
+    }
+
+    private static HttpHeaderTemplate build(List<Object> key, Bundle mmsConfig, Locale locale) {
+        final List<Header> headers = new ArrayList<>();
+        // Header: Accept
+        addHeader(headers, HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
+        // Header: Accept-Language
+        addHeader(headers, HEADER_ACCEPT_LANGUAGE,
+                MmsHttpClient.getCurrentAcceptLanguage(locale));
+        // Header: User-Agent
+        final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
+        LogUtil.i("HTTP: User-Agent=" + userAgent);
+        addHeader(headers, HEADER_USER_AGENT, userAgent);
+        // Header: x-wap-profile
+        String uaProfUrlTagName = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
+        final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
+        if (!TextUtils.isEmpty(uaProfUrl)) {
+            if (TextUtils.isEmpty(uaProfUrlTagName)) {
+                uaProfUrlTagName = UA_PROF_TAG_NAME_DEFAULT;
+            }
+            LogUtil.i("HTTP: UaProfUrl=" + uaProfUrl + ", UaProfUrlTagName=" + uaProfUrlTagName);
+            addHeader(headers, uaProfUrlTagName, uaProfUrl);
+        }
+        // Header: Connection: close (if needed)
+        // Some carriers require that the HTTP connection's socket is closed
+        // after an MMS request/response is complete. In these cases keep alive
+        // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
+        if (mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false)) {
+            LogUtil.i("HTTP: Connection close after request");
+            addHeader(headers, HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
+        }
+        // Extra headers specified by mms_config.xml's httpparams
+        addExtraHeaders(headers, mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS));
+        return new HttpHeaderTemplate(key, headers);
+    }
+
+    private static void addHeader(List<Header> headers, String name, String value) {
+        headers.add(new Header(name, new String[] {value}));
+    }
+
+    /**
+     * Add the extra HTTP headers from mms_config.xml's httpParams, which is a list of key/value
+     * pairs separated by "|". Each key/value pair is separated by ":". Value may contain
+     * macros like "##LINE1##" or "##NAI##".
+     */
+    private static void addExtraHeaders(List<Header> headers, String extraHttpParams) {
+        if (TextUtils.isEmpty(extraHttpParams)) {
+            return;
+        }
+        for (String paramPair : extraHttpParams.split("\\|")) {
+            final String[] splitPair = paramPair.split(":", 2);
+            if (splitPair.length != 2) {
+                continue;
+            }
+            final String name = splitPair[0].trim();
+            final String value = splitPair[1].trim();
+            if (TextUtils.isEmpty(name) || TextUtils.isEmpty(value)) {
+                continue;
+            }
+            final List<String> parts = new ArrayList<>();
+            final Matcher matcher = MACRO_P.matcher(value);
+            int nextStart = 0;
+            while (matcher.find()) {
+                parts.add(value.substring(nextStart, matcher.start()));
+                parts.add(matcher.group(1));
+                nextStart = matcher.end();
+            }
+            parts.add(value.substring(nextStart));
+            headers.add(new Header(name, parts.toArray(new String[0])));
+        }
+    }
+
+    /**
+     * Set the headers of the template on a connection, macros resolved. Extra headers whose
+     * value is empty once resolved are skipped.
+     */
+    public void apply(HttpURLConnection connection, MacroResolver resolver) {
+        for (Header header : mHeaders) {
+            if (header.mParts.length == 1) {
+                connection.setRequestProperty(header.mName, header.mParts[0]);
+                continue;
+            }
+            final String value = header.getValue(resolver);
+            if (!TextUtils.isEmpty(value)) {
+                connection.setRequestProperty(header.mName, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts how often and how long the requests of a subscription wait for IPv4 to be provisioned
+ * on an IPv6-only MMS network before reaching an MMSC given by an IPv4 literal, for dumpsys.
+ *
+ * This class is thread safe.
+ */
+public class Ipv4WaitStats {
+    // Guarded by this
+    private long mWaitCount;
+    private long mProvisionedCount;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+
+    /**
+     * Called when a request is done waiting for IPv4.
+     *
+     * @param waitMillis how long the request waited
+     * @param provisioned whether IPv4 was provisioned, rather than the wait timing out or the
+     *                    network being lost
+     */
+    public synchronized void onWaitFinished(long waitMillis, boolean provisioned) {
+        mWaitCount++;
+        if (provisioned) {
+            mProvisionedCount++;
+        }
+        mTotalWaitMillis += waitMillis;
+        mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("waits=" + mWaitCount
+                + " provisioned=" + mProvisionedCount
+                + " totalWaitMs=" + mTotalWaitMillis
+                + " maxWaitMs=" + mMaxWaitMillis);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Cache of the values of the macros in the extra HTTP headers, such as the line number and the
+ * NAI, by subscription.
+ *
+ * Looking a value up takes binder calls to telephony, and phone number parsing or Base64
+ * encoding, while it only changes with the subscription itself. Values are cached until the
+ * subscriptions or the carrier config of the subscription change, null values included.
+ *
+ * This class is thread safe.
+ */
+public class MacroValueCache {
+    private static final MacroValueCache sInstance = new MacroValueCache();
+
+    /**
+     * Looks up the value of a macro, on a cache miss.
+     */
+    public interface Loader {
+        /**
+         * @return the value of the macro, or null if it has none
+         */
+        String load(String macro, Bundle mmsConfig, int subId);
+    }
+
+    // Values by subscription, then by macro. Guarded by this.
+    private final SparseArray<ArrayMap<String, String>> mValues = new SparseArray<>();
+    // Bumped on invalidation, so that a value looked up before is not cached after. Guarded by
+    // this.
+    private long mGeneration;
+
+    // Counters reported in dumpsys, guarded by this
+    private long mHitCount;
+    private long mMissCount;
+    private long mInvalidationCount;
+
+    public static MacroValueCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public MacroValueCache() {
+    }
+
+    /**
+     * Get the value of a macro, loading it on a miss.
+     *
+     * @param mmsConfig the MMS config of the request, which has the NAI suffix
+     */
+    public String get(String macro, Bundle mmsConfig, int subId, Loader loader) {
+        final String key = getKey(macro, mmsConfig);
+        final long generation;
+        synchronized (this) {
+            final ArrayMap<String, String> values = mValues.get(subId);
+            if (values != null && values.containsKey(key)) {
+                mHitCount++;
+                return values.get(key);
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+        // Not under the lock, loading makes binder calls
+        final String value = loader.load(macro, mmsConfig, subId);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                ArrayMap<String, String> values = mValues.get(subId);
+                if (values == null) {
+                    values = new ArrayMap<>();
+                    mValues.put(subId, values);
+                }
+                values.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Forget the values of a subscription, when its carrier config changes.
+     */
+    public synchronized void invalidate(int subId) {
+        mValues.remove(subId);
+        mGeneration++;
+        mInvalidationCount++;
+    }
+
+    /**
+     * Forget the values of all subscriptions, when the subscriptions or their phone numbers
+     * change.
+     */
+    public synchronized void invalidateAll() {
+        mValues.clear();
+        mGeneration++;
+        mInvalidationCount++;
+    }
+
+    /**
+     * The NAI suffix can be overridden by the request, so the NAI is cached by suffix.
+     */
+    private static String getKey(String macro, Bundle mmsConfig) {
+        if (MmsHttpClient.MACRO_NAI.equals(macro)) {
+            final String naiSuffix = mmsConfig.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX);
+            return naiSuffix == null ? macro : macro + ":" + naiSuffix;
+        }
+        return macro;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        // The values themselves are PII, never dumped
+        pw.println("subscriptions=" + mValues.size()
+                + " hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " invalidations=" + mInvalidationCount);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.Context;
+import android.net.Network;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.mms.service.exception.ApnException;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the addresses of the MMS proxy hosts, resolved on one MMS {@link Network}.
+ *
+ * The proxy of the APN is resolved in the background as soon as the network is available, so
+ * that the requests find it resolved, or take over the lookup rather than start another one.
+ * The requests connect to the cached address of the proxy. The MMSC is not cached: a direct
+ * request connects by the name of the host, which the TLS and HTTP layers need, and
+ * {@link Network#openConnection} resolves it by itself.
+ *
+ * The resolver does not report the TTL of the records. Its own cache on the network honours
+ * them, so addresses are only kept here for a short time, like the address cache of
+ * {@link InetAddress}, and looked up again from the resolver after that. Failed lookups are not
+ * cached.
+ *
+ * This class is thread safe.
+ */
+public class MmsDnsCache {
+    // Time an address is reused without asking the resolver again
+    private static final long MAX_AGE_MILLIS = 30 * 1000L;
+
+    // Bounds of the executor running the prefetches of all the networks. A prefetch that does
+    // not fit is dropped, the request then resolves the host itself.
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE_SIZE = 8;
+    private static final long PREFETCH_KEEP_ALIVE_SECONDS = 30L;
+
+    private static final ThreadPoolExecutor sPrefetchExecutor = new ThreadPoolExecutor(
+            PREFETCH_THREADS, PREFETCH_THREADS, PREFETCH_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(PREFETCH_QUEUE_SIZE),
+            runnable -> new Thread(runnable, "MmsDnsPrefetch"),
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    static {
+        // Its threads exit once idle
+        sPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The lookup of a host, in flight or done.
+     */
+    private class Entry {
+        final FutureTask<InetAddress[]> mLookup;
+        // Set once the lookup succeeds
+        volatile long mExpiresAtMillis;
+
+        Entry(String host) {
+            mLookup = new FutureTask<>(() -> {
+                final InetAddress[] addresses = mResolvingNetwork.getAllByName(host);
+                if (addresses == null || addresses.length == 0) {
+                    throw new UnknownHostException(host);
+                }
+                mExpiresAtMillis = SystemClock.elapsedRealtime() + mMaxAgeMillis;
+                return addresses;
+            });
+        }
+
+        boolean isExpired(long nowMillis) {
+            // A failed lookup never sets its expiry
+            return mLookup.isDone() && nowMillis >= mExpiresAtMillis;
+        }
+    }
+
+    private final Network mNetwork;
+    // The proxy is on a carrier private network, so it is resolved bypassing private DNS, as
+    // MmsHttpClient connects to it
+    private final Network mResolvingNetwork;
+    private final Executor mExecutor;
+    private final long mMaxAgeMillis;
+    // Guarded by this
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+    // Counters reported in dumpsys, guarded by this
+    private long mHitCount;
+    private long mMissCount;
+    private long mPrefetchCount;
+
+    public MmsDnsCache(Network network) {
+        this(network, sPrefetchExecutor, MAX_AGE_MILLIS);
+    }
+
+    @VisibleForTesting
+    public MmsDnsCache(Network network, Executor executor, long maxAgeMillis) {
+        mNetwork = network;
+        mResolvingNetwork = network.getPrivateDnsBypassingCopy();
+        mExecutor = executor;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the network the hosts are resolved on
+     */
+    public Network getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Resolve in the background the proxy of the MMS APN of the subscription, if it has one.
+     *
+     * @param apnName the APN of the network, or null if unknown
+     */
+    public void prefetchProxy(Context context, String apnName, int subId) {
+        mExecutor.execute(() -> {
+            final String requestId = "dns-prefetch";
+            ApnSettings apn;
+            try {
+                try {
+                    apn = ApnSettings.load(context, apnName, subId, requestId);
+                } catch (ApnException e) {
+                    // Same fallback as the requests
+                    if (apnName == null) {
+                        throw e;
+                    }
+                    apn = ApnSettings.load(context, null, subId, requestId);
+                }
+            } catch (ApnException | RuntimeException e) {
+                LogUtil.w(requestId, "MmsDnsCache: no APN to prefetch " + e);
+                return;
+            }
+            if (apn.isProxySet()) {
+                prefetch(apn.getProxyAddress());
+            }
+        });
+    }
+
+    /**
+     * Resolve a host in the background, unless it is already resolved or being resolved.
+     */
+    public void prefetch(String host) {
+        if (TextUtils.isEmpty(host)) {
+            return;
+        }
+        final Entry entry;
+        synchronized (this) {
+            final Entry cached = mEntries.get(host);
+            if (cached != null && !cached.isExpired(SystemClock.elapsedRealtime())) {
+                return;
+            }
+            entry = new Entry(host);
+            mEntries.put(host, entry);
+            mPrefetchCount++;
+        }
+        mExecutor.execute(entry.mLookup);
+    }
+
+    /**
+     * Get the addresses of a host, waiting for the lookup in flight if any, or resolving it on
+     * this thread if it is not cached or its prefetch has not started yet.
+     *
+     * @throws UnknownHostException if the host cannot be resolved
+     */
+    public InetAddress[] getAllByName(String host) throws UnknownHostException {
+        final Entry entry;
+        synchronized (this) {
+            final Entry cached = mEntries.get(host);
+            if (cached != null && !cached.isExpired(SystemClock.elapsedRealtime())) {
+                entry = cached;
+                mHitCount++;
+            } else {
+                entry = new Entry(host);
+                mEntries.put(host, entry);
+                mMissCount++;
+            }
+        }
+        // Does nothing if the lookup is running or done, takes it over from the prefetch
+        // executor otherwise
+        entry.mLookup.run();
+        try {
+            return entry.mLookup.get();
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (mEntries.get(host) == entry) {
+                    mEntries.remove(host);
+                }
+            }
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw (UnknownHostException) new UnknownHostException(host).initCause(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (UnknownHostException) new UnknownHostException(host).initCause(e);
+        }
+    }
+
+    /**
+     * @see #getAllByName(String)
+     */
+    public InetAddress getByName(String host) throws UnknownHostException {
+        return getAllByName(host)[0];
+    }
+
+    /**
+     * Forget the addresses of a host, when connecting to them failed.
+     */
+    public synchronized void invalidate(String host) {
+        final Entry entry = mEntries.get(host);
+        if (entry != null && entry.mLookup.isDone()) {
+            mEntries.remove(host);
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("hosts=" + mEntries.size()
+                + " hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " prefetches=" + mPrefetchCount);
+    }
+}
@@ -20,7 +20,11 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
@@ -31,9 +35,9 @@ import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
 import com.android.mms.service.exception.VoluntaryDisconnectMmsHttpException;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -48,14 +52,15 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * MMS HTTP client for sending and downloading MMS messages
@@ -64,15 +69,21 @@ public class MmsHttpClient {
     public static final String METHOD_POST = "POST";
     public static final String METHOD_GET = "GET";
 
+    // MMS config, copied from the carrier config: whether the MMSC is known to handle compressed
+    // responses, so that downloads can advertise gzip and deflate
+    static final String KEY_MMS_HTTP_COMPRESSION_BOOL = "mms_http_compression_bool";
+
+    // Size of the buffer used to read a response body
+    private static final int STREAMING_BUFFER_SIZE = 16 * 1024;
+    // Largest Content-Length trusted to allocate the response up front
+    private static final int MAX_PRESIZED_RESPONSE_SIZE = 8 * 1024 * 1024;
+    // Status of a Range request the server cannot serve
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
-    private static final String HEADER_ACCEPT = "Accept";
-    private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
-    private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     private static final String HEADER_CONNECTION = "Connection";
 
-    // The "Accept" header value
-    private static final String HEADER_VALUE_ACCEPT =
-            "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
     // The "Content-Type" header value
     private static final String HEADER_VALUE_CONTENT_TYPE_WITH_CHARSET =
             "application/vnd.wap.mms-message; charset=utf-8";
@@ -80,11 +91,8 @@ public class MmsHttpClient {
             "application/vnd.wap.mms-message";
     private static final String HEADER_CONNECTION_CLOSE = "close";
 
-    // Used for configs that specify a UA_PROF_URL, but not a name
-    private static final String UA_PROF_TAG_NAME_DEFAULT = "x-wap-profile";
-
-    private static final int IPV4_WAIT_ATTEMPTS = 15;
-    private static final long IPV4_WAIT_DELAY_MS = 1000; // 1 seconds
+    // Time a request to an IPv4 literal waits for IPv4 on an IPv6-only network
+    private static final long IPV4_WAIT_TIMEOUT_MS = 15 * 1000; // 15 seconds
 
     private final Context mContext;
     private final Network mNetwork;
@@ -94,6 +102,46 @@ public class MmsHttpClient {
     private final Set<HttpURLConnection> mAllUrlConnections = ConcurrentHashMap.newKeySet();
     /** Flag indicating whether a disconnection is voluntary. */
     private final AtomicBoolean mVoluntarilyDisconnectingConnections = new AtomicBoolean(false);
+    /** Set once the network is gone, connections are no longer left open for reuse then. */
+    private volatile boolean mClosed;
+    private final ConnectionReuseTracker mConnectionReuseTracker;
+    private final MmsDnsCache mDnsCache;
+    private final Ipv4WaitStats mIpv4WaitStats;
+
+    /**
+     * Body of a POST request, written to the connection when the request is sent.
+     */
+    public interface RequestBody {
+        /**
+         * @return the length of the body in bytes
+         */
+        long getLength();
+
+        /**
+         * Write the whole body. Called once per HTTP request.
+         *
+         * @param out the request stream of the connection
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class ByteArrayRequestBody implements RequestBody {
+        private final byte[] mPdu;
+
+        ByteArrayRequestBody(byte[] pdu) {
+            mPdu = pdu;
+        }
+
+        @Override
+        public long getLength() {
+            return mPdu.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mPdu);
+        }
+    }
 
     /**
      * Constructor
@@ -103,11 +151,33 @@ public class MmsHttpClient {
      */
     public MmsHttpClient(Context context, Network network,
             ConnectivityManager connectivityManager) {
+        this(context, network, connectivityManager, new ConnectionReuseTracker(),
+                new MmsDnsCache(network), new Ipv4WaitStats());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context The Context object
+     * @param network The Network for creating an OKHttp client
+     * @param connectionReuseTracker Tracks the connections kept open, shared by the successive
+     *                               clients of a subscription
+     * @param dnsCache The cache of the hosts resolved on the network
+     * @param ipv4WaitStats Counts the waits for IPv4, shared by the successive clients of a
+     *                      subscription
+     */
+    public MmsHttpClient(Context context, Network network,
+            ConnectivityManager connectivityManager,
+            ConnectionReuseTracker connectionReuseTracker, MmsDnsCache dnsCache,
+            Ipv4WaitStats ipv4WaitStats) {
         mContext = context;
         // Mms server is on a carrier private network so it may not be resolvable using 3rd party
         // private dns
         mNetwork = network.getPrivateDnsBypassingCopy();
         mConnectivityManager = connectivityManager;
+        mConnectionReuseTracker = connectionReuseTracker;
+        mDnsCache = dnsCache;
+        mIpv4WaitStats = ipv4WaitStats;
     }
 
     /**
@@ -129,65 +199,136 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId)
             throws MmsHttpException {
+        return execute(urlString, pdu, method, isProxySet, proxyHost, proxyPort, mmsConfig, subId,
+                requestId, null /* cancellationSignal */);
+    }
+
+    /**
+     * Execute an MMS HTTP request that can be aborted through a {@link CancellationSignal}.
+     * Cancelling the signal disconnects the connection of this request only, which makes the
+     * transaction fail with an {@link MmsHttpException} right away.
+     *
+     * @see #execute(String, byte[], String, boolean, String, int, Bundle, int, String)
+     * @param cancellationSignal signal to abort the request, or null
+     */
+    public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            CancellationSignal cancellationSignal) throws MmsHttpException {
+        return execute(urlString, pdu != null ? new ByteArrayRequestBody(pdu) : null, method,
+                isProxySet, proxyHost, proxyPort, mmsConfig, subId, requestId,
+                cancellationSignal, null /* responseOut */, null /* partialResponse */,
+                0 /* maxResponseSize */);
+    }
+
+    /**
+     * Execute an MMS HTTP POST whose PDU is streamed into the connection, so that the PDU does
+     * not need to be held in memory.
+     *
+     * @see #execute(String, byte[], String, boolean, String, int, Bundle, int, String,
+     *      CancellationSignal)
+     * @param body the PDU to send
+     */
+    public byte[] execute(String urlString, RequestBody body, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            CancellationSignal cancellationSignal) throws MmsHttpException {
+        return execute(urlString, body, METHOD_POST, isProxySet, proxyHost, proxyPort,
+                mmsConfig, subId, requestId, cancellationSignal, null /* responseOut */,
+                null /* partialResponse */, 0 /* maxResponseSize */);
+    }
+
+    /**
+     * Execute an MMS HTTP GET whose response body is streamed into responseOut rather than
+     * returned, so that the PDU does not need to be held in memory. The transfer is aborted as
+     * soon as the response turns out to be larger than maxResponseSize.
+     *
+     * @see #execute(String, byte[], String, boolean, String, int, Bundle, int, String,
+     *      CancellationSignal)
+     * @param responseOut the stream the response body is written to
+     * @param maxResponseSize the maximum size of the response body
+     */
+    public void executeGet(String urlString, boolean isProxySet, String proxyHost,
+            int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            CancellationSignal cancellationSignal, OutputStream responseOut,
+            long maxResponseSize) throws MmsHttpException {
+        execute(urlString, null /* body */, METHOD_GET, isProxySet, proxyHost, proxyPort,
+                mmsConfig, subId, requestId, cancellationSignal, responseOut,
+                null /* partialResponse */, maxResponseSize);
+    }
+
+    /**
+     * Execute an MMS HTTP GET whose response body is written to a file that is kept when the
+     * transfer is interrupted. If part of the body was received by a previous call with the
+     * same partialResponse, only the rest of it is requested.
+     *
+     * @see #execute(String, byte[], String, boolean, String, int, Bundle, int, String,
+     *      CancellationSignal)
+     * @param partialResponse holds the response body, complete once this returns
+     * @param maxResponseSize the maximum size of the response body
+     */
+    public void executeGet(String urlString, boolean isProxySet, String proxyHost,
+            int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            CancellationSignal cancellationSignal, PartialResponse partialResponse,
+            long maxResponseSize) throws MmsHttpException {
+        execute(urlString, null /* body */, METHOD_GET, isProxySet, proxyHost, proxyPort,
+                mmsConfig, subId, requestId, cancellationSignal, null /* responseOut */,
+                partialResponse, maxResponseSize);
+    }
+
+    private byte[] execute(String urlString, RequestBody body, String method,
+            boolean isProxySet, String proxyHost, int proxyPort, Bundle mmsConfig, int subId,
+            String requestId, CancellationSignal cancellationSignal, OutputStream responseOut,
+            PartialResponse partialResponse, long maxResponseSize) throws MmsHttpException {
         LogUtil.d(requestId, "HTTP: " + method + " " + redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + (body != null ? body.getLength() : 0));
         checkMethod(method);
         HttpURLConnection connection = null;
+        String origin = null;
+        // The proxy host the connection goes to, if any. The MMSC is resolved by the network
+        // when connecting, by its name.
+        final String resolvedHost = isProxySet ? proxyHost : null;
+        // Whether the connection can be left open for the next request, once the response is
+        // read entirely
+        boolean keepAlive = false;
         try {
             Proxy proxy = Proxy.NO_PROXY;
             if (isProxySet) {
                 proxy = new Proxy(Proxy.Type.HTTP,
-                        new InetSocketAddress(mNetwork.getByName(proxyHost), proxyPort));
+                        new InetSocketAddress(mDnsCache.getByName(proxyHost), proxyPort));
             }
             final URL url = new URL(urlString);
             maybeWaitForIpv4(requestId, url);
             // Now get the connection
             connection = (HttpURLConnection) mNetwork.openConnection(url, proxy);
             if (connection != null) mAllUrlConnections.add(connection);
+            origin = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort()
+                    + (isProxySet ? " via " + proxyHost + ":" + proxyPort : "");
+            if (mConnectionReuseTracker.onConnectionOpened(origin)) {
+                LogUtil.d(requestId, "HTTP: likely reusing a connection");
+            }
+            if (cancellationSignal != null) {
+                // Called right away if the request is already cancelled
+                final HttpURLConnection cancellableConnection = connection;
+                cancellationSignal.setOnCancelListener(() -> {
+                    LogUtil.d(requestId, "HTTP: cancelled, disconnecting");
+                    cancellableConnection.disconnect();
+                });
+            }
             connection.setDoInput(true);
             connection.setConnectTimeout(
                     mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
             connection.setReadTimeout(
                     mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
             // ------- COMMON HEADERS ---------
-            // Header: Accept
-            connection.setRequestProperty(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
-            // Header: Accept-Language
-            connection.setRequestProperty(
-                    HEADER_ACCEPT_LANGUAGE, getCurrentAcceptLanguage(Locale.getDefault()));
-            // Header: User-Agent
-            final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
-            LogUtil.i(requestId, "HTTP: User-Agent=" + userAgent);
-            connection.setRequestProperty(HEADER_USER_AGENT, userAgent);
-            // Header: x-wap-profile
-            String uaProfUrlTagName =
-                    mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
-            final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
-
-            if (!TextUtils.isEmpty(uaProfUrl)) {
-                if (TextUtils.isEmpty(uaProfUrlTagName)) {
-                    uaProfUrlTagName = UA_PROF_TAG_NAME_DEFAULT;
-                }
-
-                LogUtil.i(requestId,
-                        "HTTP: UaProfUrl=" + uaProfUrl + ", UaProfUrlTagName=" + uaProfUrlTagName);
-
-                connection.setRequestProperty(uaProfUrlTagName, uaProfUrl);
-            }
-            // Header: Connection: close (if needed)
-            // Some carriers require that the HTTP connection's socket is closed
-            // after an MMS request/response is complete. In these cases keep alive
-            // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
-            if (mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false)) {
-                LogUtil.i(requestId, "HTTP: Connection close after request");
-                connection.setRequestProperty(HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
-            }
-            // Add extra headers specified by mms_config.xml's httpparams
-            addExtraHeaders(connection, mmsConfig, subId);
+            // Built once per subscription, only the macros are resolved for each request
+            HttpHeaderTemplate.get(subId, mmsConfig, Locale.getDefault()).apply(connection,
+                    macro -> MacroValueCache.getInstance().get(macro, mmsConfig, subId,
+                            (m, config, id) -> getMacroValue(mContext, m, config, id)));
+            final boolean acceptCompressed = METHOD_GET.equals(method)
+                    && mmsConfig.getBoolean(KEY_MMS_HTTP_COMPRESSION_BOOL, false);
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (body == null || body.getLength() < 1) {
                     LogUtil.e(requestId, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
@@ -203,14 +344,22 @@ public class MmsHttpClient {
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode(body.getLength());
                 // Sending request body
                 final OutputStream out =
                         new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
+                body.writeTo(out);
                 out.flush();
                 out.close();
             } else if (METHOD_GET.equals(method)) {
+                if (acceptCompressed) {
+                    // Set explicitly, so the body is handed over as received and decoded here
+                    connection.setRequestProperty(HEADER_ACCEPT_ENCODING,
+                            ResponseEncoding.ACCEPT_ENCODING);
+                }
+                if (partialResponse != null) {
+                    partialResponse.prepareRequest(connection, requestId);
+                }
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
@@ -224,19 +373,94 @@ public class MmsHttpClient {
                 logHttpHeaders(connection.getHeaderFields(), requestId);
             }
             if (responseCode / 100 != 2) {
+                if (partialResponse != null
+                        && responseCode == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    partialResponse.onRangeNotSatisfiable(requestId);
+                }
                 throw new MmsHttpException(responseCode, responseMessage);
             }
-            final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            // The size limits apply to the decoded body, whose length is not known up front
+            final String contentEncoding =
+                    acceptCompressed ? connection.getContentEncoding() : null;
+            final boolean encoded = ResponseEncoding.isCompressed(contentEncoding);
+            final long contentLength = encoded ? -1 : connection.getContentLengthLong();
+            if (responseOut != null && contentLength > maxResponseSize) {
+                throw new ResponseTooLargeMmsHttpException(
+                        "Response of " + contentLength + " bytes is too large");
+            }
+            final ResponseEncoding.CountingInputStream received =
+                    new ResponseEncoding.CountingInputStream(connection.getInputStream());
+            final InputStream in =
+                    encoded ? ResponseEncoding.decode(contentEncoding, received) : received;
+            if (partialResponse != null) {
+                partialResponse.readResponse(connection, in, maxResponseSize, encoded,
+                        requestId);
+                in.close();
+                logResponseSize(requestId, subId, acceptCompressed, encoded,
+                        received.getCount(), partialResponse.getLength());
+                keepAlive = canKeepAlive(connection, mmsConfig);
+                return null;
+            }
+            if (responseOut != null) {
+                final byte[] buf = BufferPool.getInstance().acquire(STREAMING_BUFFER_SIZE);
+                long size = 0;
+                try {
+                    int count = 0;
+                    while ((count = in.read(buf)) > 0) {
+                        size += count;
+                        if (size > maxResponseSize) {
+                            throw new ResponseTooLargeMmsHttpException(
+                                    "Response larger than " + maxResponseSize + " bytes");
+                        }
+                        responseOut.write(buf, 0, count);
+                    }
+                } finally {
+                    BufferPool.getInstance().release(buf);
+                }
+                in.close();
+                responseOut.flush();
+                logResponseSize(requestId, subId, acceptCompressed, encoded,
+                        received.getCount(), size);
+                keepAlive = canKeepAlive(connection, mmsConfig);
+                return null;
+            }
+            final byte[] responseBody;
+            if (contentLength > 0 && contentLength <= MAX_PRESIZED_RESPONSE_SIZE) {
+                // Read straight into a buffer of the announced size
+                final byte[] bytes = new byte[(int) contentLength];
+                int size = 0;
+                int count = 0;
+                while (size < bytes.length
+                        && (count = in.read(bytes, size, bytes.length - size)) > 0) {
+                    size += count;
+                }
+                responseBody = size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+            } else {
+                // A small body can decode to a huge one, so cap what is decoded
+                final int maxMessageSize =
+                        mmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+                final long maxSize =
+                        encoded && maxMessageSize > 0 ? maxMessageSize : Long.MAX_VALUE;
+                final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                final byte[] buf = BufferPool.getInstance().acquire(STREAMING_BUFFER_SIZE);
+                try {
+                    int count = 0;
+                    while ((count = in.read(buf)) > 0) {
+                        if (byteOut.size() + count > maxSize) {
+                            throw new ResponseTooLargeMmsHttpException(
+                                    "Decoded response larger than " + maxSize + " bytes");
+                        }
+                        byteOut.write(buf, 0, count);
+                    }
+                } finally {
+                    BufferPool.getInstance().release(buf);
+                }
+                responseBody = byteOut.toByteArray();
             }
             in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            LogUtil.d(requestId, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
+            logResponseSize(requestId, subId, acceptCompressed, encoded, received.getCount(),
+                    responseBody.length);
+            keepAlive = canKeepAlive(connection, mmsConfig);
             return responseBody;
         } catch (MalformedURLException e) {
             final String redactedUrl = redactUrlForNonVerbose(urlString);
@@ -247,7 +471,10 @@ public class MmsHttpClient {
             LogUtil.e(requestId, "HTTP: invalid URL protocol " + redactedUrl, e);
             throw new MmsHttpException(0/*statusCode*/, "Invalid URL protocol " + redactedUrl, e);
         } catch (IOException e) {
-            if (mVoluntarilyDisconnectingConnections.get()) {
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                LogUtil.d(requestId, "HTTP: request cancelled");
+                throw new MmsHttpException(0/*statusCode*/, "Request cancelled", e);
+            } else if (mVoluntarilyDisconnectingConnections.get()) {
                 // If in the process of voluntarily disconnecting all connections, the exception
                 // is casted as VoluntaryDisconnectMmsHttpException to indicate this attempt is
                 // cancelled rather than failure.
@@ -257,11 +484,25 @@ public class MmsHttpClient {
                         "Expected disconnection due to WLAN network available");
             } else {
                 LogUtil.e(requestId, "HTTP: IO failure ", e);
+                // The host may have moved, look it up again on the next attempt
+                if (resolvedHost != null) {
+                    mDnsCache.invalidate(resolvedHost);
+                }
                 throw new MmsHttpException(0/*statusCode*/, e);
             }
         } finally {
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(null);
+            }
             if (connection != null) {
-                connection.disconnect();
+                // The response stream is closed, which hands the connection back to the pool
+                // of the Network unless it is disconnected
+                keepAlive = keepAlive && !mClosed && !mVoluntarilyDisconnectingConnections.get()
+                        && (cancellationSignal == null || !cancellationSignal.isCanceled());
+                if (!keepAlive) {
+                    connection.disconnect();
+                }
+                mConnectionReuseTracker.onConnectionReleased(origin, keepAlive);
                 mAllUrlConnections.remove(connection);
                 // If all connections are done disconnected, flag voluntary disconnection done if
                 // applicable.
@@ -273,6 +514,38 @@ public class MmsHttpClient {
         }
     }
 
+    private static void logResponseSize(String requestId, int subId, boolean acceptCompressed,
+            boolean encoded, long receivedBytes, long decodedBytes) {
+        if (!encoded) {
+            LogUtil.d(requestId, "HTTP: response size=" + decodedBytes);
+        } else {
+            LogUtil.d(requestId, "HTTP: response size=" + decodedBytes + ", received "
+                    + receivedBytes + " bytes encoded");
+        }
+        if (acceptCompressed) {
+            ResponseEncoding.getInstance().record(subId, encoded, receivedBytes, decodedBytes);
+        }
+    }
+
+    /**
+     * @return whether the connection of a response read entirely can be reused, which is the
+     * case unless the carrier or the server asked to close it
+     */
+    private static boolean canKeepAlive(HttpURLConnection connection, Bundle mmsConfig) {
+        return !mmsConfig.getBoolean(CarrierConfigManager.KEY_MMS_CLOSE_CONNECTION_BOOL, false)
+                && !HEADER_CONNECTION_CLOSE.equalsIgnoreCase(
+                        connection.getHeaderField(HEADER_CONNECTION));
+    }
+
+    /**
+     * Stop leaving connections open for reuse, once the network of the client is lost.
+     * Requests in progress are not interrupted.
+     */
+    public void close() {
+        mClosed = true;
+        mConnectionReuseTracker.clear();
+    }
+
     /**
      * Voluntarily disconnect all Http URL connections. This will trigger
      * {@link VoluntaryDisconnectMmsHttpException} to be thrown, to indicate voluntary disconnection
@@ -300,24 +573,82 @@ public class MmsHttpClient {
             // Not an IPv4 address.
             return;
         }
-        for (int i = 0; i < IPV4_WAIT_ATTEMPTS; i++) {
-            final LinkProperties lp = mConnectivityManager.getLinkProperties(mNetwork);
-            if (lp != null) {
-                if (!lp.isReachable(ipv4Literal)) {
-                    LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
-                    try {
-                        Thread.sleep(IPV4_WAIT_DELAY_MS);
-                    } catch (InterruptedException e) {
-                        // Ignore
-                    }
-                } else {
-                    LogUtil.i(requestId, "HTTP: IPv4 provisioned");
-                    break;
-                }
-            } else {
-                LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
-                break;
+        final LinkProperties lp = mConnectivityManager.getLinkProperties(mNetwork);
+        if (lp == null) {
+            LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
+            return;
+        }
+        if (lp.isReachable(ipv4Literal)) {
+            return;
+        }
+        LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
+        final long startMillis = SystemClock.elapsedRealtime();
+        final Ipv4Waiter waiter = new Ipv4Waiter(ipv4Literal);
+        boolean provisioned = false;
+        try {
+            // Delivers the current link properties right away, in case IPv4 was provisioned
+            // since they were read above
+            mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_MMS)
+                    .build(), waiter);
+            try {
+                provisioned = waiter.await(IPV4_WAIT_TIMEOUT_MS);
+            } finally {
+                mConnectivityManager.unregisterNetworkCallback(waiter);
             }
+        } catch (RuntimeException e) {
+            LogUtil.w(requestId, "HTTP: cannot watch the network for IPv4", e);
+        }
+        final long waitMillis = SystemClock.elapsedRealtime() - startMillis;
+        mIpv4WaitStats.onWaitFinished(waitMillis, provisioned);
+        LogUtil.i(requestId, "HTTP: IPv4 " + (provisioned ? "provisioned" : "not provisioned")
+                + " after waiting " + waitMillis + "ms");
+    }
+
+    /**
+     * Wakes the request waiting for IPv4 as soon as the MMS network can reach an IPv4 address,
+     * through CLAT for instance, or once the network is lost.
+     */
+    private class Ipv4Waiter extends ConnectivityManager.NetworkCallback {
+        private final Inet4Address mAddress;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mReachable;
+
+        Ipv4Waiter(Inet4Address address) {
+            mAddress = address;
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties lp) {
+            if (isMmsNetwork(network) && lp.isReachable(mAddress)) {
+                mReachable = true;
+                mDone.countDown();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (isMmsNetwork(network)) {
+                mDone.countDown();
+            }
+        }
+
+        // The callback hears about every MMS network, only the one of this client matters
+        private boolean isMmsNetwork(Network network) {
+            return network.getNetId() == mNetwork.getNetId();
+        }
+
+        /**
+         * @return whether the address became reachable before the timeout
+         */
+        boolean await(long timeoutMillis) {
+            try {
+                mDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mReachable;
         }
     }
 
@@ -399,73 +730,6 @@ public class MmsHttpClient {
         }
     }
 
-    /**
-     * Add extra HTTP headers from mms_config.xml's httpParams, which is a list of key/value
-     * pairs separated by "|". Each key/value pair is separated by ":". Value may contain
-     * macros like "##LINE1##" or "##NAI##" which is resolved with methods in this class
-     *
-     * @param connection The HttpURLConnection that we add headers to
-     * @param mmsConfig  The MmsConfig object
-     * @param subId      The subscription ID used to get line number, etc.
-     */
-    private void addExtraHeaders(HttpURLConnection connection, Bundle mmsConfig, int subId) {
-        final String extraHttpParams = mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
-        if (!TextUtils.isEmpty(extraHttpParams)) {
-            // Parse the parameter list
-            String paramList[] = extraHttpParams.split("\\|");
-            for (String paramPair : paramList) {
-                String splitPair[] = paramPair.split(":", 2);
-                if (splitPair.length == 2) {
-                    final String name = splitPair[0].trim();
-                    final String value =
-                            resolveMacro(mContext, splitPair[1].trim(), mmsConfig, subId);
-                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
-                        // Add the header if the param is valid
-                        connection.setRequestProperty(name, value);
-                    }
-                }
-            }
-        }
-    }
-
-    private static final Pattern MACRO_P = Pattern.compile("##(\\S+)##");
-
-    /**
-     * Resolve the macro in HTTP param value text
-     * For example, "something##LINE1##something" is resolved to "something9139531419something"
-     *
-     * @param value The HTTP param value possibly containing macros
-     * @param subId The subscription ID used to get line number, etc.
-     * @return The HTTP param with macros resolved to real value
-     */
-    private static String resolveMacro(Context context, String value, Bundle mmsConfig, int subId) {
-        if (TextUtils.isEmpty(value)) {
-            return value;
-        }
-        final Matcher matcher = MACRO_P.matcher(value);
-        int nextStart = 0;
-        StringBuilder replaced = null;
-        while (matcher.find()) {
-            if (replaced == null) {
-                replaced = new StringBuilder();
-            }
-            final int matchedStart = matcher.start();
-            if (matchedStart > nextStart) {
-                replaced.append(value.substring(nextStart, matchedStart));
-            }
-            final String macro = matcher.group(1);
-            final String macroValue = getMacroValue(context, macro, mmsConfig, subId);
-            if (macroValue != null) {
-                replaced.append(macroValue);
-            }
-            nextStart = matcher.end();
-        }
-        if (replaced != null && nextStart < value.length()) {
-            replaced.append(value.substring(nextStart));
-        }
-        return replaced == null ? value : replaced.toString();
-    }
-
     /**
      * Redact the URL for non-VERBOSE logging. Replace url with only the host part and the length
      * of the input URL string.
@@ -517,10 +781,11 @@ public class MmsHttpClient {
     // The phone number without country code
     private static final String MACRO_LINE1NOCOUNTRYCODE = "LINE1NOCOUNTRYCODE";
     // NAI (Network Access Identifier), used by Sprint for authentication
-    private static final String MACRO_NAI = "NAI";
+    static final String MACRO_NAI = "NAI";
 
     /**
-     * Return the HTTP param macro value.
+     * Return the HTTP param macro value, looked up afresh. Requests go through
+     * {@link MacroValueCache} instead.
      * Example: "LINE1" returns the phone number, etc.
      *
      * @param macro     The macro name
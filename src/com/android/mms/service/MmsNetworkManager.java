@@ -35,11 +35,15 @@ import android.provider.DeviceConfig;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.util.ArrayMap;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.mms.service.exception.MmsNetworkException;
 
+import java.io.PrintWriter;
+import java.util.Map;
+
 /**
  * Manages the MMS network connectivity
  */
@@ -83,6 +87,12 @@ public class MmsNetworkManager {
 
     // The MMS HTTP client for this network
     private MmsHttpClient mMmsHttpClient;
+    // Connections kept open by the successive clients, for dumpsys
+    private final ConnectionReuseTracker mConnectionReuseTracker = new ConnectionReuseTracker();
+    // Waits for IPv4 of the successive clients, for dumpsys
+    private final Ipv4WaitStats mIpv4WaitStats = new Ipv4WaitStats();
+    // The hosts resolved on the current network, dropped along with the MmsHttpClient
+    private MmsDnsCache mDnsCache;
 
     // The handler used for delayed release of the network
     private final Handler mReleaseHandler;
@@ -104,6 +114,22 @@ public class MmsNetworkManager {
     private int mNetworkReleaseTimeoutMillis;
     private EventHandler mEventHandler;
 
+    /**
+     * Callback for {@link #acquireNetworkAsync}. It may be invoked on any thread, so
+     * implementations must not block.
+     */
+    public interface NetworkAcquireCallback {
+        /** The MMS network is available. */
+        void onNetworkAcquired();
+
+        /** The MMS network could not be acquired. */
+        void onNetworkAcquireFailed(MmsNetworkException e);
+    }
+
+    // Callers of acquireNetworkAsync waiting for the network, mapped to their timeout tasks
+    private final ArrayMap<NetworkAcquireCallback, Runnable> mPendingAcquireCallbacks =
+            new ArrayMap<>();
+
     private final class EventHandler extends Handler {
         EventHandler() {
             super(Looper.getMainLooper());
@@ -155,6 +181,7 @@ public class MmsNetworkManager {
                         synchronized (MmsNetworkManager.this) {
                             releaseRequestLocked(mNetworkCallback);
                             MmsNetworkManager.this.notifyAll();
+                            notifyPendingAcquiresLocked();
                         }
                     }
                 }
@@ -229,7 +256,7 @@ public class MmsNetworkManager {
                 // Wait for other available network. Not notify.
                 if (network.equals(mNetwork)) {
                     mNetwork = null;
-                    mMmsHttpClient = null;
+                    closeHttpClientLocked();
                 }
             }
         }
@@ -241,6 +268,7 @@ public class MmsNetworkManager {
             synchronized (MmsNetworkManager.this) {
                 releaseRequestLocked(this);
                 MmsNetworkManager.this.notifyAll();
+                notifyPendingAcquiresLocked();
             }
         }
 
@@ -262,7 +290,7 @@ public class MmsNetworkManager {
                 if (network.equals(mNetwork) && !isAvailable) {
                     // Current network becomes suspended.
                     mNetwork = null;
-                    mMmsHttpClient = null;
+                    closeHttpClientLocked();
                     // Not notify. Either wait for other available network or current network to
                     // become available again.
                     return;
@@ -272,11 +300,14 @@ public class MmsNetworkManager {
                 if (isAvailable) {
                     if (mNetwork == null) {
                         mNetwork = network;
+                        prefetchProxyLocked(networkInfo);
                         MmsNetworkManager.this.notifyAll();
+                        notifyPendingAcquiresLocked();
                     } else if (mDeps.isMmsEnhancementEnabled()
                             // Iwlan network newly available, try send MMS over the new network.
                             && !mIsLastAvailableNetworkIwlan && isWlan) {
                         mNetwork = network;
+                        prefetchProxyLocked(networkInfo);
                         mEventHandler.sendEmptyMessage(EVENT_IWLAN_NETWORK_NEWLY_AVAILABLE);
                     }
                     mIsLastAvailableNetworkIwlan = isWlan;
@@ -422,12 +453,137 @@ public class MmsNetworkManager {
                 // TODO: Start new network request for remaining MmsRequests?
                 releaseRequestLocked(mNetworkCallback);
                 this.notifyAll();
+                notifyPendingAcquiresLocked();
             }
 
             throw new MmsNetworkException("Acquiring network failed");
         }
     }
 
+    /**
+     * Acquire the MMS network without blocking the calling thread. The callback is invoked once
+     * the network is available, or when acquiring it fails or times out. Like
+     * {@link #acquireNetwork}, every call must be balanced by {@link #releaseNetwork}, whatever
+     * the outcome.
+     *
+     * @param requestId request ID for logging
+     * @param callback  notified of the outcome
+     */
+    public void acquireNetworkAsync(final String requestId,
+            final NetworkAcquireCallback callback) {
+        final int networkRequestTimeoutMillis = mDeps.getNetworkRequestTimeoutMillis();
+
+        synchronized (this) {
+            // Since we are acquiring the network, remove the network release task if exists.
+            mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+            mMmsRequestCount += 1;
+            if (mNetwork == null) {
+                if (!mSimCardStateChangedReceiverRegistered) {
+                    mPhoneId = mDeps.getPhoneId(mSubId);
+                    if (mPhoneId == SubscriptionManager.INVALID_PHONE_INDEX
+                            || mPhoneId == SubscriptionManager.DEFAULT_PHONE_INDEX) {
+                        final MmsNetworkException e =
+                                new MmsNetworkException("Invalid Phone Id: " + mPhoneId);
+                        mEventHandler.post(() -> callback.onNetworkAcquireFailed(e));
+                        return;
+                    }
+
+                    // Register a receiver to listen to ACTION_SIM_CARD_STATE_CHANGED
+                    mContext.registerReceiver(
+                            mSimCardStateChangedReceiver,
+                            new IntentFilter(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED));
+                    mSimCardStateChangedReceiverRegistered = true;
+                }
+
+                // Not available, so start a new request if not done yet
+                if (mNetworkCallback == null) {
+                    LogUtil.d(requestId, "MmsNetworkManager: start new network request");
+                    startNewNetworkRequestLocked(networkRequestTimeoutMillis);
+                }
+
+                final Runnable timeoutTask =
+                        () -> onAcquireTimeout(requestId, callback, networkRequestTimeoutMillis);
+                mPendingAcquireCallbacks.put(callback, timeoutTask);
+                mEventHandler.postDelayed(timeoutTask, networkRequestTimeoutMillis
+                        + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+                return;
+            }
+        }
+        // Already available
+        LogUtil.d(requestId, "MmsNetworkManager: already available");
+        callback.onNetworkAcquired();
+    }
+
+    /**
+     * Give up on a network acquisition started with {@link #acquireNetworkAsync}. The callback
+     * is notified of the failure right away unless it has been notified already. The caller
+     * must still call {@link #releaseNetwork}.
+     *
+     * @param callback the callback passed to {@link #acquireNetworkAsync}
+     */
+    public void cancelAcquire(NetworkAcquireCallback callback) {
+        synchronized (this) {
+            final Runnable timeoutTask = mPendingAcquireCallbacks.remove(callback);
+            if (timeoutTask == null) {
+                // Already notified
+                return;
+            }
+            mEventHandler.removeCallbacks(timeoutTask);
+        }
+        callback.onNetworkAcquireFailed(new MmsNetworkException("Acquiring network cancelled"));
+    }
+
+    private void onAcquireTimeout(String requestId, NetworkAcquireCallback callback,
+            int networkRequestTimeoutMillis) {
+        synchronized (this) {
+            if (mPendingAcquireCallbacks.remove(callback) == null) {
+                // Already notified
+                return;
+            }
+            LogUtil.e(requestId, "MmsNetworkManager: timed out with networkRequestTimeoutMillis="
+                    + networkRequestTimeoutMillis
+                    + " and ADDITIONAL_NETWORK_ACQUIRE_TIMEOUT_MILLIS="
+                    + mDeps.getAdditionalNetworkAcquireTimeoutMillis());
+            // Release the network request and fail all the waiting MmsRequests together.
+            if (mNetworkCallback != null) {
+                releaseRequestLocked(mNetworkCallback);
+                this.notifyAll();
+            }
+            notifyPendingAcquiresLocked();
+        }
+        callback.onNetworkAcquireFailed(new MmsNetworkException("Acquiring network failed"));
+    }
+
+    /**
+     * Notify the callers of {@link #acquireNetworkAsync} once the outcome of the network request
+     * is known: either the network is available, or the request has been released.
+     */
+    private void notifyPendingAcquiresLocked() {
+        if (mPendingAcquireCallbacks.isEmpty()
+                || (mNetwork == null && mNetworkCallback != null)) {
+            // Nobody waiting, or still waiting for the network
+            return;
+        }
+        final boolean acquired = mNetwork != null;
+        for (Map.Entry<NetworkAcquireCallback, Runnable> entry
+                : mPendingAcquireCallbacks.entrySet()) {
+            final NetworkAcquireCallback callback = entry.getKey();
+            mEventHandler.removeCallbacks(entry.getValue());
+            if (acquired) {
+                mEventHandler.post(callback::onNetworkAcquired);
+            } else {
+                mEventHandler.post(() -> callback.onNetworkAcquireFailed(
+                        new MmsNetworkException("Acquiring network failed")));
+            }
+        }
+        mPendingAcquireCallbacks.clear();
+
+        if (mSimCardStateChangedReceiverRegistered) {
+            mContext.unregisterReceiver(mSimCardStateChangedReceiver);
+            mSimCardStateChangedReceiverRegistered = false;
+        }
+    }
+
     /**
      * Release the MMS network when nobody is holding on to it.
      *
@@ -462,6 +618,21 @@ public class MmsNetworkManager {
         }
     }
 
+    /**
+     * Release the MMS network regardless of the requests still holding it, e.g. when the service
+     * is destroyed.
+     */
+    public void releaseAllNetworks() {
+        synchronized (this) {
+            mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+            if (mNetworkCallback != null) {
+                LogUtil.i("MmsNetworkManager: releasing network held by " + mMmsRequestCount
+                        + " requests");
+            }
+            releaseRequestLocked(mNetworkCallback);
+        }
+    }
+
     /**
      * Start a new {@link android.net.NetworkRequest} for MMS
      */
@@ -503,7 +674,7 @@ public class MmsNetworkManager {
         mNetworkCallback = null;
         mNetwork = null;
         mMmsRequestCount = 0;
-        mMmsHttpClient = null;
+        closeHttpClientLocked();
     }
 
     private @NonNull ConnectivityManager getConnectivityManager() {
@@ -531,7 +702,48 @@ public class MmsNetworkManager {
     // Create new MmsHttpClient for the current Network
     private void populateHttpClientWithCurrentNetwork() {
         if (mNetwork != null) {
-            mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager);
+            mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager,
+                    mConnectionReuseTracker, getDnsCacheLocked(), mIpv4WaitStats);
+        }
+    }
+
+    // The DNS cache of the current network, which must not be null
+    private MmsDnsCache getDnsCacheLocked() {
+        if (mDnsCache == null || !mDnsCache.getNetwork().equals(mNetwork)) {
+            mDnsCache = new MmsDnsCache(mNetwork);
+        }
+        return mDnsCache;
+    }
+
+    /**
+     * Start resolving the proxy of the MMS APN as soon as the network is available, so that
+     * the lookup overlaps with the rest of the setup of the requests.
+     *
+     * @param networkInfo the info of the network, whose extra info is the APN name
+     */
+    private void prefetchProxyLocked(NetworkInfo networkInfo) {
+        getDnsCacheLocked().prefetchProxy(mContext,
+                networkInfo != null ? networkInfo.getExtraInfo() : null, mSubId);
+    }
+
+    // Drop the MmsHttpClient of a network that is gone, along with its idle connections and
+    // resolved hosts
+    private void closeHttpClientLocked() {
+        if (mMmsHttpClient != null) {
+            mMmsHttpClient.close();
+            mMmsHttpClient = null;
+        }
+        mDnsCache = null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("subId=" + mSubId + " network=" + mNetwork + " connections: ");
+        mConnectionReuseTracker.dump(pw);
+        pw.print("    ipv4: ");
+        mIpv4WaitStats.dump(pw);
+        if (mDnsCache != null) {
+            pw.print("    dns: ");
+            mDnsCache.dump(pw);
         }
     }
 
@@ -25,6 +25,9 @@ import android.net.Uri;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.CarrierMessagingServiceWrapper.CarrierMessagingCallback;
 import android.telephony.AnomalyReporter;
@@ -37,21 +40,27 @@ import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
 
+import com.android.mms.JournaledRequest;
 import com.android.mms.service.exception.ApnException;
 import com.android.mms.service.exception.MmsHttpException;
 import com.android.mms.service.exception.MmsNetworkException;
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
 import com.android.mms.service.exception.VoluntaryDisconnectMmsHttpException;
 import com.android.mms.service.metrics.MmsStats;
 
+import java.io.Closeable;
+import java.net.HttpURLConnection;
 import java.util.UUID;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Base class for MMS requests. This has the common logic of sending/downloading MMS.
  */
 public abstract class MmsRequest {
-    private static final int RETRY_TIMES = 3;
+    static final int RETRY_TIMES = 3;
     // Signal level threshold for both wifi and cellular
     private static final int SIGNAL_LEVEL_THRESHOLD = 2;
     public static final String EXTRA_LAST_CONNECTION_FAILURE_CAUSE_CODE
@@ -59,6 +68,33 @@ public abstract class MmsRequest {
     public static final String EXTRA_HANDLED_BY_CARRIER_APP
             = "android.telephony.extra.HANDLED_BY_CARRIER_APP";
 
+    // Scheduling classes, in order of precedence. Small control PDUs that complete a
+    // transaction with the MMSC (m-notifyresp-ind, m-acknowledge-ind, read reports) go first,
+    // then sends started by the user, then downloads.
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_USER = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    // Why a request was cancelled
+    static final int CANCEL_REASON_NONE = 0;
+    static final int CANCEL_REASON_REQUESTED = 1;
+    static final int CANCEL_REASON_DEADLINE = 2;
+    static final int CANCEL_REASON_SHUTDOWN = 3;
+
+    // How long a request of each class is held back behind a control PDU enqueued at the same
+    // time. Because the offset is fixed, a request that has waited longer than the offset runs
+    // ahead of newly arriving higher priority requests, so nothing starves.
+    private static final long[] PRIORITY_AGING_OFFSET_MILLIS = {
+            0L,                 // PRIORITY_CONTROL
+            5 * 1000L,          // PRIORITY_USER
+            60 * 1000L,         // PRIORITY_BACKGROUND
+    };
+    // Large payloads are pushed back by this much per PAYLOAD_SIZE_STEP_BYTES, up to
+    // MAX_PAYLOAD_SIZE_PENALTY_MILLIS, so that small sends are not stuck behind big uploads.
+    private static final long PAYLOAD_SIZE_STEP_BYTES = 100 * 1024;
+    private static final long PAYLOAD_SIZE_PENALTY_MILLIS = 1000L;
+    private static final long MAX_PAYLOAD_SIZE_PENALTY_MILLIS = 30 * 1000L;
+
     /**
      * Interface for certain functionalities from MmsService
      */
@@ -90,6 +126,20 @@ public abstract class MmsRequest {
          * @return true in case of success (else false)
          */
         public boolean writePduToContentUri(final Uri contentUri, final byte[] pdu);
+
+        /**
+         * @return the executor transferring PDUs with the content providers of MMS apps
+         */
+        public PduTransferExecutor getPduTransferExecutor();
+
+        /**
+         * Report the outcome of an HTTP transaction with the MMSC, so that the number of
+         * concurrent requests can be adapted to what the MMSC sustains
+         * @param subId the subscription of the transaction
+         * @param statusCode HTTP status code, or 0 if no response was received
+         * @param latencyMillis how long the transaction took
+         */
+        public void onHttpTransactionCompleted(int subId, int statusCode, long latencyMillis);
     }
 
     // The reference to the pending requests manager (i.e. the MmsService)
@@ -107,6 +157,10 @@ public abstract class MmsRequest {
     private MmsStats mMmsStats;
     private int result;
     private int httpStatusCode;
+    // The time the request was handed to the scheduler, used to track queueing delay
+    private long mEnqueueTimeMillis;
+    // Admission order, used to keep requests with the same scheduling key in FIFO order
+    private long mEnqueueSequence;
 
     protected enum MmsRequestState {
         Unknown,
@@ -154,119 +208,509 @@ public abstract class MmsRequest {
         return mSubId;
     }
 
+    public long getEnqueueTimeMillis() {
+        return mEnqueueTimeMillis;
+    }
+
+    /**
+     * Record when the request was handed to the scheduler.
+     *
+     * @param enqueueTimeMillis elapsed realtime of the admission
+     * @param sequence monotonically increasing admission number
+     */
+    public void markEnqueued(long enqueueTimeMillis, long sequence) {
+        mEnqueueTimeMillis = enqueueTimeMillis;
+        mEnqueueSequence = sequence;
+    }
+
+    /**
+     * @return the key the scheduler orders requests by; the lowest key runs first. It is the
+     * admission time pushed back according to the priority class and the payload size.
+     */
+    public long getSchedulingKey() {
+        final long sizeHint = getPayloadSizeHint();
+        final long sizePenalty = sizeHint > 0 ? Math.min(MAX_PAYLOAD_SIZE_PENALTY_MILLIS,
+                sizeHint / PAYLOAD_SIZE_STEP_BYTES * PAYLOAD_SIZE_PENALTY_MILLIS) : 0;
+        return mEnqueueTimeMillis + PRIORITY_AGING_OFFSET_MILLIS[getPriority()] + sizePenalty;
+    }
+
+    /**
+     * Orders requests by scheduling key, falling back to admission order.
+     */
+    public static int compareForScheduling(MmsRequest lhs, MmsRequest rhs) {
+        final int result = Long.compare(lhs.getSchedulingKey(), rhs.getSchedulingKey());
+        return result != 0 ? result : Long.compare(lhs.mEnqueueSequence, rhs.mEnqueueSequence);
+    }
+
+    /**
+     * Callback invoked when a request started with {@link #executeAsync} has completed and its
+     * result has been processed.
+     */
+    public interface CompletionListener {
+        void onRequestCompleted(MmsRequest request);
+    }
+
+    // Execution state of a running request. Steps of the request run one after another on
+    // mExecutor; while waiting for the network or for a retry no thread is held.
+    private Context mExecutionContext;
+    private MmsNetworkManager mNetworkManager;
+    private Executor mExecutor;
+    private Handler mRetryHandler;
+    private CompletionListener mCompletionListener;
+    private byte[] mResponse;
+    private int mRetryId;
+    private int mAttemptedTimes;
+    private long mRetryDelaySecs;
+    private MonitorTelephonyCallback mConnectionStateCallback;
+    private volatile MmsNetworkManager.NetworkAcquireCallback mAcquireCallback;
+
+    // Cancellation. A request is cancelled either explicitly or when its deadline, in
+    // elapsed realtime, passes; it then stops at the next step and is not retried.
+    private volatile long mDeadlineMillis = Long.MAX_VALUE;
+    private volatile int mCancelReason = CANCEL_REASON_NONE;
+    // Signal aborting the HTTP transaction in progress, if any
+    private volatile CancellationSignal mHttpCancellationSignal;
+    // Whether the retry back-off is in progress, guarded by this
+    private boolean mRetryScheduled;
+    private final Runnable mRetryRunnable = this::onRetryBackoffElapsed;
+    private final Runnable mDeadlineRunnable = () -> cancel(CANCEL_REASON_DEADLINE);
+    private final AtomicBoolean mCompleted = new AtomicBoolean(false);
+    // Memory reserved for the PDU before preparing the request, and charged for PDUs held in
+    // memory afterwards. Released once the result is processed.
+    private volatile PduMemoryBudget.Reservation mPduReservation;
+    private final AtomicReference<PduMemoryBudget.Reservation> mPduCharge =
+            new AtomicReference<>();
+
     /**
-     * Execute the request
+     * Execute the request as a sequence of steps over the {@link MmsRequestState} phases.
+     * Blocking work (reading the PDU, the HTTP transaction, processing the result) runs on the
+     * executor. Waiting for the MMS network and the retry back-off don't occupy a thread.
      *
      * @param context The context
      * @param networkManager The network manager to use
+     * @param executor The executor to run the steps of the request on
+     * @param retryHandler The handler used to schedule retries
+     * @param listener Notified once the request has completed
+     */
+    public void executeAsync(Context context, MmsNetworkManager networkManager,
+            Executor executor, Handler retryHandler, CompletionListener listener) {
+        mExecutionContext = context;
+        mNetworkManager = networkManager;
+        mExecutor = executor;
+        mRetryHandler = retryHandler;
+        mCompletionListener = listener;
+        if (mDeadlineMillis != Long.MAX_VALUE) {
+            mRetryHandler.postDelayed(mDeadlineRunnable,
+                    Math.max(0, mDeadlineMillis - SystemClock.elapsedRealtime()));
+        }
+        mExecutor.execute(this::prepare);
+    }
+
+    /**
+     * Set the time by which the request must have completed. Past the deadline, the request is
+     * cancelled wherever it is: waiting for the network, talking to the MMSC or backing off.
+     *
+     * @param deadlineMillis the deadline in elapsed realtime
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    public boolean isCancelled() {
+        return mCancelReason != CANCEL_REASON_NONE;
+    }
+
+    /**
+     * Cancel the request. A running request aborts its network acquisition or HTTP transaction
+     * and completes without further retries, freeing its worker. Has no effect on a request
+     * that is already cancelled.
+     *
+     * @param reason {@link #CANCEL_REASON_REQUESTED}, {@link #CANCEL_REASON_DEADLINE} or
+     *               {@link #CANCEL_REASON_SHUTDOWN}
+     */
+    public void cancel(int reason) {
+        final boolean wasBackingOff;
+        synchronized (this) {
+            if (mCancelReason != CANCEL_REASON_NONE) {
+                return;
+            }
+            mCancelReason = reason;
+            wasBackingOff = mRetryScheduled;
+            mRetryScheduled = false;
+        }
+        LogUtil.i(getRequestId(), "Cancelled " + (reason == CANCEL_REASON_DEADLINE
+                ? "at deadline" : reason == CANCEL_REASON_SHUTDOWN ? "on shutdown" : "on request"));
+        if (wasBackingOff) {
+            mRetryHandler.removeCallbacks(mRetryRunnable);
+            result = getCancelledResult();
+            mExecutor.execute(this::complete);
+            return;
+        }
+        final PduMemoryBudget.Reservation reservation = mPduReservation;
+        if (reservation != null && reservation.abandon()) {
+            // Was waiting for PDU memory
+            result = getCancelledResult();
+            mExecutor.execute(this::complete);
+            return;
+        }
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback = mAcquireCallback;
+        if (acquireCallback != null) {
+            mNetworkManager.cancelAcquire(acquireCallback);
+            // The outcome may already be posted to the network manager's handler but not
+            // delivered yet; don't wait for it
+            acquireCallback.onNetworkAcquireFailed(
+                    new MmsNetworkException("Acquiring network cancelled"));
+        }
+        cancelHttp();
+    }
+
+    /**
+     * @return whether the request is waiting for the MMS network or for its retry back-off,
+     * rather than preparing or talking to the MMSC
      */
-    public void execute(Context context, MmsNetworkManager networkManager) {
+    public synchronized boolean isWaiting() {
+        return mAcquireCallback != null || mRetryScheduled;
+    }
+
+    /**
+     * Complete a request that was cancelled before it started executing.
+     *
+     * @param context The context
+     * @param reason {@link #CANCEL_REASON_REQUESTED} or {@link #CANCEL_REASON_SHUTDOWN}
+     */
+    public void completeCancelledBeforeExecution(Context context, int reason) {
+        if (mCompleted.compareAndSet(false, true)) {
+            mCancelReason = reason;
+            processResult(context, getCancelledResult(), null, 0,
+                    /* handledByCarrierApp= */ false);
+        }
+    }
+
+    /**
+     * @return the result reported for a cancelled request: {@link Activity#RESULT_CANCELED} on
+     * explicit cancellation, {@link SmsManager#MMS_ERROR_RETRY} when the service shuts down, or
+     * the failure of the last attempt if the deadline passed
+     */
+    private int getCancelledResult() {
+        if (mCancelReason == CANCEL_REASON_REQUESTED) {
+            return Activity.RESULT_CANCELED;
+        }
+        if (mCancelReason == CANCEL_REASON_SHUTDOWN) {
+            return SmsManager.MMS_ERROR_RETRY;
+        }
+        if (result == Activity.RESULT_CANCELED || result == SmsManager.MMS_ERROR_UNSPECIFIED) {
+            // Never got to the MMSC in time
+            return SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+        }
+        return result;
+    }
+
+    private void prepare() {
         final String requestId = this.getRequestId();
         LogUtil.i(requestId, "Executing...");
         result = SmsManager.MMS_ERROR_UNSPECIFIED;
         httpStatusCode = 0;
-        byte[] response = null;
-        int retryId = 0;
+        mResponse = null;
+        mRetryId = 0;
+        mAttemptedTimes = 0;
         currentState = MmsRequestState.PrepareForHttpRequest;
-        int attemptedTimes = 0;
-        if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
-            LogUtil.e(requestId, "Failed to prepare for request");
+        if (isCancelled()) {
+            result = getCancelledResult();
+            complete();
+            return;
+        }
+        final long pduMemorySize = getPduMemorySize();
+        if (pduMemorySize > 0) {
+            final PduMemoryBudget budget = PduMemoryBudget.getInstance();
+            mPduReservation = budget.tryReserve(pduMemorySize);
+            if (mPduReservation == null) {
+                if (spillPdu()) {
+                    LogUtil.i(requestId, "PDU memory budget exhausted, not buffering the PDU");
+                    budget.recordSpill();
+                } else {
+                    // Proceeds once enough PDUs in flight are released
+                    LogUtil.i(requestId, "Waiting for " + pduMemorySize + " bytes of PDU memory");
+                    mPduReservation = budget.reserve(pduMemorySize,
+                            reservation -> mExecutor.execute(this::transferPduToPrepare));
+                    return;
+                }
+            }
+        }
+        transferPduToPrepare();
+    }
+
+    private void transferPduToPrepare() {
+        if (!transfersPduToPrepare()) {
+            onPrepared(prepareForHttpRequest());
+            return;
+        }
+        // Reading the PDU from the caller runs on the PDU transfer threads, and the request
+        // continues on its executor once done. A provider that does not deliver the PDU in time
+        // fails the request rather than hold a transfer thread.
+        mRequestManager.getPduTransferExecutor().execute("prepare", null /* uri */,
+                PduTransferExecutor.DEFAULT_TIMEOUT_MS, transfer -> {
+                    final Closeable descriptor = getPduDescriptor();
+                    if (descriptor != null) {
+                        transfer.setDescriptor(descriptor);
+                    }
+                    return prepareForHttpRequest();
+                },
+                prepared -> mExecutor.execute(() -> onPrepared(Boolean.TRUE.equals(prepared))));
+    }
+
+    /**
+     * Charge a PDU received into memory to the PDU memory budget, on top of what the request
+     * reserved to prepare. Never waits.
+     *
+     * @param bytes the size of the PDU, replacing the previous charge if any
+     */
+    protected void chargePduMemory(long bytes) {
+        final PduMemoryBudget.Reservation previous =
+                mPduCharge.getAndSet(PduMemoryBudget.getInstance().charge(bytes));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Release the PDU memory reserved or charged by the request.
+     */
+    private void releasePduMemory() {
+        final PduMemoryBudget.Reservation reservation = mPduReservation;
+        if (reservation != null) {
+            reservation.close();
+        }
+        final PduMemoryBudget.Reservation charge = mPduCharge.getAndSet(null);
+        if (charge != null) {
+            charge.close();
+        }
+    }
+
+    private void onPrepared(boolean prepared) {
+        if (!prepared) { // Prepare request, like reading pdu data from user
+            LogUtil.e(getRequestId(), "Failed to prepare for request");
             result = SmsManager.MMS_ERROR_IO_ERROR;
-        } else { // Execute
-            long retryDelaySecs = 2;
-            // Try multiple times of MMS HTTP request, depending on the error.
-            while (retryId < RETRY_TIMES) {
-                httpStatusCode = 0; // Clear for retry.
-                MonitorTelephonyCallback connectionStateCallback = new MonitorTelephonyCallback();
-                try {
-                    listenToDataConnectionState(connectionStateCallback);
-                    currentState = MmsRequestState.AcquiringNetwork;
-                    networkManager.acquireNetwork(requestId);
-                    final String apnName = networkManager.getApnName();
-                    LogUtil.d(requestId, "APN name is " + apnName);
-                    ApnSettings apn = null;
-                    currentState = MmsRequestState.LoadingApn;
-                    try {
-                        apn = ApnSettings.load(context, apnName, mSubId, requestId);
-                    } catch (ApnException e) {
-                        // If no APN could be found, fall back to trying without the APN name
-                        if (apnName == null) {
-                            // If the APN name was already null then don't need to retry
-                            throw (e);
+            complete();
+            return;
+        }
+        // Try multiple times of MMS HTTP request, depending on the error.
+        mRetryDelaySecs = 2;
+        startAttempt();
+    }
+
+    private void startAttempt() {
+        if (isCancelled()) {
+            result = getCancelledResult();
+            complete();
+            return;
+        }
+        httpStatusCode = 0; // Clear for retry.
+        mConnectionStateCallback = new MonitorTelephonyCallback();
+        listenToDataConnectionState(mConnectionStateCallback);
+        currentState = MmsRequestState.AcquiringNetwork;
+        final AtomicBoolean notified = new AtomicBoolean(false);
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback =
+                new MmsNetworkManager.NetworkAcquireCallback() {
+                    @Override
+                    public void onNetworkAcquired() {
+                        // Cancellation may have notified the failure already
+                        if (notified.compareAndSet(false, true)) {
+                            mAcquireCallback = null;
+                            mExecutor.execute(() -> runAttempt(null));
                         }
-                        LogUtil.i(requestId, "No match with APN name: "
-                                + apnName + ", try with no name");
-                        apn = ApnSettings.load(context, null, mSubId, requestId);
                     }
-                    LogUtil.i(requestId, "Using " + apn.toString());
-                    currentState = MmsRequestState.DoingHttp;
-                    response = doHttp(context, networkManager, apn);
-                    result = Activity.RESULT_OK;
-                    // Success
-                    break;
-                } catch (ApnException e) {
-                    LogUtil.e(requestId, "APN failure", e);
-                    result = SmsManager.MMS_ERROR_INVALID_APN;
-                    break;
-                } catch (MmsNetworkException e) {
-                    LogUtil.e(requestId, "MMS network acquiring failure", e);
-                    result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
-                    break;
-                } catch (MmsHttpException e) {
-                    if (e instanceof VoluntaryDisconnectMmsHttpException) {
-                        result = Activity.RESULT_CANCELED;
-                    } else {
-                        LogUtil.e(requestId, "HTTP or network I/O failure", e);
-                        result = SmsManager.MMS_ERROR_HTTP_FAILURE;
-                    }
-                    httpStatusCode = e.getStatusCode();
-                    // Retry
-                } catch (Exception e) {
-                    LogUtil.e(requestId, "Unexpected failure", e);
-                    result = SmsManager.MMS_ERROR_UNSPECIFIED;
-                    break;
-                } finally {
-                    // Don't release the MMS network if the last attempt was voluntarily
-                    // cancelled (due to better network available), because releasing the request
-                    // could result that network being torn down as it's thought to be useless.
-                    boolean canRelease = false;
-                    if (result != Activity.RESULT_CANCELED) {
-                        retryId++;
-                        canRelease = true;
+
+                    @Override
+                    public void onNetworkAcquireFailed(MmsNetworkException e) {
+                        if (notified.compareAndSet(false, true)) {
+                            mAcquireCallback = null;
+                            mExecutor.execute(() -> runAttempt(e));
+                        }
                     }
-                    // Otherwise, delay the release for successful download request.
-                    networkManager.releaseNetwork(requestId, canRelease,
-                            this instanceof DownloadRequest && result == Activity.RESULT_OK);
+                };
+        mAcquireCallback = acquireCallback;
+        mNetworkManager.acquireNetworkAsync(getRequestId(), acquireCallback);
+        if (isCancelled()) {
+            // Cancelled while the acquisition was being started
+            mNetworkManager.cancelAcquire(acquireCallback);
+            acquireCallback.onNetworkAcquireFailed(
+                    new MmsNetworkException("Acquiring network cancelled"));
+        }
+    }
 
-                    stopListeningToDataConnectionState(connectionStateCallback);
-                }
+    private void onRetryBackoffElapsed() {
+        synchronized (this) {
+            if (!mRetryScheduled) {
+                // Cancelled meanwhile
+                return;
+            }
+            mRetryScheduled = false;
+        }
+        mExecutor.execute(this::startAttempt);
+    }
 
-                // THEORETICALLY WOULDN'T OCCUR - PUTTING HERE AS A SAFETY NET.
-                // TODO: REMOVE WITH FLAG mms_enhancement_enabled after soaking enough time, V-QPR.
-                // Only possible if network kept disconnecting due to Activity.RESULT_CANCELED,
-                // causing retryId doesn't increase and thus stuck in the infinite loop.
-                // However, it's theoretically impossible because RESULT_CANCELED is only triggered
-                // when a WLAN network becomes newly available in addition to an existing network.
-                // Therefore, the WLAN network's own death cannot be triggered by RESULT_CANCELED,
-                // and thus must result in retryId++.
-                if (++attemptedTimes > RETRY_TIMES * 2) {
-                    LogUtil.e(requestId, "Retry is performed too many times");
-                    reportAnomaly("MMS retried too many times",
-                            UUID.fromString("038c9155-5daa-4515-86ae-aafdd33c1435"));
-                    break;
+    /**
+     * Run one attempt once the network acquisition has finished.
+     *
+     * @param acquireFailure the reason the network could not be acquired, or null on success
+     */
+    private void runAttempt(MmsNetworkException acquireFailure) {
+        final String requestId = this.getRequestId();
+        final Context context = mExecutionContext;
+        final MmsNetworkManager networkManager = mNetworkManager;
+        boolean shouldRetry = false;
+        long httpStartTimeMillis = 0;
+        try {
+            if (acquireFailure != null) {
+                throw acquireFailure;
+            }
+            final String apnName = networkManager.getApnName();
+            LogUtil.d(requestId, "APN name is " + apnName);
+            ApnSettings apn = null;
+            currentState = MmsRequestState.LoadingApn;
+            try {
+                apn = ApnSettings.load(context, apnName, mSubId, requestId);
+            } catch (ApnException e) {
+                // If no APN could be found, fall back to trying without the APN name
+                if (apnName == null) {
+                    // If the APN name was already null then don't need to retry
+                    throw (e);
                 }
+                LogUtil.i(requestId, "No match with APN name: "
+                        + apnName + ", try with no name");
+                apn = ApnSettings.load(context, null, mSubId, requestId);
+            }
+            LogUtil.i(requestId, "Using " + apn.toString());
+            currentState = MmsRequestState.DoingHttp;
+            mHttpCancellationSignal = new CancellationSignal();
+            if (isCancelled()) {
+                throw new MmsNetworkException("Request cancelled");
+            }
+            httpStartTimeMillis = SystemClock.elapsedRealtime();
+            mResponse = doHttp(context, networkManager, apn);
+            if (reportsHttpTransactions()) {
+                mRequestManager.onHttpTransactionCompleted(mSubId, HttpURLConnection.HTTP_OK,
+                        SystemClock.elapsedRealtime() - httpStartTimeMillis);
+            }
+            result = Activity.RESULT_OK;
+            // Success
+        } catch (ApnException e) {
+            LogUtil.e(requestId, "APN failure", e);
+            result = SmsManager.MMS_ERROR_INVALID_APN;
+        } catch (MmsNetworkException e) {
+            LogUtil.e(requestId, "MMS network acquiring failure", e);
+            result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+        } catch (MmsHttpException e) {
+            if (e instanceof VoluntaryDisconnectMmsHttpException) {
+                result = Activity.RESULT_CANCELED;
+            } else if (e instanceof ResponseTooLargeMmsHttpException) {
+                // Rejected here rather than failed by the MMSC, which is not to be backed off
+                LogUtil.e(requestId, "HTTP response rejected", e);
+                result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+            } else {
+                LogUtil.e(requestId, "HTTP or network I/O failure", e);
+                result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+                // A transaction aborted by cancellation or the deadline says nothing about the
+                // MMSC
+                if (httpStartTimeMillis > 0 && reportsHttpTransactions() && !isCancelled()) {
+                    mRequestManager.onHttpTransactionCompleted(mSubId, e.getStatusCode(),
+                            SystemClock.elapsedRealtime() - httpStartTimeMillis);
+                }
+            }
+            httpStatusCode = e.getStatusCode();
+            // Retry, unless the response would be as large again
+            shouldRetry = !(e instanceof ResponseTooLargeMmsHttpException);
+        } catch (Exception e) {
+            LogUtil.e(requestId, "Unexpected failure", e);
+            result = SmsManager.MMS_ERROR_UNSPECIFIED;
+        } finally {
+            // Don't release the MMS network if the last attempt was voluntarily
+            // cancelled (due to better network available), because releasing the request
+            // could result that network being torn down as it's thought to be useless.
+            boolean canRelease = false;
+            if (result != Activity.RESULT_CANCELED) {
+                mRetryId++;
+                canRelease = true;
+            }
+            // Otherwise, delay the release for successful download request.
+            networkManager.releaseNetwork(requestId, canRelease,
+                    this instanceof DownloadRequest && result == Activity.RESULT_OK);
 
-                if (result != Activity.RESULT_CANCELED) {
-                    try { // Cool down retry if the previous attempt wasn't voluntarily cancelled.
-                        new CountDownLatch(1).await(retryDelaySecs, TimeUnit.SECONDS);
-                    } catch (InterruptedException e) { }
-                    // Double the cool down time if the next try fails again.
-                    retryDelaySecs <<= 1;
+            stopListeningToDataConnectionState(mConnectionStateCallback);
+            mHttpCancellationSignal = null;
+        }
+
+        if (isCancelled() && result != Activity.RESULT_OK) {
+            result = getCancelledResult();
+            complete();
+            return;
+        }
+
+        if (!shouldRetry) {
+            complete();
+            return;
+        }
+
+        // THEORETICALLY WOULDN'T OCCUR - PUTTING HERE AS A SAFETY NET.
+        // TODO: REMOVE WITH FLAG mms_enhancement_enabled after soaking enough time, V-QPR.
+        // Only possible if network kept disconnecting due to Activity.RESULT_CANCELED,
+        // causing retryId doesn't increase and thus stuck in the infinite loop.
+        // However, it's theoretically impossible because RESULT_CANCELED is only triggered
+        // when a WLAN network becomes newly available in addition to an existing network.
+        // Therefore, the WLAN network's own death cannot be triggered by RESULT_CANCELED,
+        // and thus must result in retryId++.
+        if (++mAttemptedTimes > getRetryTimes() * 2) {
+            LogUtil.e(requestId, "Retry is performed too many times");
+            reportAnomaly("MMS retried too many times",
+                    UUID.fromString("038c9155-5daa-4515-86ae-aafdd33c1435"));
+            complete();
+            return;
+        }
+
+        if (mRetryId >= getRetryTimes()) {
+            complete();
+            return;
+        }
+
+        if (result != Activity.RESULT_CANCELED) {
+            // Cool down retry if the previous attempt wasn't voluntarily cancelled.
+            final long retryDelayMillis = TimeUnit.SECONDS.toMillis(mRetryDelaySecs);
+            if (SystemClock.elapsedRealtime() + retryDelayMillis >= mDeadlineMillis) {
+                LogUtil.i(requestId, "No time left for another attempt before the deadline");
+                complete();
+                return;
+            }
+            final boolean cancelled;
+            synchronized (this) {
+                cancelled = isCancelled();
+                if (!cancelled) {
+                    mRetryScheduled = true;
+                    mRetryHandler.postDelayed(mRetryRunnable, retryDelayMillis);
                 }
             }
+            if (cancelled) {
+                result = getCancelledResult();
+                complete();
+                return;
+            }
+            // Double the cool down time if the next try fails again.
+            mRetryDelaySecs <<= 1;
+        } else {
+            startAttempt();
+        }
+    }
+
+    private void complete() {
+        if (!mCompleted.compareAndSet(false, true)) {
+            return;
+        }
+        mRetryHandler.removeCallbacks(mDeadlineRunnable);
+        try {
+            processResult(mExecutionContext, result, mResponse, httpStatusCode,
+                    /* handledByCarrierApp= */ false, mRetryId);
+        } finally {
+            mCompletionListener.onRequestCompleted(this);
         }
-        processResult(context, result, response, httpStatusCode, /* handledByCarrierApp= */ false,
-                retryId);
     }
 
     private void listenToDataConnectionState(MonitorTelephonyCallback connectionStateCallback) {
@@ -297,10 +741,35 @@ public abstract class MmsRequest {
         processResult(context, result, response, httpStatusCode, handledByCarrierApp, 0);
     }
 
-    private void processResult(Context context, int result, byte[] response, int httpStatusCode,
+    /**
+     * Process the result of the completed request, reporting how many times it was retried.
+     * @see #processResult(Context, int, byte[], int, boolean)
+     * @param retryId The number of retries done for the request
+     */
+    void processResult(Context context, int result, byte[] response, int httpStatusCode,
             boolean handledByCarrierApp, int retryId) {
-        final Uri messageUri = persistIfRequired(context, result, response);
+        try {
+            final Uri messageUri = persistIfRequired(context, result, response);
+            deliverResult(context, result, response, httpStatusCode, handledByCarrierApp,
+                    retryId, messageUri);
+            onResultProcessed(context, result, response, httpStatusCode, messageUri);
+        } finally {
+            releasePduMemory();
+        }
+    }
 
+    /**
+     * Send back the result of the request via its pending intent, without persisting anything.
+     * @param context The context
+     * @param result The result code of execution
+     * @param response The response body
+     * @param httpStatusCode The optional http status code in case of http failure
+     * @param handledByCarrierApp True if the request was handled by a carrier app
+     * @param retryId The number of retries done for the request
+     * @param messageUri The uri of the persisted message, if any
+     */
+    protected void deliverResult(Context context, int result, byte[] response,
+            int httpStatusCode, boolean handledByCarrierApp, int retryId, Uri messageUri) {
         final String requestId = this.getRequestId();
         currentState = result == Activity.RESULT_OK ? MmsRequestState.Success
                 : MmsRequestState.Failure;
@@ -346,6 +815,18 @@ public abstract class MmsRequest {
         revokeUriPermission(context);
     }
 
+    /**
+     * Called once the result has been persisted and delivered to the caller.
+     * @param context The context
+     * @param result The result code of execution
+     * @param response The response body
+     * @param httpStatusCode The optional http status code in case of http failure
+     * @param messageUri The uri of the persisted message, if any
+     */
+    protected void onResultProcessed(Context context, int result, byte[] response,
+            int httpStatusCode, Uri messageUri) {
+    }
+
     private void reportPossibleAnomaly(int result, int httpStatusCode) {
         switch (result) {
             case SmsManager.MMS_ERROR_HTTP_FAILURE:
@@ -478,6 +959,65 @@ public abstract class MmsRequest {
         return this.toString();
     }
 
+    /**
+     * @return the journal record of the request, or null if the request is not journaled
+     */
+    protected JournaledRequest toJournaledRequest() {
+        return null;
+    }
+
+    /**
+     * @return a journal record with the fields common to all requests
+     */
+    protected JournaledRequest.Builder newJournaledRequestBuilder(int type) {
+        final JournaledRequest.Builder builder = JournaledRequest.newBuilder()
+                .setType(type)
+                .setSubId(mSubId)
+                .setMessageId(mMessageId);
+        if (mCreator != null) {
+            builder.setCreator(mCreator);
+        }
+        return builder;
+    }
+
+    /**
+     * @return the signal aborting the HTTP transaction of the current attempt, to be passed to
+     * {@link MmsHttpClient#execute}
+     */
+    protected CancellationSignal getHttpCancellationSignal() {
+        return mHttpCancellationSignal;
+    }
+
+    /**
+     * Make the HTTP request of this request while another request holds the MMS network, e.g.
+     * as a member of a {@link SendBatchRequest}. The transaction is aborted if either request is
+     * cancelled; the owner does so with {@link #cancelHttp}.
+     *
+     * @param owner the request currently executing
+     */
+    byte[] doHttpOnBehalfOf(MmsRequest owner, Context context, MmsNetworkManager netMgr,
+            ApnSettings apn) throws MmsHttpException {
+        mHttpCancellationSignal = new CancellationSignal();
+        try {
+            if (owner.isCancelled() || isCancelled()) {
+                throw new MmsHttpException(0, "Request cancelled");
+            }
+            return doHttp(context, netMgr, apn);
+        } finally {
+            mHttpCancellationSignal = null;
+        }
+    }
+
+    /**
+     * Abort the HTTP transaction in progress, if any, without cancelling the request.
+     */
+    void cancelHttp() {
+        final CancellationSignal httpCancellationSignal = mHttpCancellationSignal;
+        if (httpCancellationSignal != null) {
+            httpCancellationSignal.cancel();
+        }
+    }
+
     /**
      * Making the HTTP request to MMSC
      *
@@ -500,6 +1040,19 @@ public abstract class MmsRequest {
      */
     protected abstract int getQueueType();
 
+    /**
+     * @return the scheduling class of the request, one of {@link #PRIORITY_CONTROL},
+     * {@link #PRIORITY_USER} or {@link #PRIORITY_BACKGROUND}
+     */
+    protected abstract int getPriority();
+
+    /**
+     * @return the expected size of the payload in bytes, or 0 if unknown
+     */
+    protected long getPayloadSizeHint() {
+        return 0;
+    }
+
     /**
      * Persist message into telephony if required (i.e. when auto-persisting is on or
      * the calling app is non-default sms app for sending)
@@ -517,6 +1070,55 @@ public abstract class MmsRequest {
      */
     protected abstract boolean prepareForHttpRequest();
 
+    /**
+     * @return whether {@link #prepareForHttpRequest} transfers the PDU from the caller, in which
+     * case it runs on the PDU transfer threads rather than on the executor of the request
+     */
+    protected boolean transfersPduToPrepare() {
+        return false;
+    }
+
+    /**
+     * @return the descriptor {@link #prepareForHttpRequest} reads the PDU from, closed to abort
+     * the read if the provider does not deliver the PDU in time, or null if none
+     */
+    protected Closeable getPduDescriptor() {
+        return null;
+    }
+
+    /**
+     * @return whether the outcome of {@link #doHttp} is reported to the request manager as one
+     * HTTP transaction with the MMSC
+     */
+    protected boolean reportsHttpTransactions() {
+        return true;
+    }
+
+    /**
+     * @return how many failed attempts are retried before the request gives up
+     */
+    protected int getRetryTimes() {
+        return RETRY_TIMES;
+    }
+
+    /**
+     * @return the bytes of PDU that {@link #prepareForHttpRequest} will read into memory, to
+     * reserve from the PDU memory budget beforehand, or 0 if none
+     */
+    protected long getPduMemorySize() {
+        return 0;
+    }
+
+    /**
+     * Called when the PDU memory budget is exhausted, to prepare without reading the PDU into
+     * memory rather than wait.
+     *
+     * @return true if {@link #prepareForHttpRequest} will not read the PDU into memory
+     */
+    protected boolean spillPdu() {
+        return false;
+    }
+
     /**
      * Transfer the received response to the caller
      *
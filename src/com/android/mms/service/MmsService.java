@@ -18,43 +18,55 @@ package com.android.mms.service;
 
 import static android.telephony.SmsManager.MMS_ERROR_MMS_DISABLED_BY_CARRIER;
 
-import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE;
 import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE_SEND_REQ;
 
 import android.annotation.Nullable;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
+import android.provider.DeviceConfig;
 import android.provider.Settings;
 import android.provider.Telephony;
 import android.security.NetworkSecurityPolicy;
 import android.service.carrier.CarrierMessagingService;
 import android.telephony.AnomalyReporter;
+import android.telephony.CarrierConfigManager;
+import android.telephony.PhoneCapability;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.data.ApnSetting;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.EventLog;
+import android.util.Pair;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IMms;
 import com.android.internal.telephony.flags.Flags;
+import com.android.mms.JournaledRequest;
 import com.android.mms.service.metrics.MmsMetricsCollector;
 import com.android.mms.service.metrics.MmsStats;
 
@@ -69,18 +81,21 @@ import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -94,14 +109,45 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     private static final String PREF_AUTO_PERSISTING = "autopersisting";
 
     // Maximum time to spend waiting to read data from a content provider before failing with error.
-    private static final int TASK_TIMEOUT_MS = 30 * 1000;
+    private static final long TASK_TIMEOUT_MS = PduTransferExecutor.DEFAULT_TIMEOUT_MS;
     // Maximum size of MMS service supports - used on occassions when MMS messages are processed
     // in a carrier independent manner (for example for imports and drafts) and the carrier
     // specific size limit should not be used (as it could be lower on some carriers).
     private static final int MAX_MMS_FILE_SIZE = 8 * 1024 * 1024;
+    // Size of the pooled buffers used to read a PDU of unknown size
+    private static final int PDU_CHUNK_SIZE = 64 * 1024;
 
     // The default number of threads allowed to run MMS requests in each queue
     public static final int THREAD_POOL_SIZE = 4;
+    // Upper bound for the carrier configured number of threads per queue
+    private static final int MAX_THREAD_POOL_SIZE = 16;
+
+    // Carrier config overrides for the number of concurrent MMS requests per queue. When adaptive
+    // mode is enabled the number is the upper bound, and the actual width follows the latency
+    // and error rate observed from the MMSC.
+    static final String KEY_MMS_MAX_CONCURRENT_REQUESTS_INT = "mms_max_concurrent_requests_int";
+    static final String KEY_MMS_ADAPTIVE_CONCURRENCY_BOOL = "mms_adaptive_concurrency_bool";
+    static final String KEY_MMS_ADAPTIVE_CONCURRENCY_LATENCY_TARGET_MILLIS_INT =
+            "mms_adaptive_concurrency_latency_target_millis_int";
+    private static final int DEFAULT_ADAPTIVE_CONCURRENCY_LATENCY_TARGET_MILLIS = 20 * 1000;
+
+    // Time allowed to an MMS request from admission to completion, including waiting for the
+    // network and the retries. Past it the request is cancelled.
+    private static final String MMS_SERVICE_REQUEST_DEADLINE_MILLIS =
+            "mms_service_request_deadline_millis";
+    private static final int DEFAULT_MMS_SERVICE_REQUEST_DEADLINE_MILLIS = 35 * 60 * 1000;
+
+    // Time onDestroy waits for running requests to finish before cancelling them. onDestroy
+    // runs on the main thread, so this must stay well below the ANR timeout.
+    private static final String MMS_SERVICE_DRAIN_TIMEOUT_MILLIS =
+            "mms_service_drain_timeout_millis";
+    private static final int DEFAULT_MMS_SERVICE_DRAIN_TIMEOUT_MILLIS = 5 * 1000;
+    // Time given to the requests cancelled at the end of the drain to report their result
+    private static final long DRAIN_CANCEL_GRACE_MILLIS = 1000L;
+
+    // Requests interrupted this many times are dropped rather than replayed, in case they are
+    // what brings the process down
+    static final int MAX_JOURNAL_REPLAY_ATTEMPTS = 3;
 
     /** Represents the received SMS message for importing. */
     public static final int SMS_TYPE_INCOMING = 0;
@@ -112,18 +158,40 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     /** Message status property: whether the message has been read. */
     public static final String MESSAGE_STATUS_READ = "read";
 
-    // Pending requests that are waiting for the SIM to be available
-    // If a different SIM is currently used by previous requests, the following
-    // requests will stay in this queue until that SIM finishes its current requests in
-    // RequestQueue.
-    // Requests are not reordered. So, e.g. if current SIM is SIM1, a request for SIM2 will be
-    // blocked in the queue. And a later request for SIM1 will be appended to the queue, ordered
-    // after the request for SIM2, instead of being put into the running queue.
-    // TODO: persist this in case MmsService crashes
-    private final Queue<MmsRequest> mPendingSimRequestQueue = new ArrayDeque<>();
-
-    // Thread pool for transferring PDU with MMS apps
-    private final ExecutorService mPduTransferExecutor = Executors.newCachedThreadPool();
+    // Per-subscription request queues. A subscription is "active" while it has running
+    // requests. Up to mMaxActiveSubscriptions subscriptions can be active at the same time;
+    // requests for any other subscription wait in that subscription's pending queue.
+    // Within a subscription, requests are ordered by priority class and payload size with
+    // aging (see MmsRequest#getSchedulingKey). When a data slot frees up, the subscription
+    // whose next pending request has the lowest scheduling key is scheduled next.
+    //
+    // There is no global lock on the request path. The state of each subscription is guarded
+    // by the lock of its SubscriptionRequestQueue, and data slots are counted in
+    // mActiveSubscriptionCount. Only handing free slots to waiting subscriptions takes
+    // mSlotLock, which is always acquired before any queue lock.
+    //
+    // The requests admitted here are also written to mRequestJournal, so that the downloads are
+    // resumed if the service dies. A graceful onDestroy completes every request with
+    // MMS_ERROR_RETRY instead.
+    private final ConcurrentHashMap<Integer, SubscriptionRequestQueue> mSubscriptionRequestQueues =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger mActiveSubscriptionCount = new AtomicInteger();
+    // Admitted requests that have not completed, by message id, for cancellation
+    private final ConcurrentHashMap<Long, MmsRequest> mRequestsByMessageId =
+            new ConcurrentHashMap<>();
+    // Requests executing on any subscription, cancelled when the service is destroyed
+    private final Set<MmsRequest> mRunningRequests = ConcurrentHashMap.newKeySet();
+    private final Object mSlotLock = new Object();
+
+    // Downloads being executed, keyed by subscription and content location. A download for a
+    // location that is already being fetched is attached to the in-flight one instead of
+    // hitting the MMSC again. Guarded by its own lock.
+    private final ArrayMap<Pair<Integer, String>, DownloadRequest> mInFlightDownloads =
+            new ArrayMap<>();
+    private long mCoalescedDownloadCount;
+
+    // Bounded thread pool for transferring PDU with MMS apps
+    private final PduTransferExecutor mPduTransferExecutor = new PduTransferExecutor();
 
     // A cache of MmsNetworkManager for SIMs
     private final SparseArray<MmsNetworkManager> mNetworkManagerCache = new SparseArray<>();
@@ -132,15 +200,23 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     private TelephonyManager mDefaultTelephonyManager;
     private final SparseArray<TelephonyManager> mTelephonyManagerCache = new SparseArray<>();
 
-    // The current SIM ID for the running requests. Only one SIM can send/download MMS at a time.
-    private int mCurrentSubId;
-    // The current running MmsRequest count.
-    private int mRunningRequestCount;
+    // The number of subscriptions that may run MMS requests concurrently. This is 1 unless
+    // the modem supports concurrent data on multiple subscriptions (DSDA).
+    private volatile int mMaxActiveSubscriptions = 1;
+    // Admission counter, keeps requests with equal scheduling keys in arrival order
+    private final AtomicLong mNextRequestSequence = new AtomicLong();
+
+    // Thread and handler used to schedule the retries of running requests
+    private HandlerThread mRequestHandlerThread;
+    private Handler mRequestHandler;
 
-    // Running request queues, one thread pool per queue
-    // 0: send queue
-    // 1: download queue
-    private final ExecutorService[] mRunningRequestExecutors = new ExecutorService[2];
+    // Admitted requests that have not completed, persisted so that downloads interrupted by
+    // the death of the phone process are resumed when the service is created again
+    private RequestJournal mRequestJournal;
+    // Set once onDestroy starts draining: no new request is started after that
+    private volatile boolean mDraining;
+    // Notified when a request completes while draining
+    private final Object mDrainLock = new Object();
 
     private static MmsMetricsCollector mMmsMetricsCollector;
 
@@ -193,7 +269,8 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         }
     }
 
-    private Bundle loadMmsConfig(int subId) {
+    @VisibleForTesting
+    Bundle loadMmsConfig(int subId) {
         final Bundle config = MmsConfigManager.getInstance().getMmsConfigBySubId(subId);
         if (config != null) {
             // TODO: Make MmsConfigManager authoritative for user agent and don't consult
@@ -207,6 +284,15 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             if (!TextUtils.isEmpty(userAgentProfileUrl)) {
                 config.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, userAgentProfileUrl);
             }
+            final CarrierConfigManager configManager =
+                    (CarrierConfigManager) getSystemService(Context.CARRIER_CONFIG_SERVICE);
+            final PersistableBundle carrierConfig =
+                    configManager != null ? configManager.getConfigForSubId(subId) : null;
+            if (carrierConfig != null) {
+                config.putBoolean(MmsHttpClient.KEY_MMS_HTTP_COMPRESSION_BOOL,
+                        carrierConfig.getBoolean(MmsHttpClient.KEY_MMS_HTTP_COMPRESSION_BOOL,
+                                false));
+            }
         }
         return config;
     }
@@ -277,6 +363,9 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 return;
             }
 
+            // Open the PDU once: the request classifies, reads or streams it from this handle
+            final PduHandle pdu = openPdu(contentUri);
+
             // Make sure subId has MMS data. We intentionally do this after attempting to send via a
             // carrier messaging service as the carrier messaging service may want to handle this in
             // a different way and may not be restricted by whether data is enabled for an APN on a
@@ -285,7 +374,11 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 // ENABLE_MMS_DATA_REQUEST_REASON_OUTGOING_MMS is set for only SendReq case, since
                 // AcknowledgeInd and NotifyRespInd are parts of downloading sequence.
                 // TODO: Should consider ReadRecInd(Read Report)?
-                sendSettingsIntentForFailedMms(!isRawPduSendReq(contentUri), subId);
+                sendSettingsIntentForFailedMms(
+                        pdu == null || pdu.getMessageType() != MESSAGE_TYPE_SEND_REQ, subId);
+                if (pdu != null) {
+                    pdu.close();
+                }
 
                 int resultCode = Flags.mmsDisabledError() ? SmsManager.MMS_ERROR_DATA_DISABLED
                         : SmsManager.MMS_ERROR_NO_DATA_NETWORK;
@@ -293,6 +386,7 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 return;
             }
 
+            request.setPduHandle(pdu);
             addSimRequest(request);
         }
 
@@ -386,6 +480,9 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 return;
             }
 
+            if (coalesceDownload(request)) {
+                return;
+            }
             addSimRequest(request);
         }
 
@@ -563,91 +660,210 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.d("getAutoPersisting");
             return getAutoPersistingPref();
         }
+    };
+
+    /*
+     * @return true if the subId is active.
+     */
+    private boolean isActiveSubId(int subId) {
+        return ((SubscriptionManager) getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE))
+            .isActiveSubscriptionId(subId);
+    }
 
-        /*
-         * @return true if the subId is active.
-         */
-        private boolean isActiveSubId(int subId) {
-            return ((SubscriptionManager) getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE))
-                .isActiveSubscriptionId(subId);
+    /**
+     * Calls the pending intent with one of these result codes:
+     * <code>MMS_ERROR_CONFIGURATION_ERROR</code>
+     * <code>MMS_ERROR_NO_DATA_NETWORK</code>.
+     */
+    private void sendErrorInPendingIntent(@Nullable PendingIntent intent, int resultCode) {
+        LogUtil.d("sendErrorInPendingIntent - no data network");
+        if (intent != null) {
+            try {
+                intent.send(resultCode);
+            } catch (PendingIntent.CanceledException ex) {
+            }
         }
+    }
 
-        /**
-         * Calls the pending intent with one of these result codes:
-         * <code>MMS_ERROR_CONFIGURATION_ERROR</code>
-         * <code>MMS_ERROR_NO_DATA_NETWORK</code>.
-         */
-        private void sendErrorInPendingIntent(@Nullable PendingIntent intent, int resultCode) {
-            LogUtil.d("sendErrorInPendingIntent - no data network");
-            if (intent != null) {
-                try {
-                    intent.send(resultCode);
-                } catch (PendingIntent.CanceledException ex) {
+    private void handleError(@Nullable PendingIntent pendingIntent, int resultCode,
+            MmsStats mmsStats) {
+        sendErrorInPendingIntent(pendingIntent, resultCode);
+        mmsStats.addAtomToStorage(resultCode);
+        String message = "MMS failed" + " with error " + resultCode;
+        AnomalyReporter.reportAnomaly(MmsConstants.MMS_ANOMALY_UUID, message);
+    }
+
+    @Override
+    public void addSimRequest(MmsRequest request) {
+        if (request == null) {
+            LogUtil.e("Add running or pending: empty request");
+            return;
+        }
+        mRequestJournal.add(request, /* attemptCount= */ 0);
+        final SubscriptionRequestQueue subQueue = getSubscriptionRequestQueue(request.getSubId());
+        request.markEnqueued(SystemClock.elapsedRealtime(),
+                mNextRequestSequence.getAndIncrement());
+        request.setDeadlineMillis(request.getEnqueueTimeMillis() + getRequestDeadlineMillis());
+        if (request.mMessageId != 0L) {
+            mRequestsByMessageId.put(request.mMessageId, request);
+        }
+        final boolean running;
+        final boolean subActive;
+        final int runningCount;
+        final int pendingCount;
+        synchronized (subQueue) {
+            running = !mDraining && canRunImmediatelyLocked(subQueue);
+            if (running) {
+                addToRunningRequestQueueLocked(subQueue, request);
+                if (!subQueue.isActive()) {
+                    // The request could not be started, give back the slot taken for it
+                    releaseDataSlot();
                 }
+            } else {
+                subQueue.addPendingRequest(request);
             }
+            subActive = subQueue.isActive();
+            runningCount = subQueue.getRunningRequestCount();
+            pendingCount = subQueue.getPendingRequestCount();
+        }
+        LogUtil.d("Add request to " + (running ? "running" : "pending") + " queue. subId="
+                + request.getSubId() + " running=" + runningCount + " pending=" + pendingCount
+                + " active subs=" + mActiveSubscriptionCount.get() + "/"
+                + mMaxActiveSubscriptions);
+        if (!subActive) {
+            // The subscription is waiting for a data slot, one may have been freed meanwhile
+            movePendingSimRequestsToRunning();
         }
+    }
 
-        private boolean isRawPduSendReq(Uri contentUri) {
-            // X-Mms-Message-Type is at the beginning of the message headers always. 1st byte is
-            // MMS-filed-name and 2nd byte is MMS-value for X-Mms-Message-Type field.
-            // See OMA-TS-MMS_ENC-V1_3-20110913-A, 7. Binary Encoding of ProtocolData Units
-            byte[] pduData = new byte[2];
-            int bytesRead = readPduBytesFromContentUri(contentUri, pduData);
+    /**
+     * A new request may bypass the pending queue only if its subscription has nothing pending
+     * (to keep per-subscription ordering) and either the subscription already holds a data slot
+     * without another subscription waiting for one, or a free slot is available. In the latter
+     * case the slot is taken.
+     */
+    private boolean canRunImmediatelyLocked(SubscriptionRequestQueue subQueue) {
+        if (subQueue.hasPendingRequests()) {
+            return false;
+        }
+        if (subQueue.isActive()) {
+            // Don't let a busy subscription starve one that is waiting for a slot
+            return !isAnySubscriptionWaitingForSlot();
+        }
+        return tryAcquireDataSlot();
+    }
 
-            // Return true for MESSAGE_TYPE_SEND_REQ only. Otherwise false even wrong PDU case.
-            if (bytesRead == 2
-                    && (pduData[0] & 0xFF) == MESSAGE_TYPE
-                    && (pduData[1] & 0xFF) == MESSAGE_TYPE_SEND_REQ) {
+    private boolean tryAcquireDataSlot() {
+        while (true) {
+            final int active = mActiveSubscriptionCount.get();
+            if (active >= mMaxActiveSubscriptions) {
+                return false;
+            }
+            if (mActiveSubscriptionCount.compareAndSet(active, active + 1)) {
                 return true;
             }
-            return false;
         }
+    }
 
-        private void handleError(@Nullable PendingIntent pendingIntent, int resultCode,
-                MmsStats mmsStats) {
-            sendErrorInPendingIntent(pendingIntent, resultCode);
-            mmsStats.addAtomToStorage(resultCode);
-            String message = "MMS failed" + " with error " + resultCode;
-            AnomalyReporter.reportAnomaly(MmsConstants.MMS_ANOMALY_UUID, message);
+    private SubscriptionRequestQueue getSubscriptionRequestQueue(int subId) {
+        SubscriptionRequestQueue subQueue = mSubscriptionRequestQueues.get(subId);
+        if (subQueue == null) {
+            final SubscriptionRequestQueue newQueue = new SubscriptionRequestQueue(subId);
+            configureConcurrency(newQueue);
+            subQueue = mSubscriptionRequestQueues.putIfAbsent(subId, newQueue);
+            if (subQueue == null) {
+                subQueue = newQueue;
+            } else {
+                // Lost the race against another admission for the same subscription
+                newQueue.shutdown();
+            }
         }
-    };
+        return subQueue;
+    }
 
-    @Override
-    public void addSimRequest(MmsRequest request) {
-        if (request == null) {
-            LogUtil.e("Add running or pending: empty request");
-            return;
+    /**
+     * Load the width of the request thread pools of a subscription from carrier config.
+     */
+    private void configureConcurrency(SubscriptionRequestQueue subQueue) {
+        final CarrierConfigManager configManager =
+                (CarrierConfigManager) getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        final PersistableBundle config =
+                configManager != null ? configManager.getConfigForSubId(subQueue.getSubId())
+                        : null;
+        int maxConcurrentRequests = THREAD_POOL_SIZE;
+        boolean adaptive = false;
+        int latencyTargetMillis = DEFAULT_ADAPTIVE_CONCURRENCY_LATENCY_TARGET_MILLIS;
+        if (config != null) {
+            maxConcurrentRequests = config.getInt(KEY_MMS_MAX_CONCURRENT_REQUESTS_INT,
+                    THREAD_POOL_SIZE);
+            adaptive = config.getBoolean(KEY_MMS_ADAPTIVE_CONCURRENCY_BOOL, false);
+            latencyTargetMillis = config.getInt(
+                    KEY_MMS_ADAPTIVE_CONCURRENCY_LATENCY_TARGET_MILLIS_INT,
+                    DEFAULT_ADAPTIVE_CONCURRENCY_LATENCY_TARGET_MILLIS);
+        }
+        maxConcurrentRequests = Math.max(1, Math.min(MAX_THREAD_POOL_SIZE, maxConcurrentRequests));
+        LogUtil.d("Concurrency for subId " + subQueue.getSubId() + ": max="
+                + maxConcurrentRequests + " adaptive=" + adaptive);
+        synchronized (subQueue) {
+            subQueue.configureConcurrency(maxConcurrentRequests, adaptive, latencyTargetMillis);
+        }
+    }
+
+    /**
+     * Reload the concurrency settings of a subscription when its carrier config changes, and
+     * drop what was cached from the previous config.
+     */
+    private final BroadcastReceiver mCarrierConfigChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int subId = intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            // The headers are rebuilt from the new config by the next request
+            HttpHeaderTemplate.invalidate(subId);
+            MacroValueCache.getInstance().invalidate(subId);
+            final SubscriptionRequestQueue subQueue = mSubscriptionRequestQueues.get(subId);
+            if (subQueue != null) {
+                configureConcurrency(subQueue);
+            }
         }
-        LogUtil.d("Current running=" + mRunningRequestCount + ", "
-                + "current subId=" + mCurrentSubId + ", "
-                + "pending=" + mPendingSimRequestQueue.size());
-        synchronized (this) {
-            if (mPendingSimRequestQueue.size() > 0 ||
-                    (mRunningRequestCount > 0 && request.getSubId() != mCurrentSubId)) {
-                LogUtil.d("Add request to pending queue."
-                        + " Request subId=" + request.getSubId() + ","
-                        + " current subId=" + mCurrentSubId);
-                mPendingSimRequestQueue.add(request);
-                if (mRunningRequestCount <= 0) {
-                    LogUtil.e("Nothing's running but queue's not empty");
-                    // Nothing is running but we are accumulating on pending queue.
-                    // This should not happen. But just in case...
-                    movePendingSimRequestsToRunningSynchronized();
+    };
+
+    /**
+     * Drop the cached macro values, such as the line number, when the subscriptions or their
+     * phone numbers change. Which subscription changed is not known.
+     */
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsChangedListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    MacroValueCache.getInstance().invalidateAll();
                 }
-            } else {
-                LogUtil.d("Add request to running queue."
-                        + " Request subId=" + request.getSubId() + ","
-                        + " current subId=" + mCurrentSubId);
-                addToRunningRequestQueueSynchronized(request);
+            };
+
+    @Override
+    public void onHttpTransactionCompleted(int subId, int statusCode, long latencyMillis) {
+        final SubscriptionRequestQueue subQueue = mSubscriptionRequestQueues.get(subId);
+        if (subQueue != null) {
+            synchronized (subQueue) {
+                subQueue.onHttpTransactionCompleted(statusCode, latencyMillis,
+                        SystemClock.elapsedRealtime());
             }
-            dumpRequestQueue();
         }
     }
 
-    private void dumpRequestQueue() {
-        LogUtil.d("request queue dump [size: " + mPendingSimRequestQueue.size() + "]:");
-        mPendingSimRequestQueue.forEach(request -> LogUtil.d(request.toString()));
+    /**
+     * @return whether a subscription with pending requests has no data slot. Reads the
+     * volatile state of each queue, so no queue lock is needed.
+     */
+    private boolean isAnySubscriptionWaitingForSlot() {
+        for (SubscriptionRequestQueue subQueue : mSubscriptionRequestQueues.values()) {
+            if (subQueue.isWaitingForSlot()) {
+                return true;
+            }
+        }
+        return false;
     }
+
     private void sendSettingsIntentForFailedMms(boolean isIncoming, int subId) {
         LogUtil.w("Subscription with id: " + subId
                 + " cannot " + (isIncoming ? "download" : "send")
@@ -664,61 +880,360 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
                 android.Manifest.permission.NETWORK_SETTINGS);
     }
 
-    private void addToRunningRequestQueueSynchronized(final MmsRequest request) {
-        LogUtil.d("Add request to running queue for subId " + request.getSubId());
-        // Update current state of running requests
-        final int queue = request.getQueueType();
-        if (queue < 0 || queue >= mRunningRequestExecutors.length) {
+    /**
+     * Attach a download to the in-flight download of the same message, if any, so that the
+     * MMSC sees a single fetch when the WAP push is delivered twice or the SMS app retries.
+     * Otherwise the request becomes the in-flight download for its location.
+     *
+     * @param request the download request
+     * @return true if the request was attached and must not be executed
+     */
+    @VisibleForTesting
+    boolean coalesceDownload(DownloadRequest request) {
+        if (TextUtils.isEmpty(request.getLocationUrl())) {
+            return false;
+        }
+        final Pair<Integer, String> key =
+                new Pair<>(request.getSubId(), request.getLocationUrl());
+        synchronized (mInFlightDownloads) {
+            final DownloadRequest inFlight = mInFlightDownloads.get(key);
+            if (inFlight != null && inFlight.coalesce(request)) {
+                mCoalescedDownloadCount++;
+                if (request.mMessageId != 0L) {
+                    mRequestsByMessageId.put(request.mMessageId, request);
+                }
+                LogUtil.i(request.toString(), "Coalesced with in-flight download " + inFlight
+                        + ", " + formatCrossStackMessageId(request.mMessageId));
+                return true;
+            }
+            mInFlightDownloads.put(key, request);
+            return false;
+        }
+    }
+
+    private void removeInFlightDownload(DownloadRequest request) {
+        final Pair<Integer, String> key =
+                new Pair<>(request.getSubId(), request.getLocationUrl());
+        synchronized (mInFlightDownloads) {
+            // A newer request may have taken over the location once this one stopped coalescing
+            if (mInFlightDownloads.get(key) == request) {
+                mInFlightDownloads.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Start executing a request. The caller must hold the lock of the queue, and the
+     * subscription must hold a data slot.
+     */
+    private void addToRunningRequestQueueLocked(final SubscriptionRequestQueue subQueue,
+            final MmsRequest request) {
+        if (!subQueue.hasExecutorFor(request)) {
             LogUtil.e("Invalid request queue index for running request");
             return;
         }
-        mRunningRequestCount++;
-        mCurrentSubId = request.getSubId();
-        // Send to the corresponding request queue for execution
-        mRunningRequestExecutors[queue].execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    request.execute(MmsService.this, getNetworkManager(request.getSubId()));
-                } finally {
-                    synchronized (MmsService.this) {
-                        mRunningRequestCount--;
-                        LogUtil.d("addToRunningRequestQueueSynchronized mRunningRequestCount="
-                                + mRunningRequestCount);
-                        if (mRunningRequestCount <= 0) {
-                            movePendingSimRequestsToRunningSynchronized();
-                        }
-                    }
+        // Update current state of running requests
+        subQueue.onRequestStarted(request,
+                SystemClock.elapsedRealtime() - request.getEnqueueTimeMillis());
+        mRequestJournal.markRunning(request);
+        mRunningRequests.add(request);
+        // Run the steps of the request on the corresponding request queue. The thread pools
+        // are thread safe, so steps are submitted without the queue lock.
+        request.executeAsync(this, getNetworkManager(request.getSubId()),
+                task -> subQueue.execute(request, task), mRequestHandler,
+                completedRequest -> onRequestCompleted(subQueue, completedRequest));
+    }
+
+    private void onRequestCompleted(SubscriptionRequestQueue subQueue, MmsRequest request) {
+        mRunningRequests.remove(request);
+        forgetRequest(request);
+        final boolean subIdle;
+        synchronized (subQueue) {
+            subIdle = subQueue.onRequestFinished();
+            if (subIdle) {
+                releaseDataSlot();
+            }
+        }
+        if (subIdle) {
+            movePendingSimRequestsToRunning();
+        }
+        if (mDraining) {
+            synchronized (mDrainLock) {
+                mDrainLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drop the bookkeeping of a request that will not run anymore.
+     */
+    private void forgetRequest(MmsRequest request) {
+        mRequestJournal.remove(request);
+        if (request instanceof DownloadRequest) {
+            final DownloadRequest download = (DownloadRequest) request;
+            removeInFlightDownload(download);
+            for (DownloadRequest coalesced : download.getCoalescedRequests()) {
+                mRequestJournal.remove(coalesced);
+                mRequestsByMessageId.remove(coalesced.mMessageId, coalesced);
+            }
+        }
+        if (request instanceof SendBatchRequest) {
+            for (SendRequest member : ((SendBatchRequest) request).getRequests()) {
+                mRequestsByMessageId.remove(member.mMessageId, member);
+            }
+        }
+        mRequestsByMessageId.remove(request.mMessageId, request);
+    }
+
+    /**
+     * Send several MMS on the same subscription as one batch. The checks done by sendMessage
+     * run once for the whole batch, and the messages are sent back to back over a single
+     * acquisition of the MMS network; see {@link SendBatchRequest}. The result of each message
+     * is reported through its own sent intent.
+     *
+     * @param subId the subscription to send the messages on
+     * @param callingPkg the package sending the messages
+     * @param contentUris the PDUs to send
+     * @param locationUrl the optional MMSC URL, used for all messages
+     * @param configOverrides the optional MMS config overrides, applied to all messages
+     * @param sentIntents the sent intent of each message, entries may be null
+     * @param messageIds the message id of each message
+     */
+    public void sendMessages(int subId, String callingPkg, List<Uri> contentUris,
+            String locationUrl, Bundle configOverrides, List<PendingIntent> sentIntents,
+            long[] messageIds) {
+        final int count = contentUris.size();
+        if (sentIntents.size() != count || messageIds.length != count) {
+            throw new IllegalArgumentException("Mismatched batch of " + count + " messages");
+        }
+        LogUtil.d("sendMessages count: " + count);
+
+        final MmsStats[] mmsStats = new MmsStats[count];
+        for (int i = 0; i < count; i++) {
+            mmsStats[i] = new MmsStats(this, mMmsMetricsCollector.getAtomsStorage(), subId,
+                    getTelephonyManager(subId), callingPkg, false);
+        }
+
+        // Make sure the subId is correct
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            LogUtil.e("Invalid subId " + subId);
+            handleBatchError(sentIntents, SmsManager.MMS_ERROR_INVALID_SUBSCRIPTION_ID,
+                    mmsStats);
+            return;
+        }
+        if (subId == SubscriptionManager.DEFAULT_SUBSCRIPTION_ID) {
+            subId = SubscriptionManager.getDefaultSmsSubscriptionId();
+            for (MmsStats stats : mmsStats) {
+                stats.updateSubId(subId, getTelephonyManager(subId));
+            }
+        }
+
+        // Make sure the subId is active
+        if (!isActiveSubId(subId)) {
+            handleBatchError(sentIntents, SmsManager.MMS_ERROR_INACTIVE_SUBSCRIPTION, mmsStats);
+            return;
+        }
+
+        // Load MMS config and apply overrides
+        final Bundle mmsConfig = loadMmsConfig(subId);
+        if (mmsConfig == null) {
+            LogUtil.e("MMS config is not loaded yet for subId " + subId);
+            handleBatchError(sentIntents, SmsManager.MMS_ERROR_CONFIGURATION_ERROR, mmsStats);
+            return;
+        }
+        if (configOverrides != null) {
+            mmsConfig.putAll(configOverrides);
+        }
+
+        // Make sure MMS is enabled
+        if (!mmsConfig.getBoolean(SmsManager.MMS_CONFIG_MMS_ENABLED)) {
+            LogUtil.e("MMS is not enabled for subId " + subId);
+            int resultCode = Flags.mmsDisabledError() ? MMS_ERROR_MMS_DISABLED_BY_CARRIER
+                    : SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
+            handleBatchError(sentIntents, resultCode, mmsStats);
+            return;
+        }
+
+        final List<SendRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(new SendRequest(this, subId, contentUris.get(i), locationUrl,
+                    sentIntents.get(i), callingPkg, mmsConfig, this, messageIds[i],
+                    mmsStats[i]));
+        }
+
+        final String carrierMessagingServicePackage =
+                getCarrierMessagingServicePackageIfExists(subId);
+        if (carrierMessagingServicePackage != null) {
+            LogUtil.d("sending batch of " + count + " messages by carrier app: "
+                    + carrierMessagingServicePackage);
+            for (SendRequest request : requests) {
+                request.trySendingByCarrierApp(this, carrierMessagingServicePackage);
+            }
+            return;
+        }
+
+        // Open the PDUs once; the batch is scheduled by their total size
+        final PduHandle[] pdus = new PduHandle[count];
+        boolean hasSendReq = false;
+        for (int i = 0; i < count; i++) {
+            pdus[i] = openPdu(contentUris.get(i));
+            hasSendReq |= pdus[i] != null && pdus[i].getMessageType() == MESSAGE_TYPE_SEND_REQ;
+        }
+
+        // Make sure subId has MMS data, after the carrier app had a chance to send
+        if (!getTelephonyManager(subId).isDataEnabledForApn(ApnSetting.TYPE_MMS)) {
+            sendSettingsIntentForFailedMms(!hasSendReq, subId);
+            for (PduHandle pdu : pdus) {
+                if (pdu != null) {
+                    pdu.close();
                 }
             }
-        });
+
+            int resultCode = Flags.mmsDisabledError() ? SmsManager.MMS_ERROR_DATA_DISABLED
+                    : SmsManager.MMS_ERROR_NO_DATA_NETWORK;
+            handleBatchError(sentIntents, resultCode, mmsStats);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            requests.get(i).setPduHandle(pdus[i]);
+            // Each message can be cancelled on its own
+            if (messageIds[i] != 0L) {
+                mRequestsByMessageId.put(messageIds[i], requests.get(i));
+            }
+        }
+        addSimRequest(new SendBatchRequest(this, subId, callingPkg, mmsConfig, this, requests));
     }
 
-    private void movePendingSimRequestsToRunningSynchronized() {
-        LogUtil.d("Move pending requests to running queue mPendingSimRequestQueue.size="
-                + mPendingSimRequestQueue.size());
-        mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-        while (mPendingSimRequestQueue.size() > 0) {
-            final MmsRequest request = mPendingSimRequestQueue.peek();
-            if (request != null) {
-                if (!SubscriptionManager.isValidSubscriptionId(mCurrentSubId)
-                        || mCurrentSubId == request.getSubId()) {
-                    // First or subsequent requests with same SIM ID
-                    mPendingSimRequestQueue.remove();
-                    LogUtil.d("Move pending request to running queue."
-                            + " Request subId=" + request.getSubId() + ","
-                            + " current subId=" + mCurrentSubId);
-                    addToRunningRequestQueueSynchronized(request);
-                } else {
-                    // Stop if we see a different SIM ID
-                    LogUtil.d("Pending request not moved to running queue, different subId."
-                            + " Request subId=" + request.getSubId() + ","
-                            + " current subId=" + mCurrentSubId);
-                    break;
+    private void handleBatchError(List<PendingIntent> pendingIntents, int resultCode,
+            MmsStats[] mmsStats) {
+        for (int i = 0; i < mmsStats.length; i++) {
+            handleError(pendingIntents.get(i), resultCode, mmsStats[i]);
+        }
+    }
+
+    /**
+     * Cancel the request for a message. A pending request completes right away; a running one
+     * aborts its network acquisition or HTTP transaction and completes without further retries.
+     * Either way the caller is notified with {@link android.app.Activity#RESULT_CANCELED}. A
+     * message of a batch is aborted if it is being sent, and otherwise completes when the batch
+     * gets to it.
+     *
+     * IMms has no method to cancel a message yet, so only the tests call this.
+     *
+     * @param messageId the message id passed to sendMessage, sendMessages or downloadMessage
+     * @return false if there is no request for the message
+     */
+    @VisibleForTesting
+    boolean cancelRequest(long messageId) {
+        final MmsRequest request = mRequestsByMessageId.get(messageId);
+        if (request == null) {
+            LogUtil.d("cancelRequest: no request for " + formatCrossStackMessageId(messageId));
+            return false;
+        }
+        if (request instanceof DownloadRequest
+                && cancelCoalescedDownload((DownloadRequest) request)) {
+            return true;
+        }
+        final SubscriptionRequestQueue subQueue =
+                mSubscriptionRequestQueues.get(request.getSubId());
+        boolean wasPending = false;
+        if (subQueue != null) {
+            synchronized (subQueue) {
+                wasPending = subQueue.removePendingRequest(request);
+            }
+        }
+        if (wasPending) {
+            LogUtil.i(request.toString(), "Cancelled before execution");
+            request.completeCancelledBeforeExecution(this, MmsRequest.CANCEL_REASON_REQUESTED);
+            forgetRequest(request);
+        } else {
+            request.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel a download attached to the in-flight download of the same message. It completes
+     * right away and the in-flight download carries on for the others.
+     *
+     * @return false if the request is not attached to another download
+     */
+    private boolean cancelCoalescedDownload(DownloadRequest request) {
+        if (TextUtils.isEmpty(request.getLocationUrl())) {
+            return false;
+        }
+        final DownloadRequest inFlight;
+        synchronized (mInFlightDownloads) {
+            inFlight = mInFlightDownloads.get(
+                    new Pair<>(request.getSubId(), request.getLocationUrl()));
+        }
+        if (inFlight == null || inFlight == request || !inFlight.removeCoalesced(request)) {
+            return false;
+        }
+        LogUtil.i(request.toString(), "Cancelled download coalesced with " + inFlight);
+        request.completeCancelledBeforeExecution(this, MmsRequest.CANCEL_REASON_REQUESTED);
+        forgetRequest(request);
+        return true;
+    }
+
+    private static long getRequestDeadlineMillis() {
+        return DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                MMS_SERVICE_REQUEST_DEADLINE_MILLIS, DEFAULT_MMS_SERVICE_REQUEST_DEADLINE_MILLIS);
+    }
+
+    private void releaseDataSlot() {
+        mActiveSubscriptionCount.decrementAndGet();
+    }
+
+    /**
+     * Hand free data slots to the subscriptions waiting for them, the one with the most urgent
+     * pending request first, and move all pending requests of each scheduled subscription to
+     * its running queues.
+     *
+     * Must be called after every change that may let a waiting subscription run: a slot being
+     * freed, or a subscription starting to wait.
+     */
+    private void movePendingSimRequestsToRunning() {
+        if (mDraining) {
+            return;
+        }
+        synchronized (mSlotLock) {
+            while (true) {
+                SubscriptionRequestQueue next = null;
+                long nextKey = Long.MAX_VALUE;
+                for (SubscriptionRequestQueue subQueue : mSubscriptionRequestQueues.values()) {
+                    if (!subQueue.isWaitingForSlot()) {
+                        continue;
+                    }
+                    final long key;
+                    synchronized (subQueue) {
+                        key = subQueue.getNextSchedulingKey();
+                    }
+                    if (next == null || key < nextKey) {
+                        next = subQueue;
+                        nextKey = key;
+                    }
+                }
+                if (next == null || !tryAcquireDataSlot()) {
+                    return;
+                }
+                synchronized (next) {
+                    if (!next.isWaitingForSlot()) {
+                        // Started or drained by an admission meanwhile
+                        releaseDataSlot();
+                        continue;
+                    }
+                    LogUtil.d("Move pending requests to running queue for subId="
+                            + next.getSubId() + " pending=" + next.getPendingRequestCount());
+                    MmsRequest request;
+                    while ((request = next.pollPendingRequest()) != null) {
+                        addToRunningRequestQueueLocked(next, request);
+                    }
+                    if (!next.isActive()) {
+                        releaseDataSlot();
+                    }
                 }
-            } else {
-                LogUtil.e("Schedule pending: found empty request");
-                mPendingSimRequestQueue.remove();
             }
         }
     }
@@ -745,12 +1260,77 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         mMmsMetricsCollector = new MmsMetricsCollector(this);
 
         // Initialize running request state
-        for (int i = 0; i < mRunningRequestExecutors.length; i++) {
-            mRunningRequestExecutors[i] = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        }
-        synchronized (this) {
-            mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
-            mRunningRequestCount = 0;
+        mRequestHandlerThread = new HandlerThread("MmsRequestHandler");
+        mRequestHandlerThread.start();
+        mRequestHandler = new Handler(mRequestHandlerThread.getLooper());
+        mRequestJournal = new RequestJournal(getFileStreamPath(RequestJournal.FILENAME),
+                mRequestHandler);
+        mMaxActiveSubscriptions = getMaxActiveSubscriptions();
+        registerReceiver(mCarrierConfigChangedReceiver,
+                new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED));
+        getSystemService(SubscriptionManager.class).addOnSubscriptionsChangedListener(
+                getMainExecutor(), mSubscriptionsChangedListener);
+        // Resume the transfers interrupted by the death of the previous instance. Their partial
+        // responses can't be resumed, only the files created before now are deleted.
+        final long startTimeMillis = System.currentTimeMillis();
+        mRequestHandler.post(() -> DownloadRequest.deleteStalePartialResponses(this,
+                startTimeMillis));
+        mRequestHandler.post(() -> replayRequestJournal(mRequestJournal.loadAndClear()));
+    }
+
+    /**
+     * Re-admit the requests left in the journal by a previous instance of the service.
+     *
+     * Only downloads are replayed. The PendingIntent of a request can not be persisted, so the
+     * result of a replayed request can only reach the MMS app through the message store; a
+     * download is persisted there when auto persisting is enabled, while a send may already
+     * have reached the MMSC and is left to the retry logic of the MMS app.
+     *
+     * @param journaledRequests the requests loaded from the journal
+     */
+    @VisibleForTesting
+    void replayRequestJournal(List<JournaledRequest> journaledRequests) {
+        for (JournaledRequest journaled : journaledRequests) {
+            final String messageId = formatCrossStackMessageId(journaled.getMessageId());
+            if (journaled.getAttemptCount() >= MAX_JOURNAL_REPLAY_ATTEMPTS) {
+                LogUtil.w("Dropping journaled request interrupted "
+                        + journaled.getAttemptCount() + " times, " + messageId);
+                continue;
+            }
+            if (journaled.getType() != RequestJournal.TYPE_DOWNLOAD) {
+                LogUtil.w("Dropping interrupted send, the result can not be delivered, "
+                        + messageId);
+                continue;
+            }
+            if (!getAutoPersistingPref()) {
+                LogUtil.w("Dropping interrupted download, auto persisting is disabled, "
+                        + messageId);
+                continue;
+            }
+            final int subId = journaled.getSubId();
+            final Bundle mmsConfig = loadMmsConfig(subId);
+            if (mmsConfig == null || !mmsConfig.getBoolean(SmsManager.MMS_CONFIG_MMS_ENABLED)) {
+                LogUtil.w("Dropping interrupted download, MMS is not available for subId "
+                        + subId + ", " + messageId);
+                continue;
+            }
+            final String creator = journaled.hasCreator() ? journaled.getCreator() : null;
+            final MmsStats mmsStats = new MmsStats(this, mMmsMetricsCollector.getAtomsStorage(),
+                    subId, getTelephonyManager(subId), creator, true);
+            final DownloadRequest request = new DownloadRequest(this, subId,
+                    journaled.getLocationUrl(),
+                    journaled.hasContentUri() ? Uri.parse(journaled.getContentUri()) : null,
+                    null /* downloadedIntent */, creator, mmsConfig, this,
+                    journaled.getMessageId(), mmsStats);
+            LogUtil.i(request.toString(), "Resuming interrupted download, attempts="
+                    + journaled.getAttemptCount());
+            // As on admission, a duplicate is not journaled: the download it is attached to
+            // persists the message
+            if (!coalesceDownload(request)) {
+                // Keeps the count of attempts, the journal ignores the add of addSimRequest
+                mRequestJournal.add(request, journaled.getAttemptCount());
+                addSimRequest(request);
+            }
         }
     }
 
@@ -758,8 +1338,161 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     public void onDestroy() {
         super.onDestroy();
         LogUtil.d("onDestroy");
-        for (ExecutorService executor : mRunningRequestExecutors) {
-            executor.shutdown();
+        unregisterReceiver(mCarrierConfigChangedReceiver);
+        getSystemService(SubscriptionManager.class).removeOnSubscriptionsChangedListener(
+                mSubscriptionsChangedListener);
+        drainRunningRequests(DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                MMS_SERVICE_DRAIN_TIMEOUT_MILLIS, DEFAULT_MMS_SERVICE_DRAIN_TIMEOUT_MILLIS));
+        for (SubscriptionRequestQueue subQueue : mSubscriptionRequestQueues.values()) {
+            synchronized (subQueue) {
+                subQueue.shutdown();
+            }
+        }
+        mPduTransferExecutor.shutdown();
+        synchronized (mNetworkManagerCache) {
+            for (int i = 0; i < mNetworkManagerCache.size(); i++) {
+                mNetworkManagerCache.valueAt(i).releaseAllNetworks();
+            }
+        }
+        // Keep the unfinished requests on disk, they are resumed on the next onCreate
+        mRequestJournal.flush();
+        mMmsMetricsCollector.getAtomsStorage().flushAtoms();
+        mRequestHandlerThread.quitSafely();
+    }
+
+    /**
+     * Stop starting requests and wait for the running ones to finish, so that every caller gets
+     * a result before the thread pools and the retry handler go away.
+     *
+     * This runs on the main thread, where the network manager delivers the outcome of network
+     * requests, so requests waiting for the network or backing off before a retry can't make
+     * progress and are cancelled right away. The others are cancelled if they are still running
+     * when the timeout expires. Requests that haven't started are cancelled too. All of them
+     * complete with {@link SmsManager#MMS_ERROR_RETRY}.
+     *
+     * @param timeoutMillis how long to wait for the running requests
+     */
+    private void drainRunningRequests(long timeoutMillis) {
+        mDraining = true;
+        for (SubscriptionRequestQueue subQueue : mSubscriptionRequestQueues.values()) {
+            MmsRequest request;
+            while (true) {
+                synchronized (subQueue) {
+                    request = subQueue.pollPendingRequest();
+                }
+                if (request == null) {
+                    break;
+                }
+                request.completeCancelledBeforeExecution(this,
+                        MmsRequest.CANCEL_REASON_SHUTDOWN);
+                forgetRequest(request);
+            }
+        }
+        for (MmsRequest request : mRunningRequests) {
+            if (request.isWaiting()) {
+                request.cancel(MmsRequest.CANCEL_REASON_SHUTDOWN);
+            }
+        }
+        if (awaitRunningRequests(timeoutMillis)) {
+            LogUtil.i("All requests drained");
+            return;
+        }
+        LogUtil.w("Cancelling " + mRunningRequests.size() + " requests still running");
+        for (MmsRequest request : mRunningRequests) {
+            request.cancel(MmsRequest.CANCEL_REASON_SHUTDOWN);
+        }
+        if (awaitRunningRequests(DRAIN_CANCEL_GRACE_MILLIS)) {
+            return;
+        }
+        // Stuck, e.g. still reading the PDU from the caller
+        for (MmsRequest request : mRunningRequests) {
+            LogUtil.w("Abandoned " + request);
+        }
+        LogUtil.w(mRequestJournal.size() + " requests journaled for replay");
+    }
+
+    /**
+     * Wait for the running requests to complete.
+     *
+     * @return true if none is left running
+     */
+    private boolean awaitRunningRequests(long timeoutMillis) {
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (mDrainLock) {
+            long remaining;
+            while (!mRunningRequests.isEmpty()
+                    && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                LogUtil.i("Draining " + mRunningRequests.size() + " running requests");
+                try {
+                    mDrainLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return mRunningRequests.isEmpty();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BufferPool.getInstance().trim();
+    }
+
+    /**
+     * @return how many subscriptions can use MMS data at the same time. Only DSDA capable
+     * modems support more than one.
+     */
+    private int getMaxActiveSubscriptions() {
+        final PhoneCapability capability;
+        try {
+            capability = getSystemService(TelephonyManager.class).getPhoneCapability();
+        } catch (IllegalStateException e) {
+            LogUtil.w("Phone capability unavailable, serializing subscriptions", e);
+            return 1;
+        }
+        if (capability == null) {
+            return 1;
+        }
+        return Math.max(1, capability.getMaxActiveDataSubscriptions());
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("MmsService:");
+        writer.println("  maxActiveSubscriptions=" + mMaxActiveSubscriptions
+                + " activeSubscriptions=" + mActiveSubscriptionCount.get());
+        synchronized (mInFlightDownloads) {
+            writer.println("  inFlightDownloads=" + mInFlightDownloads.size()
+                    + " coalescedDownloads=" + mCoalescedDownloadCount);
+        }
+        writer.println("  journaledRequests=" + mRequestJournal.size());
+        writer.print("  bufferPool: ");
+        BufferPool.getInstance().dump(writer);
+        writer.print("  pduMemory: ");
+        PduMemoryBudget.getInstance().dump(writer);
+        writer.print("  macroValues: ");
+        MacroValueCache.getInstance().dump(writer);
+        writer.print("  pduTransfer: ");
+        mPduTransferExecutor.dump(writer, "    ");
+        writer.println("  responseEncoding:");
+        ResponseEncoding.getInstance().dump(writer, "    ");
+        synchronized (mNetworkManagerCache) {
+            for (int i = 0; i < mNetworkManagerCache.size(); i++) {
+                writer.print("  networkManager: ");
+                mNetworkManagerCache.valueAt(i).dump(writer);
+            }
+        }
+        // Snapshot each queue under its lock and print outside of it, so that a slow reader
+        // of the dump does not hold up the requests
+        for (SubscriptionRequestQueue subQueue : mSubscriptionRequestQueues.values()) {
+            final StringWriter snapshot = new StringWriter();
+            synchronized (subQueue) {
+                subQueue.dump(new PrintWriter(snapshot));
+            }
+            writer.print("  ");
+            writer.print(snapshot);
         }
     }
 
@@ -809,6 +1542,8 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.e("importMessage: empty PDU");
             return null;
         }
+        final PduMemoryBudget.Reservation pduMemory =
+                PduMemoryBudget.getInstance().charge(pduData.length);
         // Clear the calling identity and query the database using the phone user id
         // Otherwise the AppOps check in TelephonyProvider would complain about mismatch
         // between the calling uid and the package uid
@@ -866,6 +1601,7 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.e("importMessage: failed to persist message", e);
         } finally {
             Binder.restoreCallingIdentity(identity);
+            pduMemory.close();
         }
         return null;
     }
@@ -983,6 +1719,8 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.e("addMmsDraft: empty PDU");
             return null;
         }
+        final PduMemoryBudget.Reservation pduMemory =
+                PduMemoryBudget.getInstance().charge(pduData.length);
         // Clear the calling identity and query the database using the phone user id
         // Otherwise the AppOps check in TelephonyProvider would complain about mismatch
         // between the calling uid and the package uid
@@ -1025,6 +1763,7 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
             LogUtil.e("addMmsDraft: failed to persist message", e);
         } finally {
             Binder.restoreCallingIdentity(identity);
+            pduMemory.close();
         }
         return null;
     }
@@ -1069,66 +1808,132 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
      * @return pdu bytes if succeeded else null.
      */
     public byte[] readPduFromContentUri(final Uri contentUri, final int maxSize) {
-        // Request one extra byte to make sure file not bigger than maxSize
-        byte[] pduData = new byte[maxSize + 1];
-        int bytesRead = readPduBytesFromContentUri(contentUri, pduData);
-        if (bytesRead <= 0) {
+        if (contentUri == null) {
+            LogUtil.e("Uri is null");
             return null;
         }
-        if (bytesRead > maxSize) {
+        return mPduTransferExecutor.call("read", contentUri, TASK_TIMEOUT_MS, transfer -> {
+            final ParcelFileDescriptor pduFd = getContentResolver().openFileDescriptor(
+                    contentUri, "r", transfer.getCancellationSignal());
+            transfer.setDescriptor(pduFd);
+            try (ParcelFileDescriptor.AutoCloseInputStream inStream =
+                         new ParcelFileDescriptor.AutoCloseInputStream(pduFd)) {
+                final byte[] pdu = readPdu(inStream, pduFd.getStatSize(), maxSize);
+                transfer.addBytes(pdu != null ? pdu.length : 0);
+                return pdu;
+            }
+        });
+    }
+
+    /**
+     * Read a whole PDU from a stream. The PDU is read straight into an array of the size of the
+     * file when it is known, so that no more than the PDU is allocated. Streams of unknown size,
+     * such as pipes, are read into pooled buffers and copied once into an array of the exact
+     * size.
+     *
+     * @param inStream the stream to read the PDU from
+     * @param size the size of the file, or a negative value if unknown
+     * @param maxSize the maximum size of the PDU
+     * @return the PDU, or null if it is empty or larger than maxSize
+     */
+    @VisibleForTesting
+    public static byte[] readPdu(InputStream inStream, long size, int maxSize)
+            throws IOException {
+        if (size > maxSize) {
             LogUtil.e("PDU read is too large");
             return null;
         }
-        return Arrays.copyOf(pduData, bytesRead);
+        final byte[] pduData = new byte[(int) Math.max(0, size)];
+        final int bytesRead = readFully(inStream, pduData);
+        if (bytesRead < pduData.length) {
+            // The file shrank since its size was read
+            if (bytesRead <= 0) {
+                LogUtil.e("Empty PDU or at end of the file");
+                return null;
+            }
+            return Arrays.copyOf(pduData, bytesRead);
+        }
+        // Read whatever follows, usually nothing
+        final BufferPool bufferPool = BufferPool.getInstance();
+        final List<byte[]> chunks = new ArrayList<>();
+        try {
+            long totalSize = bytesRead;
+            while (true) {
+                final byte[] chunk = bufferPool.acquire(PDU_CHUNK_SIZE);
+                chunks.add(chunk);
+                final int count = readFully(inStream, chunk);
+                totalSize += count;
+                if (totalSize > maxSize) {
+                    LogUtil.e("PDU read is too large");
+                    return null;
+                }
+                if (count < chunk.length) {
+                    break;
+                }
+            }
+            if (totalSize <= 0) {
+                LogUtil.e("Empty PDU or at end of the file");
+                return null;
+            }
+            if (totalSize == bytesRead) {
+                return pduData;
+            }
+            final byte[] result = Arrays.copyOf(pduData, (int) totalSize);
+            int offset = bytesRead;
+            for (byte[] chunk : chunks) {
+                final int count = Math.min(chunk.length, result.length - offset);
+                System.arraycopy(chunk, 0, result, offset, count);
+                offset += count;
+            }
+            return result;
+        } finally {
+            for (byte[] chunk : chunks) {
+                bufferPool.release(chunk);
+            }
+        }
     }
 
     /**
-     * Read up to length of the pduData array from content provider uri.
+     * Read from a stream until the buffer is full or the end of the stream is reached.
+     *
+     * @return the number of bytes read
+     */
+    static int readFully(InputStream inStream, byte[] buffer) throws IOException {
+        int bytesRead = 0;
+        int count;
+        while (bytesRead < buffer.length
+                && (count = inStream.read(buffer, bytesRead, buffer.length - bytesRead)) > 0) {
+            bytesRead += count;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public PduTransferExecutor getPduTransferExecutor() {
+        return mPduTransferExecutor;
+    }
+
+    /**
+     * Open a PDU to send from content provider uri, so that it is opened only once however many
+     * times it is accessed.
      *
      * @param contentUri content provider uri from which to read.
-     * @param pduData    the buffer into which the data is read.
-     * @return the total number of bytes read into the pduData.
+     * @return the handle, to be closed by the caller, or null if the PDU could not be opened.
      */
-    public int readPduBytesFromContentUri(final Uri contentUri, byte[] pduData) {
+    public PduHandle openPdu(final Uri contentUri) {
         if (contentUri == null) {
             LogUtil.e("Uri is null");
-            return 0;
-        }
-        Callable<Integer> copyPduToArray = new Callable<Integer>() {
-            public Integer call() {
-                ParcelFileDescriptor.AutoCloseInputStream inStream = null;
-                try {
-                    ContentResolver cr = MmsService.this.getContentResolver();
-                    ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "r");
-                    inStream = new ParcelFileDescriptor.AutoCloseInputStream(pduFd);
-                    int bytesRead = inStream.read(pduData, 0, pduData.length);
-                    if (bytesRead <= 0) {
-                        LogUtil.e("Empty PDU or at end of the file");
-                    }
-                    return bytesRead;
-                } catch (IOException ex) {
-                    LogUtil.e("IO exception reading PDU", ex);
-                    return 0;
-                } finally {
-                    if (inStream != null) {
-                        try {
-                            inStream.close();
-                        } catch (IOException ex) {
-                        }
-                    }
-                }
-            }
-        };
-
-        final Future<Integer> pendingResult = mPduTransferExecutor.submit(copyPduToArray);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
-            LogUtil.e("Exception during PDU read", e);
+            return null;
         }
-        return 0;
+        return mPduTransferExecutor.call("open", contentUri, TASK_TIMEOUT_MS, transfer -> {
+            final ParcelFileDescriptor pduFd = getContentResolver().openFileDescriptor(
+                    contentUri, "r", transfer.getCancellationSignal());
+            transfer.setDescriptor(pduFd);
+            final PduHandle pdu = PduHandle.open(contentUri,
+                    new ParcelFileDescriptor.AutoCloseInputStream(pduFd), pduFd.getStatSize());
+            transfer.addBytes(pdu.getHeader().length);
+            return pdu;
+        });
     }
 
     /**
@@ -1142,39 +1947,19 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
         if (contentUri == null || pdu == null) {
             return false;
         }
-        final Callable<Boolean> copyDownloadedPduToOutput = new Callable<Boolean>() {
-            public Boolean call() {
-                ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
-                try {
-                    ContentResolver cr = MmsService.this.getContentResolver();
-                    ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "w");
-                    outStream = new ParcelFileDescriptor.AutoCloseOutputStream(pduFd);
-                    outStream.write(pdu);
-                    return Boolean.TRUE;
-                } catch (IOException ex) {
-                    LogUtil.e("IO exception writing PDU", ex);
-                    return Boolean.FALSE;
-                } finally {
-                    if (outStream != null) {
-                        try {
-                            outStream.close();
-                        } catch (IOException ex) {
-                        }
+        final Boolean written = mPduTransferExecutor.call("write", contentUri, TASK_TIMEOUT_MS,
+                transfer -> {
+                    final ParcelFileDescriptor pduFd = getContentResolver().openFileDescriptor(
+                            contentUri, "w", transfer.getCancellationSignal());
+                    transfer.setDescriptor(pduFd);
+                    try (ParcelFileDescriptor.AutoCloseOutputStream outStream =
+                                 new ParcelFileDescriptor.AutoCloseOutputStream(pduFd)) {
+                        outStream.write(pdu);
+                        transfer.addBytes(pdu.length);
+                        return Boolean.TRUE;
                     }
-                }
-            }
-        };
-
-        final Future<Boolean> pendingResult =
-                mPduTransferExecutor.submit(copyDownloadedPduToOutput);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
-            LogUtil.e("Exception during PDU write", e);
-        }
-        return false;
+                });
+        return Boolean.TRUE.equals(written);
     }
 
     static String formatCrossStackMessageId(long id) {
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The body of a GET response kept in a file across attempts, so that an attempt interrupted
+ * half way can be resumed by the next one with a Range request rather than started over.
+ *
+ * A partial body is only resumed when the server can confirm it is still the same entity:
+ * through its ETag, sent in If-Range, or failing that through the total length of the entity
+ * in Content-Range. If the server ignores the range and sends the whole entity, the partial
+ * body is replaced. A compressed body is never resumed, since its ranges are in encoded bytes
+ * while the file holds the decoded body.
+ *
+ * Not thread safe; attempts of a request never run concurrently.
+ */
+public class PartialResponse {
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    // Size of the buffer used to write the body
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mFile;
+    // Strong entity tag of the body, or null if the server sent none
+    private String mEntityTag;
+    // Length of the whole body, or -1 if unknown
+    private long mTotalLength = -1;
+    // Whether the whole body has been received
+    private boolean mComplete;
+
+    /**
+     * @param file the file to keep the body in, deleted by {@link #discard}
+     */
+    public PartialResponse(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the number of bytes of the body received so far
+     */
+    public long getLength() {
+        return mFile.length();
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Set up the request for the rest of the body, if part of it can be resumed.
+     */
+    void prepareRequest(HttpURLConnection connection, String requestId) {
+        final long offset = getLength();
+        if (offset == 0) {
+            return;
+        }
+        if (mEntityTag == null && mTotalLength < 0) {
+            // Nothing to check the rest against
+            LogUtil.i(requestId, "HTTP: cannot validate partial response, starting over");
+            reset();
+            return;
+        }
+        LogUtil.i(requestId, "HTTP: resuming response at " + offset
+                + (mTotalLength >= 0 ? "/" + mTotalLength : ""));
+        connection.setRequestProperty(HEADER_RANGE, "bytes=" + offset + "-");
+        if (mEntityTag != null) {
+            connection.setRequestProperty(HEADER_IF_RANGE, mEntityTag);
+        }
+    }
+
+    /**
+     * Called when the server rejects the range, so that the next attempt starts over.
+     */
+    void onRangeNotSatisfiable(String requestId) {
+        LogUtil.w(requestId, "HTTP: range not satisfiable, starting over");
+        reset();
+    }
+
+    /**
+     * Write the body of a successful response to the file, after the part already received if
+     * the server sent the rest of it.
+     *
+     * @param in the body, decoded if it is compressed
+     * @param maxSize the maximum size of the whole decoded body
+     * @param encoded whether the body is compressed, in which case it is read whole and not
+     *                kept across attempts
+     * @throws IOException if the body could not be received entirely; what was received is
+     * kept for the next attempt
+     */
+    void readResponse(HttpURLConnection connection, InputStream in, long maxSize,
+            boolean encoded, String requestId) throws IOException, MmsHttpException {
+        final long offset;
+        final long totalLength;
+        if (encoded) {
+            // Content-Length and Content-Range count encoded bytes, nothing to resume with
+            reset();
+            offset = 0;
+            totalLength = -1;
+        } else if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            final String contentRange = connection.getHeaderField(HEADER_CONTENT_RANGE);
+            final long[] range = parseContentRange(contentRange);
+            final String entityTag = getStrongEntityTag(connection);
+            if (range == null || range[0] != getLength()
+                    || (mTotalLength >= 0 && range[1] >= 0 && range[1] != mTotalLength)
+                    || (mEntityTag != null && entityTag != null
+                            && !mEntityTag.equals(entityTag))) {
+                reset();
+                throw new IOException("Unexpected partial response " + contentRange);
+            }
+            offset = range[0];
+            totalLength = range[1] >= 0 ? range[1] : mTotalLength;
+            LogUtil.d(requestId, "HTTP: resumed response at " + offset);
+        } else {
+            // The whole entity, the range was not requested or was ignored
+            reset();
+            offset = 0;
+            mEntityTag = getStrongEntityTag(connection);
+            totalLength = connection.getContentLengthLong();
+        }
+        if (totalLength > maxSize) {
+            reset();
+            throw new ResponseTooLargeMmsHttpException(
+                    "Response of " + totalLength + " bytes is too large");
+        }
+        mTotalLength = totalLength;
+        final byte[] buf = BufferPool.getInstance().acquire(BUFFER_SIZE);
+        try (FileOutputStream out = new FileOutputStream(mFile, offset > 0 /* append */)) {
+            long size = offset;
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                size += count;
+                if (size > maxSize) {
+                    reset();
+                    throw new ResponseTooLargeMmsHttpException(
+                            "Response larger than " + maxSize + " bytes");
+                }
+                // Written straight to the file, so that it is kept if the transfer breaks
+                out.write(buf, 0, count);
+            }
+            if (mTotalLength >= 0 && size != mTotalLength) {
+                throw new IOException("Response truncated at " + size + "/" + mTotalLength);
+            }
+        } finally {
+            BufferPool.getInstance().release(buf);
+        }
+        mComplete = true;
+    }
+
+    /**
+     * Read the whole body.
+     *
+     * @param maxSize the maximum size of the body
+     * @return the body, or null if it is empty or larger than maxSize
+     */
+    public byte[] read(int maxSize) throws IOException {
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            return MmsService.readPdu(in, mFile.length(), maxSize);
+        }
+    }
+
+    /**
+     * Write the whole body to a stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            final FileChannel channel = in.getChannel();
+            final WritableByteChannel target = Channels.newChannel(out);
+            final long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        }
+    }
+
+    /**
+     * Delete the file and forget the body.
+     */
+    public void discard() {
+        reset();
+        mFile.delete();
+    }
+
+    private void reset() {
+        mEntityTag = null;
+        mTotalLength = -1;
+        mComplete = false;
+        try {
+            new FileOutputStream(mFile).close();
+        } catch (IOException e) {
+            LogUtil.w("Failed to truncate partial response", e);
+        }
+    }
+
+    /**
+     * @return the ETag of the response if it is a strong one, the only kind If-Range accepts
+     */
+    private static String getStrongEntityTag(HttpURLConnection connection) {
+        final String entityTag = connection.getHeaderField(HEADER_ETAG);
+        if (entityTag == null || entityTag.startsWith("W/")) {
+            return null;
+        }
+        return entityTag;
+    }
+
+    /**
+     * Parse a Content-Range header of the form "bytes first-last/total", total being "*" if
+     * unknown.
+     *
+     * @return the first byte position and the total length, -1 if unknown, or null if the
+     * header is missing or invalid
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        final int dash = contentRange.indexOf('-');
+        final int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            final long first = Long.parseLong(contentRange.substring(6, dash).trim());
+            final String total = contentRange.substring(slash + 1).trim();
+            return new long[] {first, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE;
+
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A PDU to send, opened once from its content uri.
+ *
+ * Opening a content uri is a call into the provider of the caller, so the handle is opened
+ * when the request is admitted and then serves every later access: the beginning of the PDU is
+ * read right away to classify it and parse its headers, and the whole PDU is read or streamed
+ * from the same descriptor. Regular files can be read any number of times; pipes only once,
+ * after which the header is all that is left.
+ *
+ * This class is thread safe.
+ */
+public class PduHandle implements Closeable {
+    /** How much of the PDU is read when it is opened, enough for the headers of most PDUs */
+    public static final int HEADER_SIZE = 8 * 1024;
+
+    private final Uri mUri;
+    // Size of the file, or -1 if it is not a regular file
+    private final long mSize;
+    // The first bytes of the PDU, at most HEADER_SIZE
+    private final byte[] mHeader;
+    // The stream over the descriptor, null once closed. Not guarded by this, so that closing
+    // does not wait for a read blocked on the provider.
+    private final AtomicReference<FileInputStream> mStream;
+    // Whether the content of a pipe has been read past the header. Guarded by this.
+    private boolean mConsumed;
+
+    private PduHandle(Uri uri, long size, byte[] header, FileInputStream stream) {
+        mUri = uri;
+        mSize = size;
+        mHeader = header;
+        mStream = new AtomicReference<>(stream);
+    }
+
+    /**
+     * Open a PDU from a stream and read its beginning. This may block on the provider of the
+     * PDU.
+     *
+     * @param uri the content uri of the PDU
+     * @param stream the stream to read the PDU from, owned by the handle from now on
+     * @param size the size of the file, or -1 if it is not a regular file
+     * @return the handle, to be closed by the caller
+     */
+    public static PduHandle open(Uri uri, FileInputStream stream, long size) throws IOException {
+        try {
+            byte[] header = new byte[size >= 0 ? (int) Math.min(size, HEADER_SIZE) : HEADER_SIZE];
+            final int bytesRead = MmsService.readFully(stream, header);
+            if (bytesRead < header.length) {
+                header = Arrays.copyOf(header, bytesRead);
+            }
+            return new PduHandle(uri, size, header, stream);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return the size of the PDU in bytes, or -1 if unknown
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the first bytes of the PDU, the whole PDU if it is shorter than HEADER_SIZE. Must
+     * not be modified.
+     */
+    public byte[] getHeader() {
+        return mHeader;
+    }
+
+    /**
+     * X-Mms-Message-Type is at the beginning of the message headers always. 1st byte is
+     * MMS-field-name and 2nd byte is MMS-value for X-Mms-Message-Type field.
+     * See OMA-TS-MMS_ENC-V1_3-20110913-A, 7. Binary Encoding of ProtocolData Units
+     *
+     * @return the X-Mms-Message-Type of the PDU, or 0 if the PDU does not start with it
+     */
+    public int getMessageType() {
+        if (mHeader.length < 2 || (mHeader[0] & 0xFF) != MESSAGE_TYPE) {
+            return 0;
+        }
+        return mHeader[1] & 0xFF;
+    }
+
+    /**
+     * @return whether the PDU is a regular file, which can be read again and streamed
+     */
+    public boolean isSeekable() {
+        return mSize >= 0;
+    }
+
+    /**
+     * Read the whole PDU.
+     *
+     * @param maxSize the maximum size of the PDU
+     * @return the PDU, or null if it is empty or larger than maxSize
+     */
+    public synchronized byte[] read(int maxSize) throws IOException {
+        final FileInputStream stream = getStreamLocked();
+        if (isSeekable()) {
+            stream.getChannel().position(0);
+            return MmsService.readPdu(stream, mSize, maxSize);
+        }
+        if (mConsumed) {
+            throw new IOException("PDU already read from pipe");
+        }
+        mConsumed = true;
+        final InputStream in = new SequenceInputStream(new ByteArrayInputStream(mHeader), stream);
+        return MmsService.readPdu(in, -1, maxSize);
+    }
+
+    /**
+     * Write the whole PDU to a stream. Only regular files can be written, as many times as
+     * needed.
+     *
+     * @param out the stream to write to
+     */
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        if (!isSeekable()) {
+            throw new IOException("Cannot stream PDU from a pipe");
+        }
+        final FileChannel channel = getStreamLocked().getChannel();
+        final WritableByteChannel target = Channels.newChannel(out);
+        long position = 0;
+        while (position < mSize) {
+            final long count = channel.transferTo(position, mSize - position, target);
+            if (count <= 0) {
+                throw new IOException("PDU shorter than " + mSize);
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Close the descriptor. Can be called while the PDU is being read or written, which then
+     * fails rather than wait for the provider.
+     */
+    @Override
+    public void close() {
+        final FileInputStream stream = mStream.getAndSet(null);
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Nothing to do, the descriptor is released anyway
+            }
+        }
+    }
+
+    private FileInputStream getStreamLocked() throws IOException {
+        final FileInputStream stream = mStream.get();
+        if (stream == null) {
+            throw new IOException("PDU handle is closed");
+        }
+        return stream;
+    }
+}
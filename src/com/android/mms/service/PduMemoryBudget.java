@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.app.ActivityManager;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide budget of the PDUs held in memory by the requests in flight.
+ *
+ * A request reserves the size of its PDU before reading it into memory, and releases it once
+ * its result is processed. When the budget is exhausted, requests wait for their turn in
+ * arrival order, without holding a thread, unless they can do without the PDU in memory. A
+ * reservation is always granted when nothing else is reserved, so a PDU larger than the
+ * whole budget still goes through, on its own.
+ *
+ * PDUs that are already in memory when their size becomes known, such as received responses,
+ * are charged without waiting, so that they hold back the next reservations.
+ *
+ * This class is thread safe.
+ */
+public class PduMemoryBudget {
+    private static final long DEFAULT_BUDGET_BYTES = 16 * 1024 * 1024;
+    private static final long LOW_RAM_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    private static final PduMemoryBudget sInstance = new PduMemoryBudget(
+            ActivityManager.isLowRamDeviceStatic() ? LOW_RAM_BUDGET_BYTES : DEFAULT_BUDGET_BYTES);
+
+    /**
+     * Notified once a reservation that had to wait is granted.
+     */
+    public interface Callback {
+        /**
+         * Called on the thread releasing the memory, must not block.
+         */
+        void onReserved(Reservation reservation);
+    }
+
+    /**
+     * Bytes reserved from the budget, until closed.
+     */
+    public class Reservation implements Closeable {
+        private final long mBytes;
+        private final Callback mCallback;
+        // Guarded by the budget
+        private boolean mGranted;
+        private boolean mClosed;
+
+        private Reservation(long bytes, Callback callback) {
+            mBytes = bytes;
+            mCallback = callback;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Give up a reservation still waiting for room.
+         *
+         * @return true if the reservation was waiting and will never be granted, false if it is
+         * already granted or closed
+         */
+        public boolean abandon() {
+            synchronized (PduMemoryBudget.this) {
+                if (mGranted || mClosed) {
+                    return false;
+                }
+                mClosed = true;
+                mWaiting.remove(this);
+            }
+            // Those queued behind it may fit now
+            grantWaiting();
+            return true;
+        }
+
+        /**
+         * Release the bytes, or give up waiting for them. Can be called more than once.
+         */
+        @Override
+        public void close() {
+            synchronized (PduMemoryBudget.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                if (mGranted) {
+                    mUsedBytes -= mBytes;
+                } else {
+                    mWaiting.remove(this);
+                }
+            }
+            grantWaiting();
+        }
+    }
+
+    private final long mBudgetBytes;
+    // Guarded by this
+    private final ArrayDeque<Reservation> mWaiting = new ArrayDeque<>();
+    private long mUsedBytes;
+
+    // Counters reported in dumpsys, guarded by this
+    private long mHighWaterBytes;
+    private long mReservationCount;
+    private long mWaitCount;
+    private long mOverBudgetCount;
+    private long mSpillCount;
+
+    public static PduMemoryBudget getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public PduMemoryBudget(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Reserve bytes if they fit in the budget right away.
+     *
+     * @return the reservation, or null if the budget is exhausted
+     */
+    public synchronized Reservation tryReserve(long bytes) {
+        if (!mWaiting.isEmpty() || !fitsLocked(bytes)) {
+            return null;
+        }
+        final Reservation reservation = new Reservation(bytes, null /* callback */);
+        grantLocked(reservation);
+        return reservation;
+    }
+
+    /**
+     * Reserve bytes, waiting for room if needed.
+     *
+     * @param callback notified once the bytes are reserved, right away on this thread if they
+     *                 fit in the budget
+     * @return the reservation, which can be abandoned while waiting
+     */
+    public Reservation reserve(long bytes, Callback callback) {
+        final Reservation reservation = new Reservation(bytes, callback);
+        synchronized (this) {
+            if (!mWaiting.isEmpty() || !fitsLocked(bytes)) {
+                mWaiting.add(reservation);
+                mWaitCount++;
+                LogUtil.d("PduMemoryBudget: waiting for " + bytes + " bytes, used="
+                        + mUsedBytes + "/" + mBudgetBytes);
+                return reservation;
+            }
+            grantLocked(reservation);
+        }
+        callback.onReserved(reservation);
+        return reservation;
+    }
+
+    /**
+     * Charge bytes already held in memory, over the budget if need be.
+     *
+     * @return the reservation, to close once the bytes are no longer held
+     */
+    public synchronized Reservation charge(long bytes) {
+        if (!fitsLocked(bytes)) {
+            mOverBudgetCount++;
+        }
+        final Reservation reservation = new Reservation(bytes, null /* callback */);
+        grantLocked(reservation);
+        return reservation;
+    }
+
+    /**
+     * Record a request that did without its PDU in memory because the budget was exhausted.
+     */
+    public synchronized void recordSpill() {
+        mSpillCount++;
+    }
+
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return mHighWaterBytes;
+    }
+
+    private boolean fitsLocked(long bytes) {
+        return mUsedBytes == 0 || mUsedBytes + bytes <= mBudgetBytes;
+    }
+
+    private void grantLocked(Reservation reservation) {
+        reservation.mGranted = true;
+        mUsedBytes += reservation.mBytes;
+        mHighWaterBytes = Math.max(mHighWaterBytes, mUsedBytes);
+        mReservationCount++;
+    }
+
+    /**
+     * Grant the waiting reservations that fit, in arrival order.
+     */
+    private void grantWaiting() {
+        final List<Reservation> granted = new ArrayList<>();
+        synchronized (this) {
+            while (!mWaiting.isEmpty() && fitsLocked(mWaiting.peek().mBytes)) {
+                final Reservation reservation = mWaiting.poll();
+                grantLocked(reservation);
+                granted.add(reservation);
+            }
+        }
+        for (Reservation reservation : granted) {
+            reservation.mCallback.onReserved(reservation);
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("budget=" + mBudgetBytes
+                + " used=" + mUsedBytes
+                + " highWater=" + mHighWaterBytes
+                + " waiting=" + mWaiting.size()
+                + " reservations=" + mReservationCount
+                + " waits=" + mWaitCount
+                + " overBudget=" + mOverBudgetCount
+                + " spills=" + mSpillCount);
+    }
+}
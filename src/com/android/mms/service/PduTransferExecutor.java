@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the transfers of PDUs with the content providers of MMS apps.
+ *
+ * Providers are called on a fixed number of threads, and transfers wait in a bounded queue,
+ * so a hung provider cannot make the service spawn threads. Each transfer has a timeout: when
+ * it expires, the provider call is cancelled, the descriptor being transferred is closed, and
+ * the transfer completes as failed whether or not its thread comes back.
+ *
+ * The latency and size of the transfers are recorded per operation and reported in dumpsys,
+ * and slow transfers are logged along with the provider.
+ */
+public class PduTransferExecutor {
+    /** Default time allowed to a transfer before it is cancelled */
+    public static final long DEFAULT_TIMEOUT_MS = 30 * 1000L;
+
+    private static final int THREAD_COUNT = 4;
+    // Transfers waiting for a thread beyond this are rejected
+    private static final int MAX_QUEUED_TRANSFERS = 64;
+    // Transfers taking longer than this are logged
+    private static final long SLOW_TRANSFER_MILLIS = 1000L;
+
+    /**
+     * A transfer to run.
+     */
+    public interface Operation<T> {
+        /**
+         * @param transfer used to register the descriptor and report the bytes transferred
+         * @return the result, or null if the transfer failed
+         */
+        T run(Transfer transfer) throws IOException;
+    }
+
+    /**
+     * Notified once when a transfer completes.
+     */
+    public interface Callback<T> {
+        /**
+         * @param result the result of the transfer, or null if it failed, timed out or could not
+         *               be queued
+         */
+        void onTransferCompleted(T result);
+    }
+
+    /**
+     * State of a running transfer, shared with its operation.
+     */
+    public static class Transfer {
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        // Guarded by this
+        private Closeable mDescriptor;
+        private boolean mCancelled;
+        private long mBytes;
+
+        /**
+         * @return the signal to pass to the provider call, cancelled on timeout
+         */
+        public CancellationSignal getCancellationSignal() {
+            return mCancellationSignal;
+        }
+
+        /**
+         * Register the descriptor the transfer reads or writes, so that it is closed on timeout.
+         * The operation still closes it when done.
+         */
+        public void setDescriptor(Closeable descriptor) throws IOException {
+            synchronized (this) {
+                if (!mCancelled) {
+                    mDescriptor = descriptor;
+                    return;
+                }
+            }
+            descriptor.close();
+            throw new IOException("Transfer timed out");
+        }
+
+        /**
+         * Report bytes read or written by the transfer.
+         */
+        public synchronized void addBytes(long count) {
+            mBytes += count;
+        }
+
+        synchronized long getBytes() {
+            return mBytes;
+        }
+
+        void cancel() {
+            final Closeable descriptor;
+            synchronized (this) {
+                mCancelled = true;
+                descriptor = mDescriptor;
+                mDescriptor = null;
+            }
+            mCancellationSignal.cancel();
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    // Closed anyway
+                }
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledExecutorService mWatchdog;
+    // Whether the current thread is one of the transfer threads
+    private final ThreadLocal<Boolean> mIsTransferThread = ThreadLocal.withInitial(() -> false);
+    // Statistics by operation name, guarded by itself
+    private final ArrayMap<String, OperationStats> mStats = new ArrayMap<>();
+
+    public PduTransferExecutor() {
+        this(THREAD_COUNT, MAX_QUEUED_TRANSFERS);
+    }
+
+    @VisibleForTesting
+    public PduTransferExecutor(int threadCount, int maxQueuedTransfers) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueuedTransfers),
+                runnable -> new Thread(() -> {
+                    mIsTransferThread.set(true);
+                    runnable.run();
+                }, "MmsPduTransfer-" + threadNumber.incrementAndGet()));
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(
+                runnable -> new Thread(runnable, "MmsPduTransferWatchdog"));
+    }
+
+    /**
+     * Run a transfer asynchronously.
+     *
+     * @param name the name of the operation, for statistics
+     * @param uri the content uri transferred, for logging, may be null
+     * @param timeoutMs the time allowed to the transfer, including waiting for a thread, or 0
+     *                  for no timeout
+     * @param operation the transfer
+     * @param callback notified once with the result, on the transfer thread or, on timeout, on
+     *                 the watchdog thread
+     */
+    public <T> void execute(String name, Uri uri, long timeoutMs, Operation<T> operation,
+            Callback<T> callback) {
+        final Task<T> task = new Task<>(name, uri, operation, callback);
+        try {
+            task.mFuture = mExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            LogUtil.e("PduTransfer: too many transfers, rejecting " + name);
+            final OperationStats stats = getStats(name);
+            synchronized (mStats) {
+                stats.mRejectedCount++;
+            }
+            callback.onTransferCompleted(null);
+            return;
+        }
+        if (timeoutMs > 0) {
+            task.mTimeout = mWatchdog.schedule(task::timeOut, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run a transfer and wait for it. On a transfer thread, the transfer runs right away on
+     * that thread, so that transfers can nest without waiting for each other.
+     *
+     * @param name the name of the operation, for statistics
+     * @param uri the content uri transferred, for logging, may be null
+     * @param timeoutMs the time allowed to the transfer, including waiting for a thread, or 0
+     *                  for no timeout
+     * @param operation the transfer
+     * @return the result, or null if the transfer failed, timed out or could not be queued
+     */
+    public <T> T call(String name, Uri uri, long timeoutMs, Operation<T> operation) {
+        final Object[] result = new Object[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Callback<T> callback = value -> {
+            result[0] = value;
+            done.countDown();
+        };
+        if (mIsTransferThread.get()) {
+            final Task<T> task = new Task<>(name, uri, operation, callback);
+            if (timeoutMs > 0) {
+                task.mTimeout = mWatchdog.schedule(task::timeOut, timeoutMs,
+                        TimeUnit.MILLISECONDS);
+            }
+            task.run();
+        } else {
+            execute(name, uri, timeoutMs, operation, callback);
+        }
+        try {
+            // The watchdog completes the transfer on timeout
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final T value = (T) result[0];
+        return value;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+        mWatchdog.shutdown();
+    }
+
+    private OperationStats getStats(String name) {
+        synchronized (mStats) {
+            OperationStats stats = mStats.get(name);
+            if (stats == null) {
+                stats = new OperationStats();
+                mStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Print the state of the executor on one line, then the statistics of each operation on
+     * their own line with the given prefix.
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println("active=" + mExecutor.getActiveCount()
+                + " queued=" + mExecutor.getQueue().size());
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                pw.println(prefix + mStats.keyAt(i) + ": " + mStats.valueAt(i));
+            }
+        }
+    }
+
+    private class Task<T> implements Runnable {
+        private final String mName;
+        private final Uri mUri;
+        private final Operation<T> mOperation;
+        private final Callback<T> mCallback;
+        private final Transfer mTransfer = new Transfer();
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+        private final long mStartTimeMillis = SystemClock.elapsedRealtime();
+        volatile Future<?> mFuture;
+        volatile ScheduledFuture<?> mTimeout;
+
+        Task(String name, Uri uri, Operation<T> operation, Callback<T> callback) {
+            mName = name;
+            mUri = uri;
+            mOperation = operation;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            T result = null;
+            try {
+                result = mOperation.run(mTransfer);
+            } catch (IOException | RuntimeException e) {
+                LogUtil.e("PduTransfer: " + mName + " failed", e);
+            }
+            if (!mCompleted.compareAndSet(false, true)) {
+                // Timed out meanwhile, nobody will use the result
+                if (result instanceof Closeable) {
+                    try {
+                        ((Closeable) result).close();
+                    } catch (IOException e) {
+                        // Nothing to do
+                    }
+                }
+                return;
+            }
+            complete(result, false /* timedOut */);
+        }
+
+        void timeOut() {
+            if (!mCompleted.compareAndSet(false, true)) {
+                return;
+            }
+            mTransfer.cancel();
+            final Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true /* mayInterruptIfRunning */);
+            }
+            complete(null, true /* timedOut */);
+        }
+
+        private void complete(T result, boolean timedOut) {
+            final ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false /* mayInterruptIfRunning */);
+            }
+            final long latencyMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
+            final long bytes = mTransfer.getBytes();
+            final OperationStats stats = getStats(mName);
+            synchronized (mStats) {
+                stats.add(latencyMillis, bytes, result != null, timedOut);
+            }
+            if (timedOut || latencyMillis >= SLOW_TRANSFER_MILLIS) {
+                LogUtil.w("PduTransfer: " + mName
+                        + (mUri != null ? " with " + mUri.getAuthority() : "")
+                        + (timedOut ? " timed out after " : " took ") + latencyMillis + "ms, "
+                        + bytes + " bytes");
+            }
+            mCallback.onTransferCompleted(result);
+        }
+    }
+
+    // Guarded by mStats
+    private static class OperationStats {
+        long mCount;
+        long mFailedCount;
+        long mTimedOutCount;
+        long mRejectedCount;
+        long mTotalLatencyMillis;
+        long mMaxLatencyMillis;
+        long mTotalBytes;
+
+        void add(long latencyMillis, long bytes, boolean succeeded, boolean timedOut) {
+            mCount++;
+            if (!succeeded) {
+                mFailedCount++;
+            }
+            if (timedOut) {
+                mTimedOutCount++;
+            }
+            mTotalLatencyMillis += latencyMillis;
+            mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latencyMillis);
+            mTotalBytes += bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " failed=" + mFailedCount
+                    + " timedOut=" + mTimedOutCount
+                    + " rejected=" + mRejectedCount
+                    + " avgLatencyMs=" + (mCount > 0 ? mTotalLatencyMillis / mCount : 0)
+                    + " maxLatencyMs=" + mMaxLatencyMillis
+                    + " bytes=" + mTotalBytes;
+        }
+    }
+}
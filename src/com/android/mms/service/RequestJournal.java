@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Handler;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.mms.JournaledRequest;
+import com.android.mms.MmsRequestJournal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-disk journal of the requests admitted by {@link MmsService} that have not completed yet.
+ *
+ * MmsService runs in the phone process; if that process dies, the journal lets the next
+ * instance of the service find the transfers that were interrupted and resume them right away
+ * instead of waiting for the retry timers of the MMS app.
+ *
+ * Updates are applied in memory and written to private storage on a handler thread, after a
+ * short delay so that the updates of a burst of requests result in a single write.
+ */
+public class RequestJournal {
+    /** Name of the file where the journal is saved to. */
+    public static final String FILENAME = "mms_request_journal.pb";
+
+    public static final int TYPE_SEND = 0;
+    public static final int TYPE_DOWNLOAD = 1;
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+
+    /** Delay to write the journal, to bundle the updates of a burst of requests together. */
+    private static final int SAVE_TO_FILE_DELAY_MILLIS = 200;
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    // Journaled requests, guarded by this
+    private final ArrayMap<MmsRequest, JournaledRequest> mRequests = new ArrayMap<>();
+    private final Runnable mSaveRunnable = this::saveNow;
+
+    /**
+     * @param file the file where the journal is saved
+     * @param handler the handler on which the journal is written
+     */
+    public RequestJournal(File file, Handler handler) {
+        mFile = new AtomicFile(file);
+        mHandler = handler;
+    }
+
+    /**
+     * Load the requests journaled by a previous instance of the service. The journal is
+     * cleared; replayed requests must be added again.
+     *
+     * @return the journaled requests, empty if there are none or the journal is unreadable
+     */
+    public List<JournaledRequest> loadAndClear() {
+        List<JournaledRequest> requests = Collections.emptyList();
+        try {
+            requests = MmsRequestJournal.parseFrom(mFile.readFully()).getRequestList();
+        } catch (FileNotFoundException e) {
+            // Nothing was interrupted
+        } catch (IOException | RuntimeException e) {
+            LogUtil.e("RequestJournal: cannot load journal", e);
+        }
+        mFile.delete();
+        return requests;
+    }
+
+    /**
+     * Add a request to the journal. Does nothing if the request is already journaled, or if it
+     * does not support journaling.
+     *
+     * @param request the admitted request
+     * @param attemptCount number of times the request was already started
+     */
+    public void add(MmsRequest request, int attemptCount) {
+        final JournaledRequest journaled = request.toJournaledRequest();
+        if (journaled == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mRequests.containsKey(request)) {
+                return;
+            }
+            mRequests.put(request, journaled.toBuilder()
+                    .setAttemptCount(attemptCount)
+                    .setState(STATE_PENDING)
+                    .build());
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Record that a journaled request started executing.
+     */
+    public void markRunning(MmsRequest request) {
+        synchronized (this) {
+            final JournaledRequest journaled = mRequests.get(request);
+            if (journaled == null) {
+                return;
+            }
+            mRequests.put(request, journaled.toBuilder()
+                    .setAttemptCount(journaled.getAttemptCount() + 1)
+                    .setState(STATE_RUNNING)
+                    .build());
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Remove a completed request from the journal.
+     */
+    public void remove(MmsRequest request) {
+        synchronized (this) {
+            if (mRequests.remove(request) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    public synchronized int size() {
+        return mRequests.size();
+    }
+
+    /** Saves a pending update of the journal immediately. */
+    public void flush() {
+        if (mHandler.hasCallbacks(mSaveRunnable)) {
+            mHandler.removeCallbacks(mSaveRunnable);
+            saveNow();
+        }
+    }
+
+    private void scheduleSave() {
+        // A pending save picks up this update as well
+        if (mHandler.hasCallbacks(mSaveRunnable)) {
+            return;
+        }
+        if (!mHandler.postDelayed(mSaveRunnable, SAVE_TO_FILE_DELAY_MILLIS)) {
+            saveNow();
+        }
+    }
+
+    @VisibleForTesting
+    public void saveNow() {
+        // Writes are serialized so that an older snapshot never overwrites a newer one
+        synchronized (mFile) {
+            final List<JournaledRequest> requests;
+            synchronized (this) {
+                requests = new ArrayList<>(mRequests.values());
+            }
+            if (requests.isEmpty()) {
+                mFile.delete();
+                return;
+            }
+            FileOutputStream stream = null;
+            try {
+                stream = mFile.startWrite();
+                stream.write(MmsRequestJournal.newBuilder()
+                        .addAllRequest(requests)
+                        .build()
+                        .toByteArray());
+                mFile.finishWrite(stream);
+            } catch (IOException e) {
+                LogUtil.e("RequestJournal: cannot save journal", e);
+                mFile.failWrite(stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed content encodings of the responses of the MMSC.
+ *
+ * Compression is only advertised to MMSCs that the carrier config opts in for, since some
+ * proxies mangle encoded bodies. The body of an encoded response is decoded on the fly as it is
+ * read, and the bytes received and decoded are counted per subscription and reported in
+ * dumpsys, so that the saving can be measured for each carrier.
+ *
+ * This class is thread safe.
+ */
+public class ResponseEncoding {
+    /** The "Accept-Encoding" header value when compression is enabled */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_X_GZIP = "x-gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+
+    private static final ResponseEncoding sInstance = new ResponseEncoding();
+
+    // Counters by subscription, guarded by this
+    private final SparseArray<Stats> mStats = new SparseArray<>();
+
+    public static ResponseEncoding getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public ResponseEncoding() {
+    }
+
+    /**
+     * @param contentEncoding the Content-Encoding of a response, may be null
+     * @return whether the body is compressed with an encoding that can be decoded
+     */
+    public static boolean isCompressed(String contentEncoding) {
+        return getEncoding(contentEncoding) != null;
+    }
+
+    /**
+     * Wrap the body of a response so that it reads decoded.
+     *
+     * @param contentEncoding the Content-Encoding of the response, see {@link #isCompressed}
+     * @param in the body as received
+     * @return the decoded body
+     */
+    public static InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        final String encoding = getEncoding(contentEncoding);
+        if (encoding == null) {
+            throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+        if (ENCODING_GZIP.equals(encoding)) {
+            return new GZIPInputStream(in);
+        }
+        // "deflate" is meant to be zlib wrapped, but some servers send raw deflate data
+        final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        final byte[] header = new byte[2];
+        int size = 0;
+        int count;
+        while (size < header.length
+                && (count = pushback.read(header, size, header.length - size)) > 0) {
+            size += count;
+        }
+        pushback.unread(header, 0, size);
+        final boolean zlib = size == header.length && (header[0] & 0x0f) == 8
+                && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlib /* nowrap */));
+    }
+
+    private static String getEncoding(String contentEncoding) {
+        if (contentEncoding == null) {
+            return null;
+        }
+        final String encoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (ENCODING_GZIP.equals(encoding) || ENCODING_X_GZIP.equals(encoding)) {
+            return ENCODING_GZIP;
+        }
+        if (ENCODING_DEFLATE.equals(encoding)) {
+            return ENCODING_DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Record a response received with compression advertised.
+     *
+     * @param subId the subscription the response was received on
+     * @param encoded whether the MMSC did compress the response
+     * @param receivedBytes the size of the body as received
+     * @param decodedBytes the size of the body once decoded
+     */
+    public synchronized void record(int subId, boolean encoded, long receivedBytes,
+            long decodedBytes) {
+        Stats stats = mStats.get(subId);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(subId, stats);
+        }
+        stats.mCount++;
+        if (encoded) {
+            stats.mEncodedCount++;
+        }
+        stats.mReceivedBytes += receivedBytes;
+        stats.mDecodedBytes += decodedBytes;
+    }
+
+    /**
+     * Print the counters of each subscription on their own line with the given prefix.
+     */
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        for (int i = 0; i < mStats.size(); i++) {
+            pw.println(prefix + "subId=" + mStats.keyAt(i) + " " + mStats.valueAt(i));
+        }
+    }
+
+    /**
+     * Counts the bytes read through it, to measure the body of a response as received.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long count = super.skip(n);
+            mCount += count;
+            return count;
+        }
+    }
+
+    // Guarded by the enclosing instance
+    private static class Stats {
+        long mCount;
+        long mEncodedCount;
+        long mReceivedBytes;
+        long mDecodedBytes;
+
+        @Override
+        public String toString() {
+            return "responses=" + mCount
+                    + " encoded=" + mEncodedCount
+                    + " receivedBytes=" + mReceivedBytes
+                    + " decodedBytes=" + mDecodedBytes
+                    + " savedPercent=" + (mDecodedBytes > 0
+                            ? (mDecodedBytes - mReceivedBytes) * 100 / mDecodedBytes : 0);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.telephony.SmsManager;
+
+import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.VoluntaryDisconnectMmsHttpException;
+
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Several MMS sends of the same subscription executed as a single request.
+ *
+ * The batch is admitted once and each attempt acquires the MMS network and loads the APN once,
+ * then sends the PDUs back to back. The result of each message is delivered through its own
+ * sent intent as soon as the message is sent.
+ *
+ * Each message has its own retry budget. A message that fails is retried on the next attempt
+ * of the batch, after the back-off, while the other messages are sent on the current one;
+ * once it has failed {@link #RETRY_TIMES} times it fails alone. Attempts failing before any
+ * message is sent, e.g. because the network can't be acquired, are charged to the batch, and
+ * when the batch gives up the remaining messages fail with the result of the batch.
+ *
+ * A message can be cancelled on its own; it then completes as soon as the batch gets to it.
+ */
+public class SendBatchRequest extends MmsRequest {
+    /**
+     * A message of the batch not completed yet.
+     */
+    private static class Member {
+        final SendRequest mRequest;
+        // Attempts of the batch on which this message failed
+        int mFailedAttempts;
+
+        Member(SendRequest request) {
+            mRequest = request;
+        }
+    }
+
+    // Messages of the batch
+    private final List<SendRequest> mRequests;
+    // Messages not completed yet. Only accessed from the steps of the batch, which never run
+    // concurrently.
+    private final List<Member> mRemaining = new ArrayList<>();
+    // Attempts on which messages failed, charged to those messages rather than to the batch
+    private volatile int mChargedAttempts;
+    // The message whose HTTP transaction is in flight, if any
+    private volatile SendRequest mCurrent;
+
+    /**
+     * @param requests the messages, all for subId and built with the same config
+     */
+    public SendBatchRequest(RequestManager manager, int subId, String creator,
+            Bundle configOverrides, Context context, List<SendRequest> requests) {
+        super(manager, subId, creator, configOverrides, context, 0L /* messageId */,
+                null /* mmsStats */);
+        mRequests = new ArrayList<>(requests);
+        for (SendRequest request : requests) {
+            mRemaining.add(new Member(request));
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return the messages of the batch
+     */
+    public List<SendRequest> getRequests() {
+        return mRequests;
+    }
+
+    @Override
+    public void cancel(int reason) {
+        super.cancel(reason);
+        // Each message has its own cancellation signal
+        final SendRequest current = mCurrent;
+        if (current != null) {
+            current.cancelHttp();
+        }
+    }
+
+    @Override
+    protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
+            throws MmsHttpException {
+        MmsHttpException failure = null;
+        final Iterator<Member> iterator = mRemaining.iterator();
+        while (iterator.hasNext()) {
+            if (isCancelled()) {
+                throw new MmsHttpException(0, "Batch cancelled");
+            }
+            final Member member = iterator.next();
+            final SendRequest request = member.mRequest;
+            if (request.isCancelled()) {
+                iterator.remove();
+                request.completeCancelledBeforeExecution(context, CANCEL_REASON_REQUESTED);
+                continue;
+            }
+            final long startTimeMillis = SystemClock.elapsedRealtime();
+            final byte[] response;
+            mCurrent = request;
+            try {
+                response = request.doHttpOnBehalfOf(this, context, netMgr, apn);
+            } catch (VoluntaryDisconnectMmsHttpException e) {
+                // The whole batch moves to the new network
+                throw e;
+            } catch (MmsHttpException e) {
+                if (isCancelled()) {
+                    throw e;
+                }
+                if (request.isCancelled()) {
+                    iterator.remove();
+                    request.completeCancelledBeforeExecution(context, CANCEL_REASON_REQUESTED);
+                    continue;
+                }
+                mRequestManager.onHttpTransactionCompleted(mSubId, e.getStatusCode(),
+                        SystemClock.elapsedRealtime() - startTimeMillis);
+                if (++member.mFailedAttempts >= RETRY_TIMES) {
+                    LogUtil.e(request.getRequestId(), "Batched request failed", e);
+                    iterator.remove();
+                    request.processResult(context, SmsManager.MMS_ERROR_HTTP_FAILURE, null,
+                            e.getStatusCode(), false /* handledByCarrierApp */,
+                            member.mFailedAttempts);
+                } else {
+                    LogUtil.w(request.getRequestId(), "Batched request failed, will retry: "
+                            + e);
+                    failure = e;
+                }
+                continue;
+            } finally {
+                mCurrent = null;
+            }
+            mRequestManager.onHttpTransactionCompleted(mSubId, HttpURLConnection.HTTP_OK,
+                    SystemClock.elapsedRealtime() - startTimeMillis);
+            iterator.remove();
+            request.processResult(context, Activity.RESULT_OK, response, 0 /* httpStatusCode */,
+                    false /* handledByCarrierApp */, member.mFailedAttempts);
+        }
+        if (failure != null) {
+            // Only the messages that failed are sent again
+            mChargedAttempts++;
+            throw failure;
+        }
+        return null;
+    }
+
+    @Override
+    protected boolean reportsHttpTransactions() {
+        // Each message is reported on its own
+        return false;
+    }
+
+    @Override
+    protected int getRetryTimes() {
+        return RETRY_TIMES + mChargedAttempts;
+    }
+
+    @Override
+    protected PendingIntent getPendingIntent() {
+        // Each message has its own sent intent
+        return null;
+    }
+
+    @Override
+    protected int getQueueType() {
+        return MmsService.QUEUE_INDEX_SEND;
+    }
+
+    @Override
+    protected int getPriority() {
+        return PRIORITY_USER;
+    }
+
+    @Override
+    protected long getPayloadSizeHint() {
+        long size = 0;
+        for (SendRequest request : mRequests) {
+            size += request.getPayloadSizeHint();
+        }
+        return size;
+    }
+
+    @Override
+    protected Uri persistIfRequired(Context context, int result, byte[] response) {
+        // Each message is persisted when its own result is processed
+        return null;
+    }
+
+    @Override
+    protected boolean prepareForHttpRequest() {
+        // A message whose PDU cannot be read fails on its own, the others are still sent
+        final Iterator<Member> iterator = mRemaining.iterator();
+        while (iterator.hasNext()) {
+            final SendRequest request = iterator.next().mRequest;
+            if (request.isCancelled()) {
+                iterator.remove();
+                request.completeCancelledBeforeExecution(mContext, CANCEL_REASON_REQUESTED);
+            } else if (!request.prepareForHttpRequest()) {
+                LogUtil.e(request.getRequestId(), "Failed to prepare batched request");
+                iterator.remove();
+                request.processResult(mContext, SmsManager.MMS_ERROR_IO_ERROR, null,
+                        0 /* httpStatusCode */, false /* handledByCarrierApp */);
+            }
+        }
+        return !mRemaining.isEmpty();
+    }
+
+    @Override
+    protected long getPduMemorySize() {
+        long size = 0;
+        for (SendRequest request : mRequests) {
+            size += request.getPduMemorySize();
+        }
+        return size;
+    }
+
+    @Override
+    protected boolean transfersPduToPrepare() {
+        return true;
+    }
+
+    @Override
+    protected Closeable getPduDescriptor() {
+        final List<Closeable> descriptors = new ArrayList<>();
+        for (Member member : mRemaining) {
+            final Closeable descriptor = member.mRequest.getPduDescriptor();
+            if (descriptor != null) {
+                descriptors.add(descriptor);
+            }
+        }
+        if (descriptors.isEmpty()) {
+            return null;
+        }
+        return () -> {
+            for (Closeable descriptor : descriptors) {
+                descriptor.close();
+            }
+        };
+    }
+
+    @Override
+    protected boolean transferResponse(Intent fillIn, byte[] response) {
+        return true;
+    }
+
+    @Override
+    protected void revokeUriPermission(Context context) {
+        // Each message revokes its own permission when its result is processed
+    }
+
+    @Override
+    protected void onResultProcessed(Context context, int result, byte[] response,
+            int httpStatusCode, Uri messageUri) {
+        for (Member member : mRemaining) {
+            final SendRequest request = member.mRequest;
+            if (request.isCancelled()) {
+                request.completeCancelledBeforeExecution(context, CANCEL_REASON_REQUESTED);
+            } else {
+                request.processResult(context, result, null /* response */, httpStatusCode,
+                        false /* handledByCarrierApp */, member.mFailedAttempts);
+            }
+        }
+        mRemaining.clear();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " remaining: " + mRemaining.size() + "/" + mRequests.size();
+    }
+}
@@ -25,18 +25,22 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.PersistableBundle;
 import android.os.UserHandle;
 import android.provider.BlockedNumberContract;
 import android.provider.Telephony;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.CarrierMessagingServiceWrapper;
+import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.SmsApplication;
 import com.android.internal.telephony.SmsNumberUtils;
+import com.android.mms.JournaledRequest;
 import com.android.mms.service.exception.MmsHttpException;
 import com.android.mms.service.metrics.MmsStats;
 
@@ -51,14 +55,34 @@ import com.google.android.mms.pdu.SendConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Request to send an MMS
  */
 public class SendRequest extends MmsRequest {
+    // PDUs at least this large are streamed from their content uri when possible
+    private static final int MIN_STREAMING_PDU_SIZE = 256 * 1024;
     private final Uri mPduUri;
+    // The PDU opened at admission, null if it could not be opened or once it is read or the
+    // request completes
+    private volatile PduHandle mPduHandle;
     private byte[] mPduData;
+    // Size and recipients of a PDU streamed from mPduHandle rather than read into mPduData,
+    // which is only possible if the PDU needs neither to be rewritten nor persisted
+    private long mStreamingPduSize;
+    private EncodedStringValue[] mStreamingRecipients;
+    // Whether the PDU of mPduHandle can be sent as is, null until checked. Checked once, since
+    // sizing, spilling and preparing the request all ask and the check takes binder calls.
+    private Boolean mCanSendPduAsIs;
     private final String mLocationUrl;
     private final PendingIntent mSentIntent;
+    // X-Mms-Message-Type and size of the PDU as seen at admission, used for scheduling
+    private int mPduMessageType;
+    private long mPduSizeHint;
 
     public SendRequest(RequestManager manager, int subId, Uri contentUri, String locationUrl,
             PendingIntent sentIntent, String creator, Bundle configOverrides, Context context,
@@ -70,6 +94,19 @@ public class SendRequest extends MmsRequest {
         mSentIntent = sentIntent;
     }
 
+    @Override
+    protected JournaledRequest toJournaledRequest() {
+        final JournaledRequest.Builder builder =
+                newJournaledRequestBuilder(RequestJournal.TYPE_SEND);
+        if (mLocationUrl != null) {
+            builder.setLocationUrl(mLocationUrl);
+        }
+        if (mPduUri != null) {
+            builder.setContentUri(mPduUri.toString());
+        }
+        return builder.build();
+    }
+
     @Override
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
             throws MmsHttpException {
@@ -81,8 +118,23 @@ public class SendRequest extends MmsRequest {
             LogUtil.e(requestId, notReady);
             throw new MmsHttpException(0/*statusCode*/, notReady);
         }
+        if (mStreamingPduSize > 0) {
+            notifyIfEmergencyContactNoThrow(mStreamingRecipients);
+            return mmsHttpClient.execute(
+                    mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
+                    new PduHandleRequestBody(),
+                    apn.isProxySet(),
+                    apn.getProxyAddress(),
+                    apn.getProxyPort(),
+                    mMmsConfig,
+                    mSubId,
+                    requestId,
+                    getHttpCancellationSignal());
+        }
         final GenericPdu parsedPdu = parsePdu();
-        notifyIfEmergencyContactNoThrow(parsedPdu);
+        notifyIfEmergencyContactNoThrow(parsedPdu != null
+                && parsedPdu.getMessageType() == PduHeaders.MESSAGE_TYPE_SEND_REQ
+                ? ((SendReq) parsedPdu).getTo() : null);
         updateDestinationAddress(parsedPdu);
         return mmsHttpClient.execute(
                 mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
@@ -93,7 +145,8 @@ public class SendRequest extends MmsRequest {
                 apn.getProxyPort(),
                 mMmsConfig,
                 mSubId,
-                requestId);
+                requestId,
+                getHttpCancellationSignal());
     }
 
     private GenericPdu parsePdu() {
@@ -118,19 +171,18 @@ public class SendRequest extends MmsRequest {
      * If the MMS is being sent to an emergency number, the blocked number provider is notified
      * so that it can disable number blocking.
      */
-    private void notifyIfEmergencyContactNoThrow(final GenericPdu parsedPdu) {
+    private void notifyIfEmergencyContactNoThrow(final EncodedStringValue[] recipients) {
         try {
-            notifyIfEmergencyContact(parsedPdu);
+            notifyIfEmergencyContact(recipients);
         } catch (Exception e) {
             LogUtil.w(getRequestId(), "Error in notifyIfEmergencyContact. "
                     + MmsService.formatCrossStackMessageId(mMessageId), e);
         }
     }
 
-    private void notifyIfEmergencyContact(final GenericPdu parsedPdu) {
-        if (parsedPdu != null && parsedPdu.getMessageType() == PduHeaders.MESSAGE_TYPE_SEND_REQ) {
-            SendReq sendReq = (SendReq) parsedPdu;
-            for (EncodedStringValue encodedStringValue : sendReq.getTo()) {
+    private void notifyIfEmergencyContact(final EncodedStringValue[] recipients) {
+        if (recipients != null) {
+            for (EncodedStringValue encodedStringValue : recipients) {
                 if (isEmergencyNumber(encodedStringValue.getString())) {
                     LogUtil.i(getRequestId(), "Notifying emergency contact. "
                             + MmsService.formatCrossStackMessageId(mMessageId));
@@ -173,22 +225,43 @@ public class SendRequest extends MmsRequest {
         return MmsService.QUEUE_INDEX_SEND;
     }
 
+    /**
+     * Hand over the PDU opened at admission. The request is scheduled according to its type and
+     * size, reads or streams it without opening the content uri again, and closes it.
+     *
+     * @param pdu the PDU opened from the content uri of the request, or null if it could not be
+     *            opened, in which case the request opens the uri itself
+     */
+    void setPduHandle(PduHandle pdu) {
+        mPduHandle = pdu;
+        if (pdu != null) {
+            mPduMessageType = pdu.getMessageType();
+            mPduSizeHint = Math.max(0, pdu.getSize());
+        }
+    }
+
+    @Override
+    protected int getPriority() {
+        switch (mPduMessageType) {
+            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                return PRIORITY_CONTROL;
+            default:
+                return PRIORITY_USER;
+        }
+    }
+
+    @Override
+    protected long getPayloadSizeHint() {
+        return mPduSizeHint;
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
 
-        SubscriptionManager subManager = context.getSystemService(SubscriptionManager.class);
-        UserHandle userHandle = null;
-        long identity = Binder.clearCallingIdentity();
-        try {
-            if ((subManager != null) && (subManager.isActiveSubscriptionId(mSubId))) {
-                userHandle = subManager.getSubscriptionUserHandle(mSubId);
-            }
-        } finally {
-            Binder.restoreCallingIdentity(identity);
-        }
-
-        if (!SmsApplication.shouldWriteMessageForPackageAsUser(mCreator, context, userHandle)) {
+        if (!isPersistRequired(context)) {
             return null;
         }
 
@@ -199,7 +272,7 @@ public class SendRequest extends MmsRequest {
                     + MmsService.formatCrossStackMessageId(mMessageId));
             return null;
         }
-        identity = Binder.clearCallingIdentity();
+        final long identity = Binder.clearCallingIdentity();
         try {
             final boolean supportContentDisposition =
                     mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
@@ -278,6 +351,25 @@ public class SendRequest extends MmsRequest {
         return null;
     }
 
+    /**
+     * @return whether the sent message must be persisted by the service, i.e. the creator is not
+     * the default SMS app
+     */
+    @VisibleForTesting
+    boolean isPersistRequired(Context context) {
+        SubscriptionManager subManager = context.getSystemService(SubscriptionManager.class);
+        UserHandle userHandle = null;
+        long identity = Binder.clearCallingIdentity();
+        try {
+            if ((subManager != null) && (subManager.isActiveSubscriptionId(mSubId))) {
+                userHandle = subManager.getSubscriptionUserHandle(mSubId);
+            }
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        return SmsApplication.shouldWriteMessageForPackageAsUser(mCreator, context, userHandle);
+    }
+
     /**
      * Update the destination Address of MO MMS before sending.
      * This is special for VZW requirement. Follow the specificaitons of assisted dialing
@@ -365,7 +457,17 @@ public class SendRequest extends MmsRequest {
             return true;
         }
         final int bytesTobeRead = mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
-        mPduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
+        if (mPduHandle == null) {
+            mPduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
+            return (mPduData != null);
+        }
+        try {
+            mPduData = mPduHandle.read(bytesTobeRead);
+        } catch (IOException e) {
+            LogUtil.e(getRequestId(), "IO exception reading PDU", e);
+        }
+        // The PDU is in memory from now on, or will never be
+        closePduHandle();
         return (mPduData != null);
     }
 
@@ -391,7 +493,145 @@ public class SendRequest extends MmsRequest {
      */
     @Override
     protected boolean prepareForHttpRequest() {
-        return readPduFromContentUri();
+        return prepareForStreaming(false /* anySize */) || readPduFromContentUri();
+    }
+
+    @Override
+    protected boolean transfersPduToPrepare() {
+        return mPduData == null && mStreamingPduSize == 0;
+    }
+
+    @Override
+    protected Closeable getPduDescriptor() {
+        return mPduHandle;
+    }
+
+    @Override
+    protected long getPduMemorySize() {
+        if (mPduData != null || prepareForStreaming(false /* anySize */)) {
+            return 0;
+        }
+        // The size of a PDU read from a pipe is only known once read
+        return mPduSizeHint > 0 ? mPduSizeHint
+                : mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+    }
+
+    @Override
+    protected boolean spillPdu() {
+        return prepareForStreaming(true /* anySize */);
+    }
+
+    /**
+     * Check whether a large PDU can be streamed from its content uri rather than read into
+     * memory. This requires the PDU to be sent as is, without destination address conversion,
+     * and not to be persisted by the service, since both need the whole PDU.
+     *
+     * @param anySize whether to stream the PDU even if it is small, to keep it out of memory
+     * @return true if the PDU will be streamed
+     */
+    private boolean prepareForStreaming(boolean anySize) {
+        if (mStreamingPduSize > 0) {
+            return true;
+        }
+        if (mPduData != null || mPduHandle == null || !mPduHandle.isSeekable()) {
+            return false;
+        }
+        final long size = mPduHandle.getSize();
+        if (size <= 0 || (size < MIN_STREAMING_PDU_SIZE && !anySize)
+                || size > mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE)
+                || !canSendPduAsIs()) {
+            return false;
+        }
+        LogUtil.d(getRequestId(), "Streaming PDU of " + size + " bytes");
+        mStreamingPduSize = size;
+        return true;
+    }
+
+    /**
+     * @return whether the PDU of mPduHandle can be sent without being parsed whole, in which
+     * case its recipients are read from its headers
+     */
+    private boolean canSendPduAsIs() {
+        if (mCanSendPduAsIs == null) {
+            mCanSendPduAsIs = !requiresDestinationNumberConversion()
+                    && !isPersistRequired(mContext) && readStreamingRecipients();
+        }
+        return mCanSendPduAsIs;
+    }
+
+    private boolean readStreamingRecipients() {
+        final PduHeaders headers;
+        try {
+            headers = new PduHeaderParser(mPduHandle.getHeader(), mMmsConfig.getBoolean(
+                    SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION)).parseHeaders();
+        } catch (RuntimeException e) {
+            LogUtil.w(getRequestId(), "Failed to parse PDU headers, not streaming", e);
+            return false;
+        }
+        if (headers == null) {
+            return false;
+        }
+        mStreamingRecipients = headers.getEncodedStringValues(PduHeaders.TO);
+        return true;
+    }
+
+    @VisibleForTesting
+    boolean requiresDestinationNumberConversion() {
+        final CarrierConfigManager configManager =
+                mContext.getSystemService(CarrierConfigManager.class);
+        final PersistableBundle config =
+                configManager != null ? configManager.getConfigForSubId(mSubId) : null;
+        // Assume the worst if carrier config is unavailable
+        return config == null || config.getBoolean(
+                CarrierConfigManager.KEY_SMS_REQUIRES_DESTINATION_NUMBER_CONVERSION_BOOL);
+    }
+
+    /**
+     * Streams the PDU from the handle opened at admission, for every attempt.
+     */
+    private class PduHandleRequestBody implements MmsHttpClient.RequestBody {
+        @Override
+        public long getLength() {
+            return mStreamingPduSize;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final PduHandle pdu = mPduHandle;
+            if (pdu == null) {
+                throw new IOException("PDU handle is closed");
+            }
+            pdu.writeTo(out);
+        }
+    }
+
+    /**
+     * Parses the headers of a PDU from its beginning, without the body.
+     */
+    private static class PduHeaderParser extends PduParser {
+        private final byte[] mHeader;
+
+        PduHeaderParser(byte[] header, boolean supportContentDisposition) {
+            super(header, supportContentDisposition);
+            mHeader = header;
+        }
+
+        /**
+         * @return the headers of a send request, or null if they are not all within the header
+         * read, e.g. a long recipient list is cut off, since the recipients must be complete
+         */
+        PduHeaders parseHeaders() {
+            final PduHeaders headers = parseHeaders(new ByteArrayInputStream(mHeader));
+            if (headers == null || headers.getOctet(PduHeaders.MESSAGE_TYPE)
+                    != PduHeaders.MESSAGE_TYPE_SEND_REQ) {
+                return null;
+            }
+            // Content-Type is the last header, parsing stops at the end of the buffer otherwise
+            if (headers.getTextString(PduHeaders.CONTENT_TYPE) == null) {
+                return null;
+            }
+            return headers;
+        }
     }
 
     /**
@@ -409,11 +649,21 @@ public class SendRequest extends MmsRequest {
 
     @Override
     protected void revokeUriPermission(Context context) {
+        // The PDU is not read past this point, e.g. once sent by the carrier app
+        closePduHandle();
         if (mPduUri != null) {
             context.revokeUriPermission(mPduUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
         }
     }
 
+    private void closePduHandle() {
+        final PduHandle pdu = mPduHandle;
+        if (pdu != null) {
+            mPduHandle = null;
+            pdu.close();
+        }
+    }
+
     /**
      * Sends the MMS through through the carrier app.
      */
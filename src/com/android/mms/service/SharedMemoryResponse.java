@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A downloaded PDU handed to the app in a read-only {@link SharedMemory} region, instead of
+ * being written to its content uri.
+ *
+ * The result intent of a download cannot carry file descriptors, so it carries this binder,
+ * which the app calls once with {@link #TRANSACTION_GET_MEMORY} to receive the region:
+ *
+ *   Parcel reply = Parcel.obtain();
+ *   binder.transact(TRANSACTION_GET_MEMORY, Parcel.obtain(), reply, 0);
+ *   SharedMemory pdu = reply.readTypedObject(SharedMemory.CREATOR);
+ *
+ * The region is sealed read-only before it is handed out, and is only served once, to the app
+ * that downloaded the message. The service closes its descriptor as soon as the region is
+ * served, so that the region is freed once the app closes the one it received. If the app never
+ * asks for it, the region is freed when this binder is garbage collected.
+ */
+public class SharedMemoryResponse extends Binder {
+    /** Extra of the result intent holding a bundle with the binder, under the same key */
+    public static final String EXTRA_MMS_SHARED_MEMORY_RESPONSE =
+            "android.telephony.extra.MMS_SHARED_MEMORY_RESPONSE";
+
+    /** Transaction returning the region holding the PDU, as a typed object */
+    public static final int TRANSACTION_GET_MEMORY = IBinder.FIRST_CALL_TRANSACTION;
+
+    private final int mOwnerUid;
+    // Null once served, guarded by this
+    private SharedMemory mMemory;
+
+    private SharedMemoryResponse(SharedMemory memory, int ownerUid) {
+        mMemory = memory;
+        mOwnerUid = ownerUid;
+    }
+
+    /**
+     * Copy a PDU into a new read-only region.
+     *
+     * @param pdu the PDU, not empty
+     * @param ownerUid the only uid the region is served to
+     */
+    public static SharedMemoryResponse create(byte[] pdu, int ownerUid) throws ErrnoException {
+        final SharedMemory memory = SharedMemory.create("mms-response", pdu.length);
+        try {
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.put(pdu);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            // Nobody can map it writable after this, including the app
+            if (!memory.setProtect(OsConstants.PROT_READ)) {
+                throw new ErrnoException("setProtect", OsConstants.EPERM);
+            }
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+        return new SharedMemoryResponse(memory, ownerUid);
+    }
+
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        if (code != TRANSACTION_GET_MEMORY) {
+            return super.onTransact(code, data, reply, flags);
+        }
+        if (Binder.getCallingUid() != mOwnerUid) {
+            throw new SecurityException("Response belongs to uid " + mOwnerUid);
+        }
+        final SharedMemory memory;
+        synchronized (this) {
+            memory = mMemory;
+            mMemory = null;
+        }
+        if (memory == null) {
+            throw new IllegalStateException("Response already served");
+        }
+        try {
+            // The reply holds its own duplicate of the descriptor
+            reply.writeTypedObject(memory, 0 /* flags */);
+        } finally {
+            memory.close();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduling state of the MMS requests for a single subscription.
+ *
+ * Each subscription owns its own send and download thread pools so that a slow MMSC on one
+ * subscription cannot occupy the threads needed by another one. Requests that cannot run yet,
+ * because the subscription has not been granted a data slot, wait in the pending queue. Both
+ * the pending queue and the thread pool queues are ordered by
+ * {@link MmsRequest#compareForScheduling}, so control PDUs overtake large sends and sends
+ * overtake downloads, while aging keeps every request moving.
+ *
+ * The width of the thread pools comes from carrier config and, in adaptive mode, follows the
+ * latency and error rate of the MMSC as decided by {@link AdaptiveConcurrencyController}.
+ *
+ * This class is not thread safe; callers must hold the lock of the instance, except for
+ * {@link #execute} and {@link #isWaitingForSlot}.
+ */
+public class SubscriptionRequestQueue {
+    // How long an idle thread of the request thread pools is kept
+    private static final long THREAD_KEEP_ALIVE_MILLIS = 60 * 1000L;
+
+    private final int mSubId;
+
+    // Requests waiting for this subscription to be scheduled
+    private final Queue<MmsRequest> mPendingRequests =
+            new PriorityQueue<>(MmsRequest::compareForScheduling);
+
+    // Running request queues, one thread pool per queue
+    // 0: send queue
+    // 1: download queue
+    private final ThreadPoolExecutor[] mRunningRequestExecutors = new ThreadPoolExecutor[2];
+
+    // Decides the width of the thread pools
+    private final AdaptiveConcurrencyController mConcurrencyController =
+            new AdaptiveConcurrencyController(MmsService.THREAD_POOL_SIZE, false, 0L);
+
+    // The number of requests currently executing for this subscription
+    private int mRunningRequestCount;
+    // Whether requests are pending while nothing runs, i.e. a data slot is needed. Volatile so
+    // that the scheduler can look for waiting subscriptions without taking their locks.
+    private volatile boolean mWaitingForSlot;
+
+    // Counters reported in dumpsys
+    private long mAdmittedRequestCount;
+    private long mQueuedRequestCount;
+    private int mMaxPendingDepth;
+    private long mTotalWaitTimeMillis;
+    private long mMaxWaitTimeMillis;
+    private final long[] mAdmittedCountByPriority = new long[MmsRequest.PRIORITY_BACKGROUND + 1];
+
+    public SubscriptionRequestQueue(int subId) {
+        this(subId, THREAD_KEEP_ALIVE_MILLIS);
+    }
+
+    @VisibleForTesting
+    SubscriptionRequestQueue(int subId, long threadKeepAliveMillis) {
+        mSubId = subId;
+        for (int i = 0; i < mRunningRequestExecutors.length; i++) {
+            mRunningRequestExecutors[i] = new ThreadPoolExecutor(MmsService.THREAD_POOL_SIZE,
+                    MmsService.THREAD_POOL_SIZE, threadKeepAliveMillis, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>());
+            // The pools live as long as the service but are idle most of the time, so their
+            // threads exit once idle rather than stay as wide as the concurrency limit
+            mRunningRequestExecutors[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    public int getSubId() {
+        return mSubId;
+    }
+
+    /**
+     * @return true if at least one request of this subscription is executing
+     */
+    public boolean isActive() {
+        return mRunningRequestCount > 0;
+    }
+
+    public int getRunningRequestCount() {
+        return mRunningRequestCount;
+    }
+
+    public boolean hasPendingRequests() {
+        return !mPendingRequests.isEmpty();
+    }
+
+    public int getPendingRequestCount() {
+        return mPendingRequests.size();
+    }
+
+    /**
+     * @return true if requests are pending but none is executing, i.e. this subscription waits
+     * for a data slot. Safe to call without holding the lock.
+     */
+    public boolean isWaitingForSlot() {
+        return mWaitingForSlot;
+    }
+
+    private void updateWaitingForSlot() {
+        mWaitingForSlot = mRunningRequestCount <= 0 && !mPendingRequests.isEmpty();
+    }
+
+    /**
+     * @return the scheduling key of the next pending request, or {@link Long#MAX_VALUE} if
+     * nothing is pending
+     */
+    public long getNextSchedulingKey() {
+        final MmsRequest head = mPendingRequests.peek();
+        return head != null ? head.getSchedulingKey() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Park a request until this subscription gets scheduled.
+     */
+    public void addPendingRequest(MmsRequest request) {
+        mPendingRequests.add(request);
+        mQueuedRequestCount++;
+        mMaxPendingDepth = Math.max(mMaxPendingDepth, mPendingRequests.size());
+        updateWaitingForSlot();
+    }
+
+    /**
+     * Remove the pending request that should run next.
+     *
+     * @return the request, or null if nothing is pending
+     */
+    public MmsRequest pollPendingRequest() {
+        final MmsRequest request = mPendingRequests.poll();
+        updateWaitingForSlot();
+        return request;
+    }
+
+    /**
+     * Remove a request from the pending queue, e.g. because it was cancelled.
+     *
+     * @return true if the request was pending
+     */
+    public boolean removePendingRequest(MmsRequest request) {
+        final boolean removed = mPendingRequests.remove(request);
+        updateWaitingForSlot();
+        return removed;
+    }
+
+    /**
+     * @return whether there is a thread pool for the queue type of the request
+     */
+    public boolean hasExecutorFor(MmsRequest request) {
+        final int queue = request.getQueueType();
+        return queue >= 0 && queue < mRunningRequestExecutors.length;
+    }
+
+    /**
+     * Run a step of a request on the thread pool matching its queue type. The step is queued
+     * behind the steps of other requests in scheduling order.
+     *
+     * @param request the request, used for the queue type and scheduling order
+     * @param task the step to run
+     * @return false if the queue type of the request is invalid
+     */
+    public boolean execute(MmsRequest request, Runnable task) {
+        if (!hasExecutorFor(request)) {
+            return false;
+        }
+        // Must use execute() rather than submit(): submit() wraps the task in a FutureTask,
+        // which the PriorityBlockingQueue cannot order.
+        mRunningRequestExecutors[request.getQueueType()].execute(
+                new PrioritizedTask(request, task));
+        return true;
+    }
+
+    /**
+     * Configure how many requests may run concurrently in each thread pool.
+     *
+     * @param maxLimit the maximum pool width
+     * @param adaptive whether to adapt the width to the observed MMSC behaviour
+     * @param latencyTargetMillis in adaptive mode, latency above which the width is reduced
+     */
+    public void configureConcurrency(int maxLimit, boolean adaptive, long latencyTargetMillis) {
+        mConcurrencyController.configure(maxLimit, adaptive, latencyTargetMillis);
+        applyConcurrencyLimit();
+    }
+
+    /**
+     * Feed the outcome of an HTTP transaction with the MMSC to the concurrency controller.
+     *
+     * @param statusCode the HTTP status code, or 0 if no response was received
+     * @param latencyMillis how long the transaction took
+     * @param nowMillis the current elapsed realtime
+     */
+    public void onHttpTransactionCompleted(int statusCode, long latencyMillis, long nowMillis) {
+        if (mConcurrencyController.onTransactionCompleted(statusCode, latencyMillis, nowMillis)) {
+            LogUtil.i("Concurrency limit for subId " + mSubId + " changed to "
+                    + mConcurrencyController.getLimit() + " after status " + statusCode
+                    + " latency " + latencyMillis + "ms");
+            applyConcurrencyLimit();
+        }
+    }
+
+    @VisibleForTesting
+    public int getConcurrencyLimit() {
+        return mConcurrencyController.getLimit();
+    }
+
+    /**
+     * @return the number of threads currently in the request thread pools
+     */
+    @VisibleForTesting
+    int getThreadCount() {
+        int count = 0;
+        for (ThreadPoolExecutor executor : mRunningRequestExecutors) {
+            count += executor.getPoolSize();
+        }
+        return count;
+    }
+
+    private void applyConcurrencyLimit() {
+        final int limit = mConcurrencyController.getLimit();
+        for (ThreadPoolExecutor executor : mRunningRequestExecutors) {
+            // Both sizes follow the limit: threads above the core size keep draining the queue
+            // while it is not empty, so only lowering the maximum actually narrows the pool.
+            // The core size may never exceed the maximum, hence the ordering.
+            if (limit > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(limit);
+                executor.setCorePoolSize(limit);
+            } else {
+                executor.setCorePoolSize(limit);
+                executor.setMaximumPoolSize(limit);
+            }
+        }
+    }
+
+    /**
+     * Record that a request starts executing.
+     *
+     * @param request the request
+     * @param waitTimeMillis how long the request waited between admission and execution
+     */
+    public void onRequestStarted(MmsRequest request, long waitTimeMillis) {
+        mRunningRequestCount++;
+        mAdmittedRequestCount++;
+        mAdmittedCountByPriority[request.getPriority()]++;
+        mTotalWaitTimeMillis += waitTimeMillis;
+        mMaxWaitTimeMillis = Math.max(mMaxWaitTimeMillis, waitTimeMillis);
+        updateWaitingForSlot();
+    }
+
+    /**
+     * Record that a request finished executing.
+     *
+     * @return true if this was the last running request of the subscription
+     */
+    public boolean onRequestFinished() {
+        mRunningRequestCount--;
+        updateWaitingForSlot();
+        return mRunningRequestCount <= 0;
+    }
+
+    public void shutdown() {
+        for (ExecutorService executor : mRunningRequestExecutors) {
+            executor.shutdown();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("subId=" + mSubId
+                + " running=" + mRunningRequestCount
+                + " pending=" + mPendingRequests.size()
+                + " maxPending=" + mMaxPendingDepth
+                + " admitted=" + mAdmittedRequestCount
+                + " queued=" + mQueuedRequestCount
+                + " avgWaitMs=" + (mAdmittedRequestCount > 0
+                        ? mTotalWaitTimeMillis / mAdmittedRequestCount : 0)
+                + " maxWaitMs=" + mMaxWaitTimeMillis
+                + " control=" + mAdmittedCountByPriority[MmsRequest.PRIORITY_CONTROL]
+                + " user=" + mAdmittedCountByPriority[MmsRequest.PRIORITY_USER]
+                + " background=" + mAdmittedCountByPriority[MmsRequest.PRIORITY_BACKGROUND]);
+        pw.print("    concurrency: ");
+        mConcurrencyController.dump(pw);
+    }
+
+    /**
+     * Wraps a request's work so that the executor queue can order it.
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final MmsRequest mRequest;
+        private final Runnable mTask;
+
+        PrioritizedTask(MmsRequest request, Runnable task) {
+            mRequest = request;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            return MmsRequest.compareForScheduling(mRequest, other.mRequest);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionRequestQueue subId: " + mSubId
+                + " running: " + mRunningRequestCount
+                + " pending: " + mPendingRequests.size();
+    }
+}
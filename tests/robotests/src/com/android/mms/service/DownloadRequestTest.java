@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import com.android.mms.service.metrics.MmsStats;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public final class DownloadRequestTest {
+    private static final int SUB_ID = 1;
+    private static final String LOCATION_URL = "http://mmsc/message1";
+    private static final byte[] RETRIEVE_CONF = new byte[] {(byte) 0x8c, (byte) 0x84};
+
+    private Application mContext;
+    private MmsRequest.RequestManager mRequestManager;
+    private MmsStats mPrimaryStats;
+    private MmsStats mDuplicateStats;
+    private DownloadRequest mPrimary;
+    private DownloadRequest mDuplicate;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mRequestManager = mock(MmsRequest.RequestManager.class);
+        doReturn(true).when(mRequestManager).writePduToContentUri(any(), any());
+        mPrimaryStats = mock(MmsStats.class);
+        mDuplicateStats = mock(MmsStats.class);
+        mPrimary = createRequest(1L, mPrimaryStats);
+        mDuplicate = createRequest(2L, mDuplicateStats);
+    }
+
+    @Test
+    public void testCoalesce_duplicateBeforeStreamingKeepsResponseForIt() {
+        assertThat(mPrimary.coalesce(mDuplicate)).isTrue();
+
+        // The response is needed for the duplicate, it cannot go straight to the content uri
+        assertThat(mPrimary.canStreamResponse()).isFalse();
+        assertThat(mPrimary.getCoalescedRequests()).containsExactly(mDuplicate);
+    }
+
+    @Test
+    public void testCoalesce_refusedOnceStreaming() {
+        assertThat(mPrimary.canStreamResponse()).isTrue();
+
+        assertThat(mPrimary.coalesce(mDuplicate)).isFalse();
+        assertThat(mPrimary.getCoalescedRequests()).isEmpty();
+    }
+
+    @Test
+    public void testCoalesce_refusedOnceResultDelivered() {
+        mPrimary.onResultProcessed(mContext, Activity.RESULT_OK, RETRIEVE_CONF,
+                0 /* httpStatusCode */, null /* messageUri */);
+
+        assertThat(mPrimary.coalesce(mDuplicate)).isFalse();
+    }
+
+    @Test
+    public void testRemoveCoalesced_onlyBeforeResultDelivered() {
+        final DownloadRequest other = createRequest(3L, mock(MmsStats.class));
+        mPrimary.coalesce(mDuplicate);
+        mPrimary.coalesce(other);
+
+        assertThat(mPrimary.removeCoalesced(mDuplicate)).isTrue();
+        mPrimary.onResultProcessed(mContext, Activity.RESULT_OK, RETRIEVE_CONF,
+                0 /* httpStatusCode */, null /* messageUri */);
+
+        assertThat(mPrimary.removeCoalesced(other)).isFalse();
+        verify(mDuplicateStats, never()).addAtomToStorage(Activity.RESULT_OK, 0, false);
+    }
+
+    @Test
+    public void testOnResultProcessed_deliversResponseToDuplicates() {
+        mPrimary.coalesce(mDuplicate);
+
+        mPrimary.onResultProcessed(mContext, Activity.RESULT_OK, RETRIEVE_CONF,
+                0 /* httpStatusCode */, null /* messageUri */);
+
+        // Each duplicate gets the response in its own content uri and intent
+        verify(mRequestManager).writePduToContentUri(contentUri(2L), RETRIEVE_CONF);
+        verify(mRequestManager, never()).writePduToContentUri(contentUri(1L), RETRIEVE_CONF);
+        verify(mDuplicateStats).addAtomToStorage(Activity.RESULT_OK, 0, false);
+        final List<Intent> intents = shadowOf(mContext).getBroadcastIntents();
+        assertThat(intents).hasSize(1);
+        assertThat(intents.get(0).getAction()).isEqualTo(downloadedAction(2L));
+    }
+
+    @Test
+    public void testOnResultProcessed_deliversFailureToDuplicates() {
+        mPrimary.coalesce(mDuplicate);
+
+        mPrimary.onResultProcessed(mContext, SmsManager.MMS_ERROR_HTTP_FAILURE,
+                null /* response */, HttpURLConnection.HTTP_NOT_FOUND, null /* messageUri */);
+
+        verify(mRequestManager, never()).writePduToContentUri(any(), any());
+        verify(mDuplicateStats).addAtomToStorage(SmsManager.MMS_ERROR_HTTP_FAILURE, 0, false);
+        final List<Intent> intents = shadowOf(mContext).getBroadcastIntents();
+        assertThat(intents).hasSize(1);
+        assertThat(intents.get(0).getAction()).isEqualTo(downloadedAction(2L));
+        assertThat(intents.get(0).getIntExtra(SmsManager.EXTRA_MMS_HTTP_STATUS, 0))
+                .isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+    }
+
+    private DownloadRequest createRequest(long messageId, MmsStats mmsStats) {
+        final PendingIntent downloadedIntent = PendingIntent.getBroadcast(mContext,
+                0 /* requestCode */, new Intent(downloadedAction(messageId)),
+                PendingIntent.FLAG_IMMUTABLE);
+        return new DownloadRequest(mRequestManager, SUB_ID, LOCATION_URL,
+                contentUri(messageId), downloadedIntent, "pkg", new Bundle(), mContext,
+                messageId, mmsStats);
+    }
+
+    private static Uri contentUri(long messageId) {
+        return Uri.parse("content://mms-downloads/" + messageId);
+    }
+
+    private static String downloadedAction(long messageId) {
+        return "com.android.mms.service.TEST_DOWNLOADED_" + messageId;
+    }
+}
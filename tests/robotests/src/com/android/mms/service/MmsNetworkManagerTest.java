@@ -234,6 +234,75 @@ public final class MmsNetworkManagerTest {
         assertEquals(null, mMnm.getApnName());
     }
 
+    @Test
+    public void testAcquireNetworkAsync_networkAvailable() throws Exception {
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback =
+                mock(MmsNetworkManager.NetworkAcquireCallback.class);
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        mMnm.acquireNetworkAsync(Integer.toString(mRequestId.getAndIncrement()), acquireCallback);
+        verify(mCm).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+        verify(acquireCallback, never()).onNetworkAcquired();
+
+        callbackCaptor.getValue().onCapabilitiesChanged(mTestNetwork, USABLE_NC);
+        getMasterScheduler().advanceToLastPostedRunnable();
+
+        verify(acquireCallback).onNetworkAcquired();
+        verify(acquireCallback, never()).onNetworkAcquireFailed(any());
+        assertEquals(MMS_APN, mMnm.getApnName());
+
+        // Network already available, no new request and immediate callback
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback2 =
+                mock(MmsNetworkManager.NetworkAcquireCallback.class);
+        mMnm.acquireNetworkAsync(Integer.toString(mRequestId.getAndIncrement()), acquireCallback2);
+        verify(acquireCallback2).onNetworkAcquired();
+        verify(mCm).requestNetwork(any(), any(), anyInt());
+    }
+
+    @Test
+    public void testAcquireNetworkAsync_networkUnavailable() throws Exception {
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback =
+                mock(MmsNetworkManager.NetworkAcquireCallback.class);
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        mMnm.acquireNetworkAsync(Integer.toString(mRequestId.getAndIncrement()), acquireCallback);
+        verify(mCm).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+
+        callbackCaptor.getValue().onUnavailable();
+        getMasterScheduler().advanceToLastPostedRunnable();
+
+        verify(acquireCallback).onNetworkAcquireFailed(any());
+        verify(acquireCallback, never()).onNetworkAcquired();
+        verify(mCm).unregisterNetworkCallback(eq(callbackCaptor.getValue()));
+    }
+
+    @Test
+    public void testAcquireNetworkAsync_timeout() throws Exception {
+        final MmsNetworkManager.NetworkAcquireCallback acquireCallback =
+                mock(MmsNetworkManager.NetworkAcquireCallback.class);
+        final ArgumentCaptor<NetworkCallback> callbackCaptor =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        mMnm.acquireNetworkAsync(Integer.toString(mRequestId.getAndIncrement()), acquireCallback);
+        verify(mCm).requestNetwork(any(), callbackCaptor.capture(), anyInt());
+
+        getMasterScheduler().advanceBy(NETWORK_ACQUIRE_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS);
+
+        verify(acquireCallback).onNetworkAcquireFailed(any());
+        verify(mCm).unregisterNetworkCallback(eq(callbackCaptor.getValue()));
+    }
+
+    @Test
+    public void testReleaseAllNetworks_releasesHeldNetwork() throws Exception {
+        final NetworkCallback callback = acquireAvailableNetworkAndGetCallback(
+                mTestNetwork /* expectNetwork */, MMS_APN /* expectApn */);
+
+        // The request still holds the network, yet it is released
+        mMnm.releaseAllNetworks();
+
+        verify(mCm).unregisterNetworkCallback(eq(callback));
+        assertEquals(null, mMnm.getApnName());
+    }
+
     @Test
     public void testHandleCarrierConfigChanged() throws Exception {
         // Expect receiving default NETWORK_RELEASE_TIMEOUT of 5 seconds
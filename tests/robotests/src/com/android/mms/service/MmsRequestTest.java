@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.SmsManager;
+import android.telephony.data.ApnSetting;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.fakes.RoboCursor;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.net.HttpURLConnection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public final class MmsRequestTest {
+    private static final int SUB_ID = 1;
+
+    private Context mContext;
+    private MmsRequest.RequestManager mRequestManager;
+    private MmsNetworkManager mNetworkManager;
+    private Handler mHandler;
+    private FakeRequest mRequest;
+    private final List<MmsRequest> mCompletedRequests = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mRequestManager = mock(MmsRequest.RequestManager.class);
+        mNetworkManager = mock(MmsNetworkManager.class);
+        mHandler = new Handler(Looper.getMainLooper());
+        mRequest = new FakeRequest(mRequestManager, mContext);
+        ShadowContentResolver.registerProviderInternal(
+                Telephony.Carriers.CONTENT_URI.getAuthority(), new FakeApnSettingsProvider());
+    }
+
+    @Test
+    public void testCancel_pending() {
+        mRequest.completeCancelledBeforeExecution(mContext, MmsRequest.CANCEL_REASON_REQUESTED);
+
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_CANCELED);
+        assertThat(mRequest.mHttpCount).isEqualTo(0);
+    }
+
+    @Test
+    public void testCancel_acquiringNetwork() {
+        final MmsNetworkManager.NetworkAcquireCallback callback = execute();
+
+        mRequest.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+
+        verify(mNetworkManager).cancelAcquire(callback);
+        verify(mNetworkManager).releaseNetwork(anyString(), anyBoolean(), anyBoolean());
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_CANCELED);
+        assertThat(mCompletedRequests).containsExactly(mRequest);
+    }
+
+    @Test
+    public void testCancel_acquiringNetwork_ignoresLateAcquisition() {
+        final MmsNetworkManager.NetworkAcquireCallback callback = execute();
+
+        mRequest.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+        // Posted by the network manager before the cancellation
+        callback.onNetworkAcquired();
+
+        assertThat(mRequest.mHttpCount).isEqualTo(0);
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_CANCELED);
+    }
+
+    @Test
+    public void testCancel_backingOff() {
+        mRequest.mFailure = new MmsHttpException(HttpURLConnection.HTTP_INTERNAL_ERROR, "error");
+        execute().onNetworkAcquired();
+        assertThat(mRequest.mHttpCount).isEqualTo(1);
+        assertThat(mRequest.mResults).isEmpty();
+
+        mRequest.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMinutes(1));
+
+        verify(mNetworkManager, times(1)).acquireNetworkAsync(anyString(), any());
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_CANCELED);
+    }
+
+    @Test
+    public void testCancel_httpInFlight() {
+        mRequest.mCancelInFlight = true;
+
+        execute().onNetworkAcquired();
+
+        assertThat(mRequest.mHttpCount).isEqualTo(1);
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_CANCELED);
+        // The aborted transaction must not shrink the concurrency limit
+        verify(mRequestManager, never()).onHttpTransactionCompleted(anyInt(), anyInt(),
+                anyLong());
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMinutes(1));
+        verify(mNetworkManager, times(1)).acquireNetworkAsync(anyString(), any());
+    }
+
+    @Test
+    public void testCancel_completedRequestIsNotDeliveredAgain() {
+        execute().onNetworkAcquired();
+
+        mRequest.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+
+        assertThat(mRequest.mResults).containsExactly(Activity.RESULT_OK);
+        verify(mRequestManager).onHttpTransactionCompleted(eq(SUB_ID),
+                eq(HttpURLConnection.HTTP_OK), anyLong());
+    }
+
+    @Test
+    public void testDeadline_whileAcquiringNetwork() {
+        mRequest.setDeadlineMillis(SystemClock.elapsedRealtime() + 1000L);
+        final MmsNetworkManager.NetworkAcquireCallback callback = execute();
+
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+
+        verify(mNetworkManager).cancelAcquire(callback);
+        assertThat(mRequest.mResults).containsExactly(SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS);
+    }
+
+    @Test
+    public void testDeadline_duringHttpIsNotReportedAsOverload() {
+        mRequest.setDeadlineMillis(SystemClock.elapsedRealtime() + 1000L);
+        mRequest.mCancelInFlight = true;
+        mRequest.mCancelInFlightReason = MmsRequest.CANCEL_REASON_DEADLINE;
+
+        execute().onNetworkAcquired();
+
+        assertThat(mRequest.mResults).containsExactly(SmsManager.MMS_ERROR_HTTP_FAILURE);
+        verify(mRequestManager, never()).onHttpTransactionCompleted(anyInt(), anyInt(),
+                anyLong());
+    }
+
+    @Test
+    public void testDeadline_noRetryPastDeadline() {
+        mRequest.setDeadlineMillis(SystemClock.elapsedRealtime() + 1000L);
+        mRequest.mFailure = new MmsHttpException(HttpURLConnection.HTTP_INTERNAL_ERROR, "error");
+
+        execute().onNetworkAcquired();
+
+        // The back-off would end past the deadline
+        assertThat(mRequest.mResults).containsExactly(SmsManager.MMS_ERROR_HTTP_FAILURE);
+        verify(mRequestManager).onHttpTransactionCompleted(eq(SUB_ID),
+                eq(HttpURLConnection.HTTP_INTERNAL_ERROR), anyLong());
+    }
+
+    @Test
+    public void testHttp_tooLargeResponseFailsWithoutRetryOrReport() {
+        mRequest.mFailure = new ResponseTooLargeMmsHttpException("too large");
+
+        execute().onNetworkAcquired();
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMinutes(1));
+
+        assertThat(mRequest.mHttpCount).isEqualTo(1);
+        assertThat(mRequest.mResults).containsExactly(SmsManager.MMS_ERROR_HTTP_FAILURE);
+        // Rejected by the device, the MMSC is not overloaded
+        verify(mRequestManager, never()).onHttpTransactionCompleted(anyInt(), anyInt(),
+                anyLong());
+    }
+
+    /**
+     * Start executing the request, with the steps running right away on the calling thread.
+     *
+     * @return the callback waiting for the MMS network
+     */
+    private MmsNetworkManager.NetworkAcquireCallback execute() {
+        mRequest.executeAsync(mContext, mNetworkManager, Runnable::run, mHandler,
+                mCompletedRequests::add);
+        final ArgumentCaptor<MmsNetworkManager.NetworkAcquireCallback> callback =
+                ArgumentCaptor.forClass(MmsNetworkManager.NetworkAcquireCallback.class);
+        verify(mNetworkManager).acquireNetworkAsync(anyString(), callback.capture());
+        return callback.getValue();
+    }
+
+    private static class FakeRequest extends MmsRequest {
+        final List<Integer> mResults = new ArrayList<>();
+        int mHttpCount;
+        MmsHttpException mFailure;
+        boolean mCancelInFlight;
+        int mCancelInFlightReason = CANCEL_REASON_REQUESTED;
+
+        FakeRequest(RequestManager manager, Context context) {
+            super(manager, SUB_ID, "pkg", new Bundle(), context, 1L /* messageId */,
+                    null /* mmsStats */);
+        }
+
+        @Override
+        protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
+                throws MmsHttpException {
+            mHttpCount++;
+            if (mCancelInFlight) {
+                // As if cancelled from another thread, MmsHttpClient then aborts
+                cancel(mCancelInFlightReason);
+                assertThat(getHttpCancellationSignal().isCanceled()).isTrue();
+                throw new MmsHttpException(0, "aborted");
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return new byte[0];
+        }
+
+        @Override
+        void processResult(Context context, int result, byte[] response, int httpStatusCode,
+                boolean handledByCarrierApp, int retryId) {
+            mResults.add(result);
+        }
+
+        @Override
+        protected PendingIntent getPendingIntent() {
+            return null;
+        }
+
+        @Override
+        protected int getQueueType() {
+            return MmsService.QUEUE_INDEX_SEND;
+        }
+
+        @Override
+        protected int getPriority() {
+            return PRIORITY_USER;
+        }
+
+        @Override
+        protected Uri persistIfRequired(Context context, int result, byte[] response) {
+            return null;
+        }
+
+        @Override
+        protected boolean prepareForHttpRequest() {
+            return true;
+        }
+
+        @Override
+        protected boolean transferResponse(Intent fillIn, byte[] response) {
+            return true;
+        }
+
+        @Override
+        protected void revokeUriPermission(Context context) {
+        }
+    }
+
+    private static final class FakeApnSettingsProvider extends ContentProvider {
+        @Override
+        public boolean onCreate() {
+            return false;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection,
+                String selection, String[] selectionArgs, String sortOrder) {
+            final RoboCursor cursor = new RoboCursor();
+            cursor.setResults(new Object[][] {
+                    new Object[] {ApnSetting.TYPE_MMS_STRING, "http://mmsc", null, null}});
+            cursor.setColumnNames(Arrays.asList(Telephony.Carriers.TYPE,
+                    Telephony.Carriers.MMSC, Telephony.Carriers.MMSPROXY,
+                    Telephony.Carriers.MMSPORT));
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -18,29 +18,37 @@ package com.android.mms.service;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertThrows;
 
+import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Process;
 import android.os.RemoteException;
 
 import com.android.internal.telephony.IMms;
 
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowBinder;
 
 @RunWith(RobolectricTestRunner.class)
 public final class MmsServiceRoboTest {
+    private MmsService mmsService;
     private IMms.Stub binder;
 
     @Before
     public void setUp() {
-        MmsService mmsService = Robolectric.setupService(MmsService.class);
+        mmsService = Robolectric.setupService(MmsService.class);
 
         final Intent intent = new Intent();
 
@@ -67,4 +75,99 @@ public final class MmsServiceRoboTest {
                         "locationUrl", /* configOverrides= */ null, /* sentIntent= */ null,
                         /* messageId= */ 0L, /* attributionTag= */ null));
     }
+
+    @Test
+    public void testReadPdu_knownSize() throws Exception {
+        final byte[] pdu = newPdu(100);
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), pdu.length, 1000))
+                .isEqualTo(pdu);
+    }
+
+    @Test
+    public void testReadPdu_unknownSizeGrowsBuffer() throws Exception {
+        final byte[] pdu = newPdu(40 * 1024);
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), -1, 64 * 1024))
+                .isEqualTo(pdu);
+    }
+
+    @Test
+    public void testReadPdu_sizeLargerThanReported() throws Exception {
+        final byte[] pdu = newPdu(100);
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), 10, 1000)).isEqualTo(pdu);
+    }
+
+    @Test
+    public void testReadPdu_tooLarge() throws Exception {
+        final byte[] pdu = newPdu(100);
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), pdu.length, 99)).isNull();
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), -1, 99)).isNull();
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(pdu), -1, 100)).isEqualTo(pdu);
+    }
+
+    @Test
+    public void testReadPdu_empty() throws Exception {
+        assertThat(MmsService.readPdu(new ByteArrayInputStream(new byte[0]), 0, 100)).isNull();
+    }
+
+    @Test
+    public void testCoalesceDownload_attachesDuplicateOfInFlightDownload() {
+        final DownloadRequest primary = newDownloadRequest(1L, "http://mmsc/message1");
+        final DownloadRequest duplicate = newDownloadRequest(2L, "http://mmsc/message1");
+        final DownloadRequest other = newDownloadRequest(3L, "http://mmsc/message2");
+
+        assertThat(mmsService.coalesceDownload(primary)).isFalse();
+        assertThat(mmsService.coalesceDownload(duplicate)).isTrue();
+        assertThat(mmsService.coalesceDownload(other)).isFalse();
+
+        assertThat(primary.getCoalescedRequests()).containsExactly(duplicate);
+    }
+
+    @Test
+    public void testCoalesceDownload_executesDuplicateOfDeliveredDownload() {
+        final DownloadRequest primary = newDownloadRequest(1L, "http://mmsc/message1");
+        final DownloadRequest duplicate = newDownloadRequest(2L, "http://mmsc/message1");
+        final DownloadRequest third = newDownloadRequest(3L, "http://mmsc/message1");
+        mmsService.coalesceDownload(primary);
+
+        primary.onResultProcessed(mmsService, Activity.RESULT_OK, null /* response */,
+                0 /* httpStatusCode */, null /* messageUri */);
+
+        // The duplicate is executed, and is now the download the next ones attach to
+        assertThat(mmsService.coalesceDownload(duplicate)).isFalse();
+        assertThat(mmsService.coalesceDownload(third)).isTrue();
+        assertThat(duplicate.getCoalescedRequests()).containsExactly(third);
+    }
+
+    @Test
+    public void testCancelRequest_unknownMessage() {
+        assertThat(mmsService.cancelRequest(42L)).isFalse();
+    }
+
+    @Test
+    public void testCancelRequest_detachesCoalescedDownload() {
+        final DownloadRequest primary = newDownloadRequest(1L, "http://mmsc/message1");
+        final DownloadRequest duplicate = newDownloadRequest(2L, "http://mmsc/message1");
+        mmsService.coalesceDownload(primary);
+        mmsService.coalesceDownload(duplicate);
+
+        assertThat(mmsService.cancelRequest(2L)).isTrue();
+
+        assertThat(primary.getCoalescedRequests()).isEmpty();
+        // The request is forgotten once cancelled
+        assertThat(mmsService.cancelRequest(2L)).isFalse();
+    }
+
+    private static DownloadRequest newDownloadRequest(long messageId, String locationUrl) {
+        return new DownloadRequest(mock(MmsRequest.RequestManager.class), /* subId= */ 0,
+                locationUrl, Uri.parse("content://mms-downloads/" + messageId),
+                /* downloadedIntent= */ null, "callingPkg", new Bundle(),
+                RuntimeEnvironment.getApplication(), messageId, /* mmsStats= */ null);
+    }
+
+    private static byte[] newPdu(int size) {
+        final byte[] pdu = new byte[size];
+        Arrays.fill(pdu, (byte) 0x8c);
+        pdu[size - 1] = 0x01;
+        return pdu;
+    }
 }
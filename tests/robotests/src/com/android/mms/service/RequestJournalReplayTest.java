@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import com.android.mms.JournaledRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public final class RequestJournalReplayTest {
+    private static final int SUB_ID = 1;
+    private static final String LOCATION_URL = "http://mmsc.example.com/m1";
+
+    private TestMmsService mService;
+
+    @Before
+    public void setUp() {
+        mService = Robolectric.setupService(TestMmsService.class);
+    }
+
+    @Test
+    public void testReplay_resumesInterruptedDownload() {
+        mService.replayRequestJournal(Arrays.asList(newDownload(1L, LOCATION_URL, 1)));
+
+        assertThat(mService.mAdmittedRequests).hasSize(1);
+        final DownloadRequest request = (DownloadRequest) mService.mAdmittedRequests.get(0);
+        assertThat(request.getSubId()).isEqualTo(SUB_ID);
+        assertThat(request.getLocationUrl()).isEqualTo(LOCATION_URL);
+        assertThat(request.mMessageId).isEqualTo(1L);
+        assertThat(request.getPendingIntent()).isNull();
+    }
+
+    @Test
+    public void testReplay_coalescesDuplicateDownloads() {
+        mService.replayRequestJournal(Arrays.asList(newDownload(1L, LOCATION_URL, 1),
+                newDownload(2L, LOCATION_URL, 0),
+                newDownload(3L, "http://mmsc.example.com/m2", 0)));
+
+        assertThat(mService.mAdmittedRequests).hasSize(2);
+        final DownloadRequest primary = (DownloadRequest) mService.mAdmittedRequests.get(0);
+        assertThat(primary.mMessageId).isEqualTo(1L);
+        assertThat(primary.getCoalescedRequests()).hasSize(1);
+        assertThat(primary.getCoalescedRequests().get(0).mMessageId).isEqualTo(2L);
+        assertThat(mService.mAdmittedRequests.get(1).mMessageId).isEqualTo(3L);
+    }
+
+    @Test
+    public void testReplay_dropsSendsAndDownloadsInterruptedTooOften() {
+        final JournaledRequest send = newDownload(1L, LOCATION_URL, 0).toBuilder()
+                .setType(RequestJournal.TYPE_SEND)
+                .build();
+
+        mService.replayRequestJournal(Arrays.asList(send,
+                newDownload(2L, LOCATION_URL, MmsService.MAX_JOURNAL_REPLAY_ATTEMPTS)));
+
+        assertThat(mService.mAdmittedRequests).isEmpty();
+    }
+
+    @Test
+    public void testReplay_dropsDownloadsWithoutAutoPersisting() {
+        mService.mAutoPersisting = false;
+
+        mService.replayRequestJournal(Arrays.asList(newDownload(1L, LOCATION_URL, 1)));
+
+        assertThat(mService.mAdmittedRequests).isEmpty();
+    }
+
+    @Test
+    public void testReplay_dropsDownloadsOfSubscriptionWithoutMms() {
+        mService.mMmsConfig = null;
+
+        mService.replayRequestJournal(Arrays.asList(newDownload(1L, LOCATION_URL, 1)));
+
+        assertThat(mService.mAdmittedRequests).isEmpty();
+    }
+
+    private static JournaledRequest newDownload(long messageId, String locationUrl,
+            int attemptCount) {
+        return JournaledRequest.newBuilder()
+                .setType(RequestJournal.TYPE_DOWNLOAD)
+                .setSubId(SUB_ID)
+                .setMessageId(messageId)
+                .setLocationUrl(locationUrl)
+                .setContentUri("content://mms-test/" + messageId)
+                .setCreator("com.example.mms")
+                .setAttemptCount(attemptCount)
+                .setState(RequestJournal.STATE_RUNNING)
+                .build();
+    }
+
+    /**
+     * Records the requests it admits rather than executing them.
+     */
+    public static final class TestMmsService extends MmsService {
+        final List<MmsRequest> mAdmittedRequests = new ArrayList<>();
+        boolean mAutoPersisting = true;
+        Bundle mMmsConfig = new Bundle();
+
+        public TestMmsService() {
+            mMmsConfig.putBoolean(SmsManager.MMS_CONFIG_MMS_ENABLED, true);
+        }
+
+        @Override
+        public boolean getAutoPersistingPref() {
+            return mAutoPersisting;
+        }
+
+        @Override
+        Bundle loadMmsConfig(int subId) {
+            return mMmsConfig;
+        }
+
+        @Override
+        public void addSimRequest(MmsRequest request) {
+            mAdmittedRequests.add(request);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertThrows;
+
+import android.app.Activity;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import com.android.mms.service.exception.MmsHttpException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public final class SendBatchRequestTest {
+    private static final int SUB_ID = 1;
+    private static final byte[] SEND_CONF = new byte[] {(byte) 0x8c, (byte) 0x81};
+
+    private Context mContext;
+    private MmsRequest.RequestManager mRequestManager;
+    private FakeSendRequest mFirst;
+    private FakeSendRequest mSecond;
+    private FakeSendRequest mThird;
+    private SendBatchRequest mBatch;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.getApplication();
+        mRequestManager = mock(MmsRequest.RequestManager.class);
+        mFirst = new FakeSendRequest(mRequestManager, mContext, 1L);
+        mSecond = new FakeSendRequest(mRequestManager, mContext, 2L);
+        mThird = new FakeSendRequest(mRequestManager, mContext, 3L);
+        mBatch = new SendBatchRequest(mRequestManager, SUB_ID, "pkg", new Bundle(), mContext,
+                Arrays.asList(mFirst, mSecond, mThird));
+    }
+
+    @Test
+    public void testDoHttp_failedMessageDoesNotHoldBackOthers() throws Exception {
+        mSecond.mFailure = new MmsHttpException(HttpURLConnection.HTTP_INTERNAL_ERROR, "error");
+
+        assertThrows(MmsHttpException.class, this::doHttp);
+
+        assertThat(mFirst.mResults).containsExactly(Activity.RESULT_OK);
+        assertThat(mSecond.mResults).isEmpty();
+        assertThat(mThird.mResults).containsExactly(Activity.RESULT_OK);
+        // The failure is charged to the message, not to the batch
+        assertThat(mBatch.getRetryTimes()).isEqualTo(MmsRequest.RETRY_TIMES + 1);
+    }
+
+    @Test
+    public void testDoHttp_messageFailsAloneOnceItsRetriesAreUsed() throws Exception {
+        mSecond.mFailure = new MmsHttpException(HttpURLConnection.HTTP_INTERNAL_ERROR, "error");
+
+        for (int i = 1; i < MmsRequest.RETRY_TIMES; i++) {
+            assertThrows(MmsHttpException.class, this::doHttp);
+        }
+        doHttp();
+
+        assertThat(mFirst.mHttpCount).isEqualTo(1);
+        assertThat(mThird.mHttpCount).isEqualTo(1);
+        assertThat(mSecond.mHttpCount).isEqualTo(MmsRequest.RETRY_TIMES);
+        assertThat(mSecond.mResults).containsExactly(SmsManager.MMS_ERROR_HTTP_FAILURE);
+        assertThat(mSecond.mStatusCode).isEqualTo(HttpURLConnection.HTTP_INTERNAL_ERROR);
+        assertThat(mSecond.mRetryId).isEqualTo(MmsRequest.RETRY_TIMES);
+        verify(mRequestManager, times(MmsRequest.RETRY_TIMES)).onHttpTransactionCompleted(
+                eq(SUB_ID), eq(HttpURLConnection.HTTP_INTERNAL_ERROR), anyLong());
+        verify(mRequestManager, times(2)).onHttpTransactionCompleted(
+                eq(SUB_ID), eq(HttpURLConnection.HTTP_OK), anyLong());
+    }
+
+    @Test
+    public void testDoHttp_cancelledMessageIsNotSent() throws Exception {
+        mSecond.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+
+        doHttp();
+
+        assertThat(mSecond.mHttpCount).isEqualTo(0);
+        assertThat(mSecond.mResults).containsExactly(Activity.RESULT_CANCELED);
+        assertThat(mFirst.mResults).containsExactly(Activity.RESULT_OK);
+        assertThat(mThird.mResults).containsExactly(Activity.RESULT_OK);
+    }
+
+    @Test
+    public void testDoHttp_cancellingMessageInFlightAbortsOnlyThatMessage() throws Exception {
+        mSecond.mCancelInFlight = true;
+
+        doHttp();
+
+        assertThat(mSecond.mResults).containsExactly(Activity.RESULT_CANCELED);
+        assertThat(mThird.mResults).containsExactly(Activity.RESULT_OK);
+        // An aborted transaction says nothing about the MMSC
+        verify(mRequestManager, never()).onHttpTransactionCompleted(anyInt(), eq(0), anyLong());
+    }
+
+    @Test
+    public void testProcessResult_remainingMessagesGetResultOfBatch() throws Exception {
+        mSecond.mFailure = new MmsHttpException(HttpURLConnection.HTTP_INTERNAL_ERROR, "error");
+        mThird.mFailure = mSecond.mFailure;
+        assertThrows(MmsHttpException.class, this::doHttp);
+        mThird.cancel(MmsRequest.CANCEL_REASON_REQUESTED);
+
+        mBatch.processResult(mContext, SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS, null, 0, false);
+
+        assertThat(mFirst.mResults).containsExactly(Activity.RESULT_OK);
+        assertThat(mSecond.mResults).containsExactly(SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS);
+        assertThat(mSecond.mRetryId).isEqualTo(1);
+        assertThat(mThird.mResults).containsExactly(Activity.RESULT_CANCELED);
+    }
+
+    private void doHttp() throws MmsHttpException {
+        mBatch.doHttp(mContext, null /* netMgr */, null /* apn */);
+    }
+
+    private static class FakeSendRequest extends SendRequest {
+        final List<Integer> mResults = new ArrayList<>();
+        int mStatusCode;
+        int mRetryId;
+        int mHttpCount;
+        MmsHttpException mFailure;
+        boolean mCancelInFlight;
+
+        FakeSendRequest(MmsRequest.RequestManager manager, Context context, long messageId) {
+            super(manager, SUB_ID, Uri.parse("content://mms/" + messageId),
+                    null /* locationUrl */, null /* sentIntent */, "pkg", new Bundle(), context,
+                    messageId, null /* mmsStats */);
+        }
+
+        @Override
+        protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn)
+                throws MmsHttpException {
+            mHttpCount++;
+            if (mCancelInFlight) {
+                cancel(CANCEL_REASON_REQUESTED);
+                assertThat(getHttpCancellationSignal().isCanceled()).isTrue();
+                throw new MmsHttpException(0, "aborted");
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return SEND_CONF;
+        }
+
+        @Override
+        void processResult(Context context, int result, byte[] response, int httpStatusCode,
+                boolean handledByCarrierApp, int retryId) {
+            mResults.add(result);
+            mStatusCode = httpStatusCode;
+            mRetryId = retryId;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import com.android.mms.service.metrics.MmsStats;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public final class SendRequestTest {
+    private static final int SUB_ID = 1;
+    private static final Uri CONTENT_URI = Uri.parse("content://mms-sends/1");
+    private static final String MMSC_URL = "http://mmsc.example.com";
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final int LARGE_PDU_SIZE = 512 * 1024;
+    private static final int SMALL_PDU_SIZE = 1024;
+
+    private Context mContext;
+    private File mPduFile;
+    private final Bundle mMmsConfig = new Bundle();
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.getApplication();
+        mPduFile = File.createTempFile("pdu", null, mContext.getCacheDir());
+        mMmsConfig.putInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE, MAX_MESSAGE_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mPduFile.delete();
+    }
+
+    @Test
+    public void testPrepare_streamsLargePdu() {
+        final TestSendRequest request = newRequest(sendReqHeader(1), LARGE_PDU_SIZE);
+
+        assertThat(request.getPduMemorySize()).isEqualTo(0);
+        assertThat(request.transfersPduToPrepare()).isFalse();
+        assertThat(request.prepareForHttpRequest()).isTrue();
+        // Whether the PDU can be sent as is is only checked once
+        assertThat(request.mConversionChecks).isEqualTo(1);
+    }
+
+    @Test
+    public void testPrepare_readsSmallPdu() {
+        final TestSendRequest request = newRequest(sendReqHeader(1), SMALL_PDU_SIZE);
+
+        assertThat(request.getPduMemorySize()).isEqualTo(SMALL_PDU_SIZE);
+        assertThat(request.prepareForHttpRequest()).isTrue();
+        assertThat(request.transfersPduToPrepare()).isFalse();
+        assertThat(request.mConversionChecks).isEqualTo(0);
+    }
+
+    @Test
+    public void testSpillPdu_streamsSmallPdu() {
+        final TestSendRequest request = newRequest(sendReqHeader(1), SMALL_PDU_SIZE);
+
+        assertThat(request.spillPdu()).isTrue();
+        assertThat(request.getPduMemorySize()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPrepare_readsPduFromPipe() throws Exception {
+        writePdu(sendReqHeader(1), LARGE_PDU_SIZE);
+        final TestSendRequest request = new TestSendRequest();
+        request.setPduHandle(PduHandle.open(CONTENT_URI, new FileInputStream(mPduFile),
+                -1 /* size */));
+
+        assertThat(request.spillPdu()).isFalse();
+        assertThat(request.getPduMemorySize()).isEqualTo(MAX_MESSAGE_SIZE);
+        assertThat(request.transfersPduToPrepare()).isTrue();
+    }
+
+    @Test
+    public void testPrepare_readsPduRequiringConversion() {
+        final TestSendRequest request = newRequest(sendReqHeader(1), LARGE_PDU_SIZE);
+        request.mRequiresConversion = true;
+
+        assertNotStreamed(request);
+    }
+
+    @Test
+    public void testPrepare_readsPduToPersist() {
+        final TestSendRequest request = newRequest(sendReqHeader(1), LARGE_PDU_SIZE);
+        request.mPersistRequired = true;
+
+        assertNotStreamed(request);
+    }
+
+    @Test
+    public void testPrepare_readsPduWithUnparsableHeader() {
+        final byte[] header = new byte[64];
+        Arrays.fill(header, (byte) 0xff);
+        header[0] = (byte) PduHeaders.MESSAGE_TYPE;
+        header[1] = (byte) PduHeaders.MESSAGE_TYPE_SEND_REQ;
+
+        assertNotStreamed(newRequest(header, LARGE_PDU_SIZE));
+    }
+
+    @Test
+    public void testPrepare_readsPduWithTruncatedHeader() {
+        // So many recipients that Content-Type is past the header read at admission
+        final byte[] header = sendReqHeader(1000);
+        assertThat(header.length).isGreaterThan(PduHandle.HEADER_SIZE);
+
+        assertNotStreamed(newRequest(header, LARGE_PDU_SIZE));
+    }
+
+    @Test
+    public void testDoHttp_streamsPduFromHandle() throws Exception {
+        final TestSendRequest request = newRequest(sendReqHeader(1), LARGE_PDU_SIZE);
+        assertThat(request.prepareForHttpRequest()).isTrue();
+        final MmsHttpClient httpClient = mock(MmsHttpClient.class);
+        final MmsNetworkManager networkManager = mock(MmsNetworkManager.class);
+        doReturn(httpClient).when(networkManager).getOrCreateHttpClient();
+
+        request.doHttp(mContext, networkManager,
+                new ApnSettings(MMSC_URL, null /* proxyAddr */, 80 /* proxyPort */, "test"));
+
+        final ArgumentCaptor<MmsHttpClient.RequestBody> body =
+                ArgumentCaptor.forClass(MmsHttpClient.RequestBody.class);
+        verify(httpClient).execute(eq(MMSC_URL), body.capture(), anyBoolean(), any(), anyInt(),
+                eq(mMmsConfig), eq(SUB_ID), anyString(), any());
+        assertThat(body.getValue().getLength()).isEqualTo(LARGE_PDU_SIZE);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.getValue().writeTo(out);
+        assertThat(out.toByteArray()).isEqualTo(readPduFile());
+    }
+
+    private void assertNotStreamed(TestSendRequest request) {
+        assertThat(request.spillPdu()).isFalse();
+        assertThat(request.getPduMemorySize()).isEqualTo(LARGE_PDU_SIZE);
+        assertThat(request.transfersPduToPrepare()).isTrue();
+        // Read whole instead
+        assertThat(request.prepareForHttpRequest()).isTrue();
+        assertThat(request.transfersPduToPrepare()).isFalse();
+    }
+
+    private TestSendRequest newRequest(byte[] header, int size) {
+        try {
+            writePdu(header, size);
+            final TestSendRequest request = new TestSendRequest();
+            request.setPduHandle(PduHandle.open(CONTENT_URI, new FileInputStream(mPduFile),
+                    mPduFile.length()));
+            return request;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void writePdu(byte[] header, int size) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mPduFile)) {
+            out.write(header);
+            // The body is not parsed, only its size matters
+            out.write(new byte[size - header.length]);
+        }
+    }
+
+    private byte[] readPduFile() throws Exception {
+        try (FileInputStream in = new FileInputStream(mPduFile)) {
+            final byte[] pdu = new byte[(int) mPduFile.length()];
+            assertThat(MmsService.readFully(in, pdu)).isEqualTo(pdu.length);
+            return pdu;
+        }
+    }
+
+    /**
+     * @return the headers of a send request to recipientCount recipients, up to Content-Type
+     */
+    private static byte[] sendReqHeader(int recipientCount) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+        writeText(out, PduHeaders.TRANSACTION_ID, "T1");
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        for (int i = 0; i < recipientCount; i++) {
+            writeText(out, PduHeaders.TO, String.format("+1555%07d/TYPE=PLMN", i));
+        }
+        out.write(PduHeaders.CONTENT_TYPE);
+        // application/vnd.wap.multipart.mixed
+        out.write(0x80 | 0x23);
+        return out.toByteArray();
+    }
+
+    private static void writeText(ByteArrayOutputStream out, int field, String text) {
+        out.write(field);
+        final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private final class TestSendRequest extends SendRequest {
+        boolean mRequiresConversion;
+        boolean mPersistRequired;
+        int mConversionChecks;
+
+        TestSendRequest() {
+            super(mock(MmsRequest.RequestManager.class), SUB_ID, CONTENT_URI,
+                    null /* locationUrl */, null /* sentIntent */, "pkg", mMmsConfig, mContext,
+                    1L /* messageId */, mock(MmsStats.class));
+        }
+
+        @Override
+        boolean requiresDestinationNumberConversion() {
+            mConversionChecks++;
+            return mRequiresConversion;
+        }
+
+        @Override
+        boolean isPersistRequired(Context context) {
+            return mPersistRequired;
+        }
+    }
+}
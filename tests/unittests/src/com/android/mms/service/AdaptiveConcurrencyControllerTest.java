@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyControllerTest {
+    private static final long LATENCY_TARGET_MS = 10 * 1000L;
+
+    @Test
+    public void testNonAdaptive_limitStaysAtMax() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(4, false, LATENCY_TARGET_MS);
+
+        assertThat(controller.onTransactionCompleted(503, 100L, 0L)).isFalse();
+        assertThat(controller.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void testOverload_halvesLimitOncePerCooldown() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(8, true, LATENCY_TARGET_MS);
+
+        assertThat(controller.onTransactionCompleted(503, 100L, 0L)).isTrue();
+        assertThat(controller.getLimit()).isEqualTo(4);
+        // Same overload burst
+        assertThat(controller.onTransactionCompleted(503, 100L, 1000L)).isFalse();
+        assertThat(controller.getLimit()).isEqualTo(4);
+        // After the cooldown
+        assertThat(controller.onTransactionCompleted(0, 100L, 20 * 1000L)).isTrue();
+        assertThat(controller.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void testOverload_neverBelowOne() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(1, true, LATENCY_TARGET_MS);
+
+        assertThat(controller.onTransactionCompleted(503, 100L, 0L)).isFalse();
+        assertThat(controller.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSuccess_growsByOnePerWindowUpToMax() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(4, true, LATENCY_TARGET_MS);
+        controller.onTransactionCompleted(503, 100L, 0L);
+        assertThat(controller.getLimit()).isEqualTo(2);
+
+        assertThat(controller.onTransactionCompleted(200, 100L, 1L)).isFalse();
+        assertThat(controller.onTransactionCompleted(200, 100L, 2L)).isTrue();
+        assertThat(controller.getLimit()).isEqualTo(3);
+
+        for (int i = 0; i < 3; i++) {
+            controller.onTransactionCompleted(200, 100L, 3L + i);
+        }
+        assertThat(controller.getLimit()).isEqualTo(4);
+
+        for (int i = 0; i < 10; i++) {
+            controller.onTransactionCompleted(200, 100L, 10L + i);
+        }
+        assertThat(controller.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    public void testHighLatency_reducesLimit() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(4, true, LATENCY_TARGET_MS);
+
+        assertThat(controller.onTransactionCompleted(200, 2 * LATENCY_TARGET_MS, 0L)).isTrue();
+        assertThat(controller.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void testClientError_isNeutral() {
+        AdaptiveConcurrencyController controller =
+                new AdaptiveConcurrencyController(4, true, LATENCY_TARGET_MS);
+
+        assertThat(controller.onTransactionCompleted(404, 100L, 0L)).isFalse();
+        assertThat(controller.getLimit()).isEqualTo(4);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Test
+    public void testAcquire_roundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(false);
+
+        assertThat(pool.acquire(1).length).isEqualTo(4 * 1024);
+        assertThat(pool.acquire(4 * 1024 + 1).length).isEqualTo(16 * 1024);
+        assertThat(pool.acquire(64 * 1024).length).isEqualTo(64 * 1024);
+        // Larger than any class: exact size, not pooled
+        assertThat(pool.acquire(100 * 1024).length).isEqualTo(100 * 1024);
+    }
+
+    @Test
+    public void testRelease_buffersAreReused() {
+        BufferPool pool = new BufferPool(false);
+        byte[] buffer = pool.acquire(16 * 1024);
+        pool.release(buffer);
+
+        assertThat(pool.getIdleBufferCount()).isEqualTo(1);
+        assertThat(pool.acquire(10 * 1024)).isSameInstanceAs(buffer);
+        assertThat(pool.getIdleBufferCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRelease_idleBuffersAreBounded() {
+        BufferPool pool = new BufferPool(false);
+        byte[][] buffers = new byte[10][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(4 * 1024);
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        pool.release(pool.acquire(100 * 1024));
+
+        assertThat(pool.getIdleBufferCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testTrim_dropsIdleBuffers() {
+        BufferPool pool = new BufferPool(false);
+        pool.release(pool.acquire(1));
+        pool.release(pool.acquire(64 * 1024));
+
+        pool.trim();
+
+        assertThat(pool.getIdleBufferCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLeakTracking_releasedBuffersAreNotLeaks() {
+        BufferPool pool = new BufferPool(true);
+        for (int i = 0; i < 10; i++) {
+            pool.release(pool.acquire(4 * 1024));
+        }
+        System.gc();
+
+        assertThat(pool.getLeakCount()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class ConnectionReuseTrackerTest {
+    private static final String ORIGIN = "http://mmsc:80";
+
+    private final ConnectionReuseTracker mTracker = new ConnectionReuseTracker(60 * 1000L);
+
+    @Test
+    public void testOnConnectionOpened_reusesConnectionKeptAlive() {
+        assertThat(mTracker.onConnectionOpened(ORIGIN)).isFalse();
+        mTracker.onConnectionReleased(ORIGIN, true /* keptAlive */);
+
+        assertThat(mTracker.onConnectionOpened(ORIGIN)).isTrue();
+        // The idle connection is in use again
+        assertThat(mTracker.onConnectionOpened(ORIGIN)).isFalse();
+        assertThat(mTracker.onConnectionOpened("http://other:80")).isFalse();
+        assertThat(dump()).contains("requests=4 reused=1 reusePercent=25 keptAlive=1");
+    }
+
+    @Test
+    public void testOnConnectionOpened_doesNotReuseClosedConnection() {
+        mTracker.onConnectionOpened(ORIGIN);
+        mTracker.onConnectionReleased(ORIGIN, false /* keptAlive */);
+
+        assertThat(mTracker.onConnectionOpened(ORIGIN)).isFalse();
+        assertThat(dump()).contains("closed=1");
+    }
+
+    @Test
+    public void testOnConnectionOpened_doesNotReuseEvictedConnection() {
+        ConnectionReuseTracker tracker =
+                new ConnectionReuseTracker(0 /* keepAliveDurationMillis */);
+        tracker.onConnectionReleased(ORIGIN, true /* keptAlive */);
+
+        assertThat(tracker.onConnectionOpened(ORIGIN)).isFalse();
+    }
+
+    @Test
+    public void testClear_forgetsIdleConnections() {
+        mTracker.onConnectionReleased(ORIGIN, true /* keptAlive */);
+        mTracker.clear();
+
+        assertThat(mTracker.onConnectionOpened(ORIGIN)).isFalse();
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mTracker.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class HttpHeaderTemplateTest {
+    private static final int SUB_ID = 1;
+
+    private final Bundle mMmsConfig = new Bundle();
+    private final List<String> mResolvedMacros = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        HttpHeaderTemplate.invalidate(SUB_ID);
+    }
+
+    @Test
+    public void testApply_setsCommonHeaders() throws Exception {
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_USER_AGENT, "agent");
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, "http://uaprof");
+
+        HttpURLConnection connection = apply(Locale.US);
+
+        assertThat(connection.getRequestProperty("User-Agent")).isEqualTo("agent");
+        assertThat(connection.getRequestProperty("x-wap-profile")).isEqualTo("http://uaprof");
+        assertThat(connection.getRequestProperty("Accept-Language")).isEqualTo("en-US");
+        assertThat(connection.getRequestProperty("Connection")).isNull();
+    }
+
+    @Test
+    public void testApply_resolvesMacrosOfExtraHeaders() throws Exception {
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_HTTP_PARAMS,
+                "X-Line: tel:##LINE1##;x| X-Nai : ##NAI## |X-Empty:##NONE##|bogus");
+
+        HttpURLConnection connection = apply(Locale.US);
+
+        assertThat(connection.getRequestProperty("X-Line")).isEqualTo("tel:value-LINE1;x");
+        assertThat(connection.getRequestProperty("X-Nai")).isEqualTo("value-NAI");
+        assertThat(connection.getRequestProperty("X-Empty")).isNull();
+        assertThat(mResolvedMacros).containsExactly("LINE1", "NAI", "NONE");
+    }
+
+    @Test
+    public void testGet_reusesTemplateUntilConfigOrLocaleChanges() {
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_USER_AGENT, "agent");
+        HttpHeaderTemplate template = HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.US);
+
+        assertThat(HttpHeaderTemplate.get(SUB_ID, new Bundle(mMmsConfig), Locale.US))
+                .isSameInstanceAs(template);
+        assertThat(HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.FRANCE))
+                .isNotSameInstanceAs(template);
+
+        template = HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.US);
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_USER_AGENT, "other");
+        assertThat(HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.US))
+                .isNotSameInstanceAs(template);
+    }
+
+    @Test
+    public void testInvalidate_rebuildsTemplate() {
+        HttpHeaderTemplate template = HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.US);
+
+        HttpHeaderTemplate.invalidate(SUB_ID);
+
+        assertThat(HttpHeaderTemplate.get(SUB_ID, mMmsConfig, Locale.US))
+                .isNotSameInstanceAs(template);
+    }
+
+    private HttpURLConnection apply(Locale locale) throws Exception {
+        HttpURLConnection connection = new HttpURLConnection(new URL("http://mmsc")) {
+            @Override
+            public void connect() {}
+
+            @Override
+            public void disconnect() {}
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+        HttpHeaderTemplate.get(SUB_ID, mMmsConfig, locale).apply(connection, macro -> {
+            mResolvedMacros.add(macro);
+            return "NONE".equals(macro) ? null : "value-" + macro;
+        });
+        return connection;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class Ipv4WaitStatsTest {
+    private final Ipv4WaitStats mStats = new Ipv4WaitStats();
+
+    @Test
+    public void testDump_reportsCountTotalAndMax() {
+        mStats.onWaitFinished(100L, true /* provisioned */);
+        mStats.onWaitFinished(300L, false /* provisioned */);
+        mStats.onWaitFinished(200L, true /* provisioned */);
+
+        assertThat(dump()).contains("waits=3 provisioned=2 totalWaitMs=600 maxWaitMs=300");
+    }
+
+    @Test
+    public void testDump_noWait() {
+        assertThat(dump()).contains("waits=0 provisioned=0 totalWaitMs=0 maxWaitMs=0");
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mStats.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Bundle;
+import android.telephony.SmsManager;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class MacroValueCacheTest {
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+
+    private final MacroValueCache mCache = new MacroValueCache();
+    private final Bundle mMmsConfig = new Bundle();
+    private int mLoadCount;
+
+    @Test
+    public void testGet_loadsOncePerSubscription() {
+        assertThat(get("LINE1", SUB_ID)).isEqualTo("LINE1-1-1");
+        assertThat(get("LINE1", SUB_ID)).isEqualTo("LINE1-1-1");
+        assertThat(get("LINE1", OTHER_SUB_ID)).isEqualTo("LINE1-2-2");
+
+        assertThat(mLoadCount).isEqualTo(2);
+        assertThat(dump()).contains("subscriptions=2 hits=1 misses=2");
+    }
+
+    @Test
+    public void testGet_cachesMissingValues() {
+        assertThat(mCache.get("NAI", mMmsConfig, SUB_ID, this::loadNull)).isNull();
+        assertThat(mCache.get("NAI", mMmsConfig, SUB_ID, this::loadNull)).isNull();
+
+        assertThat(mLoadCount).isEqualTo(1);
+    }
+
+    @Test
+    public void testGet_cachesNaiBySuffix() {
+        get("NAI", SUB_ID);
+        mMmsConfig.putString(SmsManager.MMS_CONFIG_NAI_SUFFIX, "suffix");
+        get("NAI", SUB_ID);
+        get("NAI", SUB_ID);
+
+        assertThat(mLoadCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testInvalidate_reloadsValues() {
+        get("LINE1", SUB_ID);
+        get("LINE1", OTHER_SUB_ID);
+
+        mCache.invalidate(SUB_ID);
+        assertThat(get("LINE1", SUB_ID)).isEqualTo("LINE1-1-3");
+        assertThat(get("LINE1", OTHER_SUB_ID)).isEqualTo("LINE1-2-2");
+
+        mCache.invalidateAll();
+        assertThat(get("LINE1", OTHER_SUB_ID)).isEqualTo("LINE1-2-4");
+    }
+
+    @Test
+    public void testInvalidate_whileLoadingDoesNotCacheStaleValue() {
+        mCache.get("LINE1", mMmsConfig, SUB_ID, (macro, mmsConfig, subId) -> {
+            mCache.invalidateAll();
+            return "stale";
+        });
+
+        assertThat(get("LINE1", SUB_ID)).isEqualTo("LINE1-1-1");
+    }
+
+    private String get(String macro, int subId) {
+        return mCache.get(macro, mMmsConfig, subId, (m, mmsConfig, id) -> {
+            mLoadCount++;
+            return m + "-" + id + "-" + mLoadCount;
+        });
+    }
+
+    private String loadNull(String macro, Bundle mmsConfig, int subId) {
+        mLoadCount++;
+        return null;
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mCache.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.net.Network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MmsDnsCacheTest {
+    private static final String HOST = "mmsc.carrier.com";
+    private static final long MAX_AGE_MILLIS = 60 * 1000L;
+
+    private final List<Runnable> mPrefetches = new ArrayList<>();
+    private Network mNetwork;
+    private InetAddress[] mAddresses;
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = mock(Network.class);
+        doReturn(mNetwork).when(mNetwork).getPrivateDnsBypassingCopy();
+        mAddresses = new InetAddress[] {InetAddress.getByAddress(HOST, new byte[] {10, 0, 0, 1})};
+        doReturn(mAddresses).when(mNetwork).getAllByName(HOST);
+    }
+
+    @Test
+    public void testGetAllByName_resolvesOnce() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, MAX_AGE_MILLIS);
+
+        assertThat(cache.getAllByName(HOST)).isEqualTo(mAddresses);
+        assertThat(cache.getByName(HOST)).isEqualTo(mAddresses[0]);
+
+        verify(mNetwork, times(1)).getAllByName(HOST);
+    }
+
+    @Test
+    public void testGetAllByName_usesPrefetchedAddresses() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, MAX_AGE_MILLIS);
+
+        cache.prefetch(HOST);
+        cache.prefetch(HOST);
+        assertThat(mPrefetches).hasSize(1);
+        mPrefetches.get(0).run();
+
+        assertThat(cache.getAllByName(HOST)).isEqualTo(mAddresses);
+        verify(mNetwork, times(1)).getAllByName(HOST);
+    }
+
+    @Test
+    public void testGetAllByName_takesOverPrefetchNotStarted() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, MAX_AGE_MILLIS);
+
+        cache.prefetch(HOST);
+        // The prefetch is still queued
+        assertThat(cache.getAllByName(HOST)).isEqualTo(mAddresses);
+        mPrefetches.get(0).run();
+
+        verify(mNetwork, times(1)).getAllByName(HOST);
+    }
+
+    @Test
+    public void testGetAllByName_resolvesAgainOnceExpired() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, 0 /* maxAgeMillis */);
+
+        cache.getAllByName(HOST);
+        cache.getAllByName(HOST);
+
+        verify(mNetwork, times(2)).getAllByName(HOST);
+    }
+
+    @Test
+    public void testGetAllByName_doesNotCacheFailures() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, MAX_AGE_MILLIS);
+        doThrow(new UnknownHostException(HOST)).when(mNetwork).getAllByName(HOST);
+
+        assertThrows(UnknownHostException.class, () -> cache.getAllByName(HOST));
+
+        doReturn(mAddresses).when(mNetwork).getAllByName(HOST);
+        assertThat(cache.getAllByName(HOST)).isEqualTo(mAddresses);
+    }
+
+    @Test
+    public void testInvalidate_resolvesAgain() throws Exception {
+        MmsDnsCache cache = new MmsDnsCache(mNetwork, mPrefetches::add, MAX_AGE_MILLIS);
+
+        cache.getAllByName(HOST);
+        cache.invalidate(HOST);
+        cache.getAllByName(HOST);
+
+        verify(mNetwork, times(2)).getAllByName(HOST);
+    }
+}
@@ -32,13 +32,21 @@ import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.net.IpPrefix;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkRequest;
+import android.net.RouteInfo;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 
 import androidx.test.core.app.ApplicationProvider;
 
+import com.android.mms.service.exception.MmsHttpException;
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
 import com.android.mms.service.exception.VoluntaryDisconnectMmsHttpException;
 
 import org.junit.After;
@@ -46,7 +54,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.util.concurrent.CountDownLatch;
@@ -188,4 +201,168 @@ public class MmsHttpClientTest {
                                 "", 0, config, 1, "requestId");
         });
     }
+
+    @Test
+    public void testExecuteGet_streamsResponse() throws Exception {
+        final byte[] pdu = new byte[40 * 1024];
+        pdu[pdu.length - 1] = 0x01;
+        final HttpURLConnection mockConnection = mockGetConnection(pdu, pdu.length);
+        final MmsHttpClient clientUT = newClient(mockConnection);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        clientUT.executeGet("http://test", false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */, out, pdu.length);
+
+        assertThat(out.toByteArray()).isEqualTo(pdu);
+    }
+
+    @Test
+    public void testExecuteGet_abortsTooLargeResponse() throws Exception {
+        final byte[] pdu = new byte[1024];
+        final MmsHttpClient clientUT = newClient(mockGetConnection(pdu, -1 /* unknown */));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThrows(ResponseTooLargeMmsHttpException.class, () -> clientUT.executeGet(
+                "http://test", false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */, out, pdu.length - 1));
+        assertThat(out.size()).isLessThan(pdu.length);
+    }
+
+    @Test
+    public void testExecuteGet_rejectsTooLargeContentLength() throws Exception {
+        final byte[] pdu = new byte[1024];
+        final HttpURLConnection mockConnection = mockGetConnection(pdu, pdu.length);
+        final MmsHttpClient clientUT = newClient(mockConnection);
+
+        assertThrows(ResponseTooLargeMmsHttpException.class, () -> clientUT.executeGet(
+                "http://test", false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */, new ByteArrayOutputStream(), pdu.length - 1));
+        verify(mockConnection, never()).getInputStream();
+    }
+
+    @Test
+    public void testExecuteGet_waitsForIpv4UntilReachable() throws Exception {
+        final byte[] pdu = new byte[16];
+        final Network mockNetwork = mock(Network.class);
+        doReturn(mockGetConnection(pdu, pdu.length)).when(mockNetwork)
+                .openConnection(any(), any());
+        doReturn(mockNetwork).when(mockNetwork).getPrivateDnsBypassingCopy();
+        final ConnectivityManager mockCm = mock(ConnectivityManager.class);
+        // IPv6 only at first, then CLAT brings up IPv4
+        final LinkProperties ipv6Only = new LinkProperties();
+        ipv6Only.setInterfaceName("rmnet0");
+        final LinkProperties withIpv4 = new LinkProperties();
+        withIpv4.setInterfaceName("rmnet0");
+        withIpv4.addLinkAddress(new LinkAddress("192.0.0.4/32"));
+        withIpv4.addRoute(new RouteInfo(new IpPrefix("0.0.0.0/0"), null /* gateway */,
+                "rmnet0"));
+        doReturn(ipv6Only).when(mockCm).getLinkProperties(mockNetwork);
+        doAnswer(invok -> {
+            final ConnectivityManager.NetworkCallback callback = invok.getArgument(1);
+            callback.onLinkPropertiesChanged(mockNetwork, withIpv4);
+            return null;
+        }).when(mockCm).registerNetworkCallback(any(NetworkRequest.class),
+                any(ConnectivityManager.NetworkCallback.class));
+        final Ipv4WaitStats ipv4WaitStats = new Ipv4WaitStats();
+        final MmsHttpClient clientUT = new MmsHttpClient(mContext, mockNetwork, mockCm,
+                new ConnectionReuseTracker(), new MmsDnsCache(mockNetwork), ipv4WaitStats);
+
+        final long startMillis = SystemClock.elapsedRealtime();
+        clientUT.executeGet("http://10.0.0.1", false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */, new ByteArrayOutputStream(), pdu.length);
+
+        // Woken up by the callback rather than after the whole wait
+        assertThat(SystemClock.elapsedRealtime() - startMillis).isLessThan(5000L);
+        verify(mockCm).unregisterNetworkCallback(any(ConnectivityManager.NetworkCallback.class));
+        assertThat(dump(ipv4WaitStats)).contains("waits=1 provisioned=1");
+    }
+
+    @Test
+    public void testExecuteGet_doesNotCountIpv4WaitWhenReachable() throws Exception {
+        final byte[] pdu = new byte[16];
+        final Network mockNetwork = mock(Network.class);
+        doReturn(mockGetConnection(pdu, pdu.length)).when(mockNetwork)
+                .openConnection(any(), any());
+        doReturn(mockNetwork).when(mockNetwork).getPrivateDnsBypassingCopy();
+        final ConnectivityManager mockCm = mock(ConnectivityManager.class);
+        final LinkProperties withIpv4 = new LinkProperties();
+        withIpv4.setInterfaceName("rmnet0");
+        withIpv4.addLinkAddress(new LinkAddress("192.0.0.4/32"));
+        withIpv4.addRoute(new RouteInfo(new IpPrefix("0.0.0.0/0"), null /* gateway */,
+                "rmnet0"));
+        doReturn(withIpv4).when(mockCm).getLinkProperties(mockNetwork);
+        final Ipv4WaitStats ipv4WaitStats = new Ipv4WaitStats();
+        final MmsHttpClient clientUT = new MmsHttpClient(mContext, mockNetwork, mockCm,
+                new ConnectionReuseTracker(), new MmsDnsCache(mockNetwork), ipv4WaitStats);
+
+        clientUT.executeGet("http://10.0.0.1", false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */, new ByteArrayOutputStream(), pdu.length);
+
+        assertThat(dump(ipv4WaitStats)).contains("waits=0 ");
+    }
+
+    @Test
+    public void testExecutePost_streamsBodyOfFixedLength() throws Exception {
+        final byte[] pdu = new byte[] {(byte) 0x8c, (byte) 0x80, 1, 2, 3};
+        final byte[] sendConf = new byte[] {(byte) 0x8c, (byte) 0x81};
+        final HttpURLConnection mockConnection = mockGetConnection(sendConf, sendConf.length);
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        doReturn(sent).when(mockConnection).getOutputStream();
+        final MmsHttpClient clientUT = newClient(mockConnection);
+
+        final byte[] response = clientUT.execute("http://test", newRequestBody(pdu), false, "",
+                0, new Bundle(), 1, "requestId", null /* cancellationSignal */);
+
+        assertThat(response).isEqualTo(sendConf);
+        assertThat(sent.toByteArray()).isEqualTo(pdu);
+        // Sent as it is written rather than buffered by the connection
+        verify(mockConnection).setFixedLengthStreamingMode((long) pdu.length);
+    }
+
+    @Test
+    public void testExecutePost_rejectsEmptyBody() throws Exception {
+        final HttpURLConnection mockConnection = mock(HttpURLConnection.class);
+        final MmsHttpClient clientUT = newClient(mockConnection);
+
+        assertThrows(MmsHttpException.class, () -> clientUT.execute("http://test",
+                newRequestBody(new byte[0]), false, "", 0, new Bundle(), 1, "requestId",
+                null /* cancellationSignal */));
+        verify(mockConnection, never()).getOutputStream();
+    }
+
+    private static MmsHttpClient.RequestBody newRequestBody(byte[] pdu) {
+        return new MmsHttpClient.RequestBody() {
+            @Override
+            public long getLength() {
+                return pdu.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(pdu);
+            }
+        };
+    }
+
+    private static String dump(Ipv4WaitStats ipv4WaitStats) {
+        final StringWriter writer = new StringWriter();
+        ipv4WaitStats.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    private HttpURLConnection mockGetConnection(byte[] response, long contentLength)
+            throws IOException {
+        final HttpURLConnection mockConnection = mock(HttpURLConnection.class);
+        doReturn(HttpURLConnection.HTTP_OK).when(mockConnection).getResponseCode();
+        doReturn(contentLength).when(mockConnection).getContentLengthLong();
+        doReturn(new ByteArrayInputStream(response)).when(mockConnection).getInputStream();
+        return mockConnection;
+    }
+
+    private MmsHttpClient newClient(HttpURLConnection connection) throws IOException {
+        final Network mockNetwork = mock(Network.class);
+        doReturn(connection).when(mockNetwork).openConnection(any(), any());
+        doReturn(mockNetwork).when(mockNetwork).getPrivateDnsBypassingCopy();
+        return new MmsHttpClient(mContext, mockNetwork, mock(ConnectivityManager.class));
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import com.android.mms.service.exception.ResponseTooLargeMmsHttpException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PartialResponseTest {
+    private static final int PDU_SIZE = 100;
+    private static final int RECEIVED_SIZE = 40;
+
+    private final byte[] mPdu = new byte[PDU_SIZE];
+    private File mFile;
+    private PartialResponse mPartialResponse;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < mPdu.length; i++) {
+            mPdu[i] = (byte) i;
+        }
+        mFile = File.createTempFile("download", ".part");
+        mPartialResponse = new PartialResponse(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mPartialResponse.discard();
+    }
+
+    @Test
+    public void testReadResponse_resumesWithRangeAfterInterruption() throws Exception {
+        receiveFirstPart("\"v1\"");
+
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_PARTIAL,
+                PDU_SIZE - RECEIVED_SIZE);
+        connection.mResponseHeaders.put("ETag", "\"v1\"");
+        connection.mResponseHeaders.put("Content-Range", "bytes 40-99/100");
+        mPartialResponse.prepareRequest(connection, "requestId");
+        mPartialResponse.readResponse(connection, rest(), PDU_SIZE, false /* encoded */,
+                "requestId");
+
+        assertThat(connection.getRequestProperty("Range")).isEqualTo("bytes=40-");
+        assertThat(connection.getRequestProperty("If-Range")).isEqualTo("\"v1\"");
+        assertThat(mPartialResponse.isComplete()).isTrue();
+        assertThat(mPartialResponse.read(PDU_SIZE)).isEqualTo(mPdu);
+    }
+
+    @Test
+    public void testReadResponse_startsOverWhenRangeIsIgnored() throws Exception {
+        receiveFirstPart("\"v1\"");
+
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_OK, PDU_SIZE);
+        mPartialResponse.prepareRequest(connection, "requestId");
+        mPartialResponse.readResponse(connection, new ByteArrayInputStream(mPdu), PDU_SIZE,
+                false /* encoded */, "requestId");
+
+        assertThat(mPartialResponse.read(PDU_SIZE)).isEqualTo(mPdu);
+    }
+
+    @Test
+    public void testReadResponse_rejectsRangeOfAnotherEntity() throws Exception {
+        receiveFirstPart("\"v1\"");
+
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_PARTIAL,
+                PDU_SIZE - RECEIVED_SIZE);
+        connection.mResponseHeaders.put("ETag", "\"v2\"");
+        connection.mResponseHeaders.put("Content-Range", "bytes 40-99/100");
+
+        assertThrows(IOException.class, () -> mPartialResponse.readResponse(connection, rest(),
+                PDU_SIZE, false /* encoded */, "requestId"));
+        assertThat(mPartialResponse.getLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPrepareRequest_startsOverWithoutValidator() throws Exception {
+        // No ETag and no Content-Length: nothing to check a resumed body against
+        FakeConnection first = new FakeConnection(HttpURLConnection.HTTP_OK, -1);
+        assertThrows(IOException.class, () -> mPartialResponse.readResponse(first,
+                interruptedAfter(RECEIVED_SIZE), PDU_SIZE, false /* encoded */, "requestId"));
+
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_OK, PDU_SIZE);
+        mPartialResponse.prepareRequest(connection, "requestId");
+
+        assertThat(connection.getRequestProperty("Range")).isNull();
+        assertThat(mPartialResponse.getLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadResponse_rejectsTooLargeResponse() throws Exception {
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_OK, PDU_SIZE);
+
+        assertThrows(ResponseTooLargeMmsHttpException.class, () -> mPartialResponse.readResponse(
+                connection, new ByteArrayInputStream(mPdu), PDU_SIZE - 1, false /* encoded */,
+                "requestId"));
+    }
+
+    @Test
+    public void testPrepareRequest_doesNotResumeEncodedResponse() throws Exception {
+        // The lengths in the headers count encoded bytes, not the decoded bytes in the file
+        FakeConnection first = new FakeConnection(HttpURLConnection.HTTP_OK, RECEIVED_SIZE);
+        first.mResponseHeaders.put("ETag", "\"v1\"");
+        assertThrows(IOException.class, () -> mPartialResponse.readResponse(first,
+                interruptedAfter(RECEIVED_SIZE), PDU_SIZE, true /* encoded */, "requestId"));
+
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_OK, PDU_SIZE);
+        mPartialResponse.prepareRequest(connection, "requestId");
+
+        assertThat(connection.getRequestProperty("Range")).isNull();
+        assertThat(mPartialResponse.getLength()).isEqualTo(0);
+    }
+
+    @Test
+    public void testParseContentRange() {
+        assertThat(PartialResponse.parseContentRange("bytes 40-99/100"))
+                .isEqualTo(new long[] {40, 100});
+        assertThat(PartialResponse.parseContentRange("bytes 40-99/*"))
+                .isEqualTo(new long[] {40, -1});
+        assertThat(PartialResponse.parseContentRange("bytes */100")).isNull();
+        assertThat(PartialResponse.parseContentRange(null)).isNull();
+    }
+
+    private void receiveFirstPart(String entityTag) throws Exception {
+        FakeConnection connection = new FakeConnection(HttpURLConnection.HTTP_OK, PDU_SIZE);
+        connection.mResponseHeaders.put("ETag", entityTag);
+        assertThrows(IOException.class, () -> mPartialResponse.readResponse(connection,
+                interruptedAfter(RECEIVED_SIZE), PDU_SIZE, false /* encoded */, "requestId"));
+        assertThat(mPartialResponse.getLength()).isEqualTo(RECEIVED_SIZE);
+        assertThat(mPartialResponse.isComplete()).isFalse();
+    }
+
+    private InputStream interruptedAfter(int size) {
+        return new SequenceInputStream(new ByteArrayInputStream(mPdu, 0, size),
+                new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                });
+    }
+
+    private InputStream rest() {
+        return new ByteArrayInputStream(Arrays.copyOfRange(mPdu, RECEIVED_SIZE, PDU_SIZE));
+    }
+
+    private static class FakeConnection extends HttpURLConnection {
+        final Map<String, String> mResponseHeaders = new HashMap<>();
+        private final int mResponseCode;
+        private final long mContentLength;
+
+        FakeConnection(int responseCode, long contentLength) throws IOException {
+            super(new URL("http://test"));
+            mResponseCode = responseCode;
+            mContentLength = contentLength;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return mContentLength;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mResponseHeaders.get(name);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class PduHandleTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("pdu", null);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testOpen_readsMessageTypeFromHeader() throws IOException {
+        byte[] pdu = newPdu(100);
+        try (PduHandle handle = open(pdu, pdu.length)) {
+            assertThat(handle.getMessageType()).isEqualTo(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+            assertThat(handle.getSize()).isEqualTo(100);
+            assertThat(handle.getHeader()).isEqualTo(pdu);
+        }
+    }
+
+    @Test
+    public void testRead_fileCanBeReadAndStreamedRepeatedly() throws IOException {
+        byte[] pdu = newPdu(3 * PduHandle.HEADER_SIZE);
+        try (PduHandle handle = open(pdu, pdu.length)) {
+            assertThat(handle.getHeader().length).isEqualTo(PduHandle.HEADER_SIZE);
+            assertThat(handle.read(pdu.length)).isEqualTo(pdu);
+            assertThat(handle.read(pdu.length)).isEqualTo(pdu);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            handle.writeTo(out);
+            assertThat(out.toByteArray()).isEqualTo(pdu);
+        }
+    }
+
+    @Test
+    public void testRead_pipeIsReadOnceIncludingHeader() throws IOException {
+        byte[] pdu = newPdu(3 * PduHandle.HEADER_SIZE);
+        try (PduHandle handle = open(pdu, -1)) {
+            assertThat(handle.isSeekable()).isFalse();
+            assertThat(handle.read(pdu.length)).isEqualTo(pdu);
+            assertThrows(IOException.class, () -> handle.read(pdu.length));
+            assertThrows(IOException.class, () -> handle.writeTo(new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void testRead_failsOnceClosed() throws IOException {
+        byte[] pdu = newPdu(100);
+        PduHandle handle = open(pdu, pdu.length);
+        handle.close();
+
+        assertThrows(IOException.class, () -> handle.read(pdu.length));
+        // The header stays available
+        assertThat(handle.getMessageType()).isEqualTo(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+    }
+
+    private PduHandle open(byte[] pdu, long size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(pdu);
+        }
+        return PduHandle.open(null /* uri */, new FileInputStream(mFile), size);
+    }
+
+    private static byte[] newPdu(int size) {
+        byte[] pdu = new byte[size];
+        Arrays.fill(pdu, (byte) 'x');
+        pdu[0] = (byte) PduHeaders.MESSAGE_TYPE;
+        pdu[1] = (byte) PduHeaders.MESSAGE_TYPE_SEND_REQ;
+        return pdu;
+    }
+}
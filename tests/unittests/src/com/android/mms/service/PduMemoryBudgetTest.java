@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PduMemoryBudgetTest {
+    private static final long BUDGET = 1000;
+
+    private final PduMemoryBudget mBudget = new PduMemoryBudget(BUDGET);
+    private final List<PduMemoryBudget.Reservation> mGranted = new ArrayList<>();
+
+    @Test
+    public void testReserve_waitsUntilReleased() {
+        PduMemoryBudget.Reservation first = mBudget.reserve(600, mGranted::add);
+        PduMemoryBudget.Reservation second = mBudget.reserve(600, mGranted::add);
+
+        assertThat(mGranted).hasSize(1);
+        assertThat(mBudget.tryReserve(100)).isNull();
+
+        first.close();
+
+        assertThat(mGranted).hasSize(2);
+        assertThat(mGranted.get(1)).isSameInstanceAs(second);
+        assertThat(mBudget.getUsedBytes()).isEqualTo(600);
+        assertThat(mBudget.getHighWaterBytes()).isEqualTo(600);
+    }
+
+    @Test
+    public void testReserve_grantsLargePduWhenNothingElseIsReserved() {
+        mBudget.reserve(BUDGET * 2, mGranted::add);
+
+        assertThat(mGranted).hasSize(1);
+        assertThat(mBudget.getUsedBytes()).isEqualTo(BUDGET * 2);
+    }
+
+    @Test
+    public void testAbandon_letsNextReservationThrough() {
+        PduMemoryBudget.Reservation first = mBudget.reserve(600, mGranted::add);
+        PduMemoryBudget.Reservation large = mBudget.reserve(900, mGranted::add);
+        mBudget.reserve(300, mGranted::add);
+
+        assertThat(first.abandon()).isFalse();
+        assertThat(large.abandon()).isTrue();
+
+        assertThat(mGranted).hasSize(2);
+        assertThat(mBudget.getUsedBytes()).isEqualTo(900);
+    }
+
+    @Test
+    public void testCharge_goesOverBudgetAndHoldsBackReservations() {
+        PduMemoryBudget.Reservation first = mBudget.reserve(600, mGranted::add);
+        PduMemoryBudget.Reservation charge = mBudget.charge(600);
+
+        assertThat(mBudget.getUsedBytes()).isEqualTo(1200);
+        assertThat(mBudget.tryReserve(1)).isNull();
+
+        first.close();
+        charge.close();
+        charge.close();
+
+        assertThat(mBudget.getUsedBytes()).isEqualTo(0);
+        assertThat(dump()).contains("highWater=1200");
+        assertThat(dump()).contains("overBudget=1");
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mBudget.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PduTransferExecutorTest {
+    private final PduTransferExecutor mExecutor = new PduTransferExecutor(1, 1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testCall_returnsResultAndRecordsBytes() {
+        String result = mExecutor.call("read", null, 1000, transfer -> {
+            transfer.addBytes(42);
+            return "pdu";
+        });
+
+        assertThat(result).isEqualTo("pdu");
+        assertThat(dump()).contains("read: count=1 failed=0");
+        assertThat(dump()).contains("bytes=42");
+    }
+
+    @Test
+    public void testCall_timeoutClosesDescriptor() {
+        AtomicBoolean closed = new AtomicBoolean();
+
+        String result = mExecutor.call("read", null, 50, transfer -> {
+            transfer.setDescriptor(() -> closed.set(true));
+            awaitRelease();
+            return "late";
+        });
+
+        assertThat(result).isNull();
+        assertThat(closed.get()).isTrue();
+        assertThat(dump()).contains("timedOut=1");
+    }
+
+    @Test
+    public void testCall_timeoutAbortsBlockedPduRead() throws Exception {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try (OutputStream writer = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+            // The header is delivered, the rest of the PDU never comes
+            writer.write(new byte[PduHandle.HEADER_SIZE]);
+            writer.flush();
+            PduHandle pdu = PduHandle.open(Uri.parse("content://mms-test/1"),
+                    new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), -1 /* size */);
+
+            byte[] result = mExecutor.call("prepare", null, 50, transfer -> {
+                transfer.setDescriptor(pdu);
+                return pdu.read(1024 * 1024);
+            });
+
+            assertThat(result).isNull();
+            assertThat(dump()).contains("timedOut=1");
+            // The only transfer thread is not held by the blocked read
+            assertThat(mExecutor.call("read", null, 1000, transfer -> "next"))
+                    .isEqualTo("next");
+        }
+    }
+
+    @Test
+    public void testExecute_rejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        mExecutor.execute("read", null, 0, transfer -> {
+            started.countDown();
+            awaitRelease();
+            return "first";
+        }, result -> { });
+        started.await(1, TimeUnit.SECONDS);
+        // Fills the queue
+        mExecutor.execute("read", null, 0, transfer -> "second", result -> { });
+
+        AtomicInteger callbacks = new AtomicInteger();
+        Object[] rejected = {"not called"};
+        mExecutor.execute("read", null, 0, transfer -> "third", result -> {
+            callbacks.incrementAndGet();
+            rejected[0] = result;
+        });
+
+        assertThat(callbacks.get()).isEqualTo(1);
+        assertThat(rejected[0]).isNull();
+        assertThat(dump()).contains("rejected=1");
+    }
+
+    @Test
+    public void testCall_nestedOnTransferThreadRunsInline() {
+        // With a single thread, the nested transfer would wait forever if it were queued
+        String result = mExecutor.call("prepare", null, 1000,
+                transfer -> mExecutor.call("read", null, 1000, inner -> "pdu"));
+
+        assertThat(result).isEqualTo("pdu");
+    }
+
+    private void awaitRelease() {
+        try {
+            mRelease.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // Interrupted on timeout
+        }
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        mExecutor.dump(new PrintWriter(writer), "");
+        return writer.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import com.android.mms.JournaledRequest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+public class RequestJournalTest {
+    private static final int SUB_ID = 1;
+    private static final long MESSAGE_ID = 42L;
+    private static final String LOCATION_URL = "http://mmsc.example.com/m1";
+    private static final String CONTENT_URI = "content://mms-test/1";
+    private static final String CREATOR = "com.example.mms";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mFolder.getRoot(), RequestJournal.FILENAME);
+        // Save synchronously: nothing is pending and posting fails
+        mHandler = mock(Handler.class);
+        doReturn(false).when(mHandler).hasCallbacks(any());
+        doReturn(false).when(mHandler).postDelayed(any(), anyLong());
+    }
+
+    @Test
+    public void testRunningDownload_isReplayedOnce() {
+        RequestJournal journal = new RequestJournal(mFile, mHandler);
+        DownloadRequest request = newDownloadRequest();
+
+        journal.add(request, 0);
+        journal.markRunning(request);
+        assertThat(journal.size()).isEqualTo(1);
+
+        RequestJournal restarted = new RequestJournal(mFile, mHandler);
+        List<JournaledRequest> requests = restarted.loadAndClear();
+        assertThat(requests).hasSize(1);
+        JournaledRequest journaled = requests.get(0);
+        assertThat(journaled.getType()).isEqualTo(RequestJournal.TYPE_DOWNLOAD);
+        assertThat(journaled.getState()).isEqualTo(RequestJournal.STATE_RUNNING);
+        assertThat(journaled.getAttemptCount()).isEqualTo(1);
+        assertThat(journaled.getSubId()).isEqualTo(SUB_ID);
+        assertThat(journaled.getMessageId()).isEqualTo(MESSAGE_ID);
+        assertThat(journaled.getLocationUrl()).isEqualTo(LOCATION_URL);
+        assertThat(journaled.getContentUri()).isEqualTo(CONTENT_URI);
+        assertThat(journaled.getCreator()).isEqualTo(CREATOR);
+
+        assertThat(restarted.loadAndClear()).isEmpty();
+    }
+
+    @Test
+    public void testCompletedRequest_isRemoved() {
+        RequestJournal journal = new RequestJournal(mFile, mHandler);
+        DownloadRequest request = newDownloadRequest();
+
+        journal.add(request, 0);
+        journal.add(request, 0);
+        assertThat(journal.size()).isEqualTo(1);
+        journal.remove(request);
+
+        assertThat(journal.size()).isEqualTo(0);
+        assertThat(mFile.exists()).isFalse();
+        assertThat(new RequestJournal(mFile, mHandler).loadAndClear()).isEmpty();
+    }
+
+    @Test
+    public void testCorruptedJournal_isDiscarded() throws Exception {
+        try (FileOutputStream stream = new FileOutputStream(mFile)) {
+            stream.write(new byte[] {(byte) 0xff, (byte) 0xff, 0x01});
+        }
+
+        assertThat(new RequestJournal(mFile, mHandler).loadAndClear()).isEmpty();
+        assertThat(mFile.exists()).isFalse();
+    }
+
+    private static DownloadRequest newDownloadRequest() {
+        return new DownloadRequest(null, SUB_ID, LOCATION_URL, Uri.parse(CONTENT_URI),
+                null /* downloadedIntent */, CREATOR, null /* configOverrides */,
+                null /* context */, MESSAGE_ID, null /* mmsStats */);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ResponseEncodingTest {
+    private static final byte[] PDU = new byte[4096];
+
+    static {
+        Arrays.fill(PDU, (byte) 0x8c);
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertThat(ResponseEncoding.isCompressed("gzip")).isTrue();
+        assertThat(ResponseEncoding.isCompressed(" Deflate")).isTrue();
+        assertThat(ResponseEncoding.isCompressed("identity")).isFalse();
+        assertThat(ResponseEncoding.isCompressed(null)).isFalse();
+    }
+
+    @Test
+    public void testDecode_gzip() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(body)) {
+            out.write(PDU);
+        }
+
+        assertThat(readDecoded("gzip", body.toByteArray())).isEqualTo(PDU);
+    }
+
+    @Test
+    public void testDecode_zlibAndRawDeflate() throws Exception {
+        assertThat(readDecoded("deflate", deflate(false /* nowrap */))).isEqualTo(PDU);
+        assertThat(readDecoded("deflate", deflate(true /* nowrap */))).isEqualTo(PDU);
+    }
+
+    @Test
+    public void testDecode_truncatedBodyFails() throws Exception {
+        byte[] body = deflate(false /* nowrap */);
+
+        assertThrows(IOException.class, () -> readDecoded("deflate",
+                Arrays.copyOf(body, body.length / 2)));
+    }
+
+    @Test
+    public void testRecord_reportsSavingPerSubscription() {
+        ResponseEncoding encoding = new ResponseEncoding();
+        encoding.record(1, true /* encoded */, 250, 1000);
+        encoding.record(1, false /* encoded */, 1000, 1000);
+
+        StringWriter writer = new StringWriter();
+        encoding.dump(new PrintWriter(writer), "");
+
+        assertThat(writer.toString()).contains("subId=1 responses=2 encoded=1"
+                + " receivedBytes=1250 decodedBytes=2000 savedPercent=37");
+    }
+
+    private static byte[] deflate(boolean nowrap) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(body,
+                new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+            out.write(PDU);
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] readDecoded(String encoding, byte[] body) throws IOException {
+        ResponseEncoding.CountingInputStream received =
+                new ResponseEncoding.CountingInputStream(new ByteArrayInputStream(body));
+        try (InputStream in = ResponseEncoding.decode(encoding, received)) {
+            byte[] decoded = in.readAllBytes();
+            assertThat(received.getCount()).isEqualTo(body.length);
+            return decoded;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SharedMemoryResponseTest {
+    private static final int SUB_ID = 1;
+    private static final byte[] PDU = new byte[] {(byte) 0x8c, (byte) 0x84, 1, 2, 3};
+    private static final Uri CONTENT_URI = Uri.parse("content://mms-downloads/1");
+
+    private Context mContext;
+    private MmsRequest.RequestManager mRequestManager;
+    private PendingIntent mDownloadedIntent;
+    private final Bundle mMmsConfig = new Bundle();
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mRequestManager = mock(MmsRequest.RequestManager.class);
+        doReturn(true).when(mRequestManager).writePduToContentUri(any(), any());
+        // Created by this app, so it is the owner of the response
+        mDownloadedIntent = PendingIntent.getBroadcast(mContext, 0 /* requestCode */,
+                new Intent("com.android.mms.service.TEST_DOWNLOADED"),
+                PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    @Test
+    public void testGetMemory_servesReadOnlyCopyOfPdu() throws Exception {
+        final SharedMemoryResponse response = SharedMemoryResponse.create(PDU, Process.myUid());
+
+        final SharedMemory memory = getMemory(response);
+        try {
+            final ByteBuffer buffer = memory.mapReadOnly();
+            final byte[] pdu = new byte[buffer.remaining()];
+            buffer.get(pdu);
+            SharedMemory.unmap(buffer);
+            assertThat(pdu).isEqualTo(PDU);
+            assertThrows(ErrnoException.class, memory::mapReadWrite);
+        } finally {
+            memory.close();
+        }
+    }
+
+    @Test
+    public void testGetMemory_rejectsOtherUid() throws Exception {
+        final SharedMemoryResponse response =
+                SharedMemoryResponse.create(PDU, Process.myUid() + 1);
+
+        assertThrows(SecurityException.class, () -> getMemory(response));
+    }
+
+    @Test
+    public void testGetMemory_servedOnce() throws Exception {
+        final SharedMemoryResponse response = SharedMemoryResponse.create(PDU, Process.myUid());
+
+        getMemory(response).close();
+
+        assertThrows(IllegalStateException.class, () -> getMemory(response));
+    }
+
+    @Test
+    public void testTransferResponse_sharesMemoryWithCreator() throws Exception {
+        mMmsConfig.putBoolean(DownloadRequest.KEY_MMS_SHARED_MEMORY_RESPONSE_BOOL, true);
+        final Intent fillIn = new Intent();
+
+        assertThat(createRequest().transferResponse(fillIn, PDU)).isTrue();
+
+        verify(mRequestManager, never()).writePduToContentUri(any(), any());
+        final IBinder binder = fillIn.getBundleExtra(
+                SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE).getBinder(
+                SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE);
+        final SharedMemory memory = getMemory(binder);
+        assertThat(memory.getSize()).isEqualTo(PDU.length);
+        memory.close();
+    }
+
+    @Test
+    public void testTransferResponse_writesToContentUriUnlessRequested() {
+        final Intent fillIn = new Intent();
+
+        assertThat(createRequest().transferResponse(fillIn, PDU)).isTrue();
+
+        verify(mRequestManager).writePduToContentUri(CONTENT_URI, PDU);
+        assertThat(fillIn.hasExtra(SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE))
+                .isFalse();
+    }
+
+    @Test
+    public void testTransferResponse_writesEmptyResponseToContentUri() {
+        mMmsConfig.putBoolean(DownloadRequest.KEY_MMS_SHARED_MEMORY_RESPONSE_BOOL, true);
+        final Intent fillIn = new Intent();
+
+        createRequest().transferResponse(fillIn, new byte[0]);
+
+        verify(mRequestManager).writePduToContentUri(any(), any());
+        assertThat(fillIn.hasExtra(SharedMemoryResponse.EXTRA_MMS_SHARED_MEMORY_RESPONSE))
+                .isFalse();
+    }
+
+    private DownloadRequest createRequest() {
+        return new DownloadRequest(mRequestManager, SUB_ID, "http://mmsc/1", CONTENT_URI,
+                mDownloadedIntent, mContext.getPackageName(), mMmsConfig, mContext,
+                1L /* messageId */, null /* mmsStats */);
+    }
+
+    private static SharedMemory getMemory(IBinder binder) throws Exception {
+        final Parcel data = Parcel.obtain();
+        final Parcel reply = Parcel.obtain();
+        try {
+            binder.transact(SharedMemoryResponse.TRANSACTION_GET_MEMORY, data, reply, 0);
+            reply.setDataPosition(0);
+            return reply.readTypedObject(SharedMemory.CREATOR);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriptionRequestQueueTest {
+    private static final int SUB_ID = 1;
+
+    private SubscriptionRequestQueue mQueue;
+    private long mSequence;
+
+    @Before
+    public void setUp() {
+        mQueue = new SubscriptionRequestQueue(SUB_ID);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.shutdown();
+    }
+
+    @Test
+    public void testPendingRequests_sameKeyKeepsArrivalOrder() {
+        MmsRequest first = newRequest(MmsRequest.PRIORITY_USER, 0L, 100L);
+        MmsRequest second = newRequest(MmsRequest.PRIORITY_USER, 0L, 100L);
+
+        mQueue.addPendingRequest(first);
+        mQueue.addPendingRequest(second);
+
+        assertThat(mQueue.getPendingRequestCount()).isEqualTo(2);
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(first);
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(second);
+        assertThat(mQueue.pollPendingRequest()).isNull();
+        assertThat(mQueue.getNextSchedulingKey()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPendingRequests_controlPduOvertakesSendAndDownload() {
+        MmsRequest download = newRequest(MmsRequest.PRIORITY_BACKGROUND, 0L, 1000L);
+        MmsRequest send = newRequest(MmsRequest.PRIORITY_USER, 0L, 1000L);
+        MmsRequest control = newRequest(MmsRequest.PRIORITY_CONTROL, 0L, 2000L);
+
+        mQueue.addPendingRequest(download);
+        mQueue.addPendingRequest(send);
+        mQueue.addPendingRequest(control);
+
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(control);
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(send);
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(download);
+    }
+
+    @Test
+    public void testPendingRequests_smallSendOvertakesLargeSend() {
+        MmsRequest large = newRequest(MmsRequest.PRIORITY_USER, 3 * 1024 * 1024L, 1000L);
+        MmsRequest small = newRequest(MmsRequest.PRIORITY_USER, 10 * 1024L, 2000L);
+
+        mQueue.addPendingRequest(large);
+        mQueue.addPendingRequest(small);
+
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(small);
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(large);
+    }
+
+    @Test
+    public void testPendingRequests_agedDownloadIsNotStarved() {
+        MmsRequest download = newRequest(MmsRequest.PRIORITY_BACKGROUND, 0L, 0L);
+        MmsRequest control = newRequest(MmsRequest.PRIORITY_CONTROL, 0L, 120 * 1000L);
+
+        mQueue.addPendingRequest(control);
+        mQueue.addPendingRequest(download);
+
+        assertThat(mQueue.pollPendingRequest()).isSameInstanceAs(download);
+    }
+
+    @Test
+    public void testRunningCount_tracksActiveState() {
+        MmsRequest request = newRequest(MmsRequest.PRIORITY_USER, 0L, 0L);
+        assertThat(mQueue.isActive()).isFalse();
+
+        mQueue.onRequestStarted(request, 0L);
+        mQueue.onRequestStarted(request, 0L);
+        assertThat(mQueue.isActive()).isTrue();
+
+        assertThat(mQueue.onRequestFinished()).isFalse();
+        assertThat(mQueue.onRequestFinished()).isTrue();
+        assertThat(mQueue.isActive()).isFalse();
+    }
+
+    @Test
+    public void testWaitingForSlot_onlyWhenPendingAndIdle() {
+        MmsRequest running = newRequest(MmsRequest.PRIORITY_USER, 0L, 0L);
+        assertThat(mQueue.isWaitingForSlot()).isFalse();
+
+        mQueue.addPendingRequest(newRequest(MmsRequest.PRIORITY_USER, 0L, 0L));
+        assertThat(mQueue.isWaitingForSlot()).isTrue();
+
+        mQueue.onRequestStarted(running, 0L);
+        assertThat(mQueue.isWaitingForSlot()).isFalse();
+
+        mQueue.onRequestFinished();
+        assertThat(mQueue.isWaitingForSlot()).isTrue();
+
+        mQueue.pollPendingRequest();
+        assertThat(mQueue.isWaitingForSlot()).isFalse();
+    }
+
+    @Test
+    public void testExecute_invalidQueueType() {
+        TestRequest request = newRequest(MmsRequest.PRIORITY_USER, 0L, 0L);
+        request.mQueueType = 2;
+
+        assertThat(mQueue.execute(request, () -> {})).isFalse();
+    }
+
+    @Test
+    public void testExecute_idleThreadsExit() throws Exception {
+        mQueue.shutdown();
+        mQueue = new SubscriptionRequestQueue(SUB_ID, 10L /* threadKeepAliveMillis */);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        assertThat(mQueue.execute(newRequest(MmsRequest.PRIORITY_USER, 0L, 0L), ran::countDown))
+                .isTrue();
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (mQueue.getThreadCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(mQueue.getThreadCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDump_reportsWaitTimeAndDepth() {
+        MmsRequest request = newRequest(MmsRequest.PRIORITY_CONTROL, 0L, 0L);
+        mQueue.addPendingRequest(newRequest(MmsRequest.PRIORITY_USER, 0L, 0L));
+        mQueue.addPendingRequest(newRequest(MmsRequest.PRIORITY_USER, 0L, 0L));
+        mQueue.pollPendingRequest();
+        mQueue.onRequestStarted(request, 100L);
+        mQueue.onRequestStarted(request, 300L);
+
+        StringWriter out = new StringWriter();
+        mQueue.dump(new PrintWriter(out, true));
+
+        assertThat(out.toString()).contains("maxPending=2");
+        assertThat(out.toString()).contains("avgWaitMs=200");
+        assertThat(out.toString()).contains("maxWaitMs=300");
+        assertThat(out.toString()).contains("control=2");
+    }
+
+    private TestRequest newRequest(int priority, long sizeHint, long enqueueTimeMillis) {
+        TestRequest request = new TestRequest(priority, sizeHint);
+        request.markEnqueued(enqueueTimeMillis, mSequence++);
+        return request;
+    }
+
+    private static class TestRequest extends MmsRequest {
+        private final int mPriority;
+        private final long mSizeHint;
+        int mQueueType = MmsService.QUEUE_INDEX_SEND;
+
+        TestRequest(int priority, long sizeHint) {
+            super(null, SUB_ID, null, null, null, 0L, null);
+            mPriority = priority;
+            mSizeHint = sizeHint;
+        }
+
+        @Override
+        protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettings apn) {
+            return null;
+        }
+
+        @Override
+        protected PendingIntent getPendingIntent() {
+            return null;
+        }
+
+        @Override
+        protected int getQueueType() {
+            return mQueueType;
+        }
+
+        @Override
+        protected int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        protected long getPayloadSizeHint() {
+            return mSizeHint;
+        }
+
+        @Override
+        protected Uri persistIfRequired(Context context, int result, byte[] response) {
+            return null;
+        }
+
+        @Override
+        protected boolean prepareForHttpRequest() {
+            return true;
+        }
+
+        @Override
+        protected boolean transferResponse(Intent fillIn, byte[] response) {
+            return true;
+        }
+
+        @Override
+        protected void revokeUriPermission(Context context) {
+        }
+    }
+}